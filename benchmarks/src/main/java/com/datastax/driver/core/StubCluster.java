@@ -0,0 +1,48 @@
+package com.datastax.driver.core;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import com.datastax.driver.core.policies.Policies;
+
+/**
+ * Cluster that is never connected. It exposes empty metadata and the
+ * configuration of a protocol V3 cluster, which is all the mapping
+ * module needs to create mappers.
+ */
+public class StubCluster extends Cluster {
+
+	private final Metadata metadata;
+
+	public StubCluster() {
+		super("benchmark", Collections.<InetSocketAddress>emptyList(), new Configuration(
+				new Policies(),
+				new StubProtocolOptions(),
+				new PoolingOptions(),
+				new SocketOptions(),
+				new MetricsOptions(false),
+				new QueryOptions()));
+		// the cluster's own metadata is only created once it is initialized
+		this.metadata = new Metadata(manager);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Cluster#getMetadata()
+	 */
+	@Override
+	public Metadata getMetadata() {
+		// skips the connection Cluster#getMetadata() would open
+		return metadata;
+	}
+
+	/**
+	 * Reports protocol V3 without negotiating it with a host.
+	 */
+	private static class StubProtocolOptions extends ProtocolOptions {
+
+		@Override
+		public ProtocolVersion getProtocolVersionEnum() {
+			return ProtocolVersion.V3;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.datastax.driver.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.datastax.driver.core.policies.RetryPolicy;
+
+/**
+ * Prepared statement created without a round trip to Cassandra, from
+ * the variable definitions parsed by {@link StubSession}.
+ */
+public class StubPreparedStatement implements PreparedStatement {
+
+	private final PreparedId preparedId;
+	private final String query;
+	private final String keyspace;
+	private volatile ByteBuffer routingKey;
+	private volatile ConsistencyLevel consistency;
+	private volatile ConsistencyLevel serialConsistency;
+	private volatile boolean traceQuery;
+	private volatile RetryPolicy retryPolicy;
+
+	StubPreparedStatement(String query, String keyspace, List<ColumnDefinitions.Definition> variables) {
+		this.query = query;
+		this.keyspace = keyspace;
+		this.preparedId = new PreparedId(
+				MD5Digest.wrap(Integer.toString(System.identityHashCode(this)).getBytes()),
+				new ColumnDefinitions(variables.toArray(new ColumnDefinitions.Definition[variables.size()])),
+				ColumnDefinitions.EMPTY,
+				null,
+				ProtocolVersion.V3);
+	}
+
+	@Override
+	public ColumnDefinitions getVariables() {
+		return preparedId.metadata;
+	}
+
+	@Override
+	public BoundStatement bind(Object... values) {
+		return new BoundStatement(this).bind(values);
+	}
+
+	@Override
+	public BoundStatement bind() {
+		return new BoundStatement(this);
+	}
+
+	@Override
+	public PreparedStatement setRoutingKey(ByteBuffer routingKey) {
+		this.routingKey = routingKey;
+		return this;
+	}
+
+	@Override
+	public PreparedStatement setRoutingKey(ByteBuffer... routingKeyComponents) {
+		this.routingKey = SimpleStatement.compose(routingKeyComponents);
+		return this;
+	}
+
+	@Override
+	public ByteBuffer getRoutingKey() {
+		return routingKey;
+	}
+
+	@Override
+	public PreparedStatement setConsistencyLevel(ConsistencyLevel consistency) {
+		this.consistency = consistency;
+		return this;
+	}
+
+	@Override
+	public ConsistencyLevel getConsistencyLevel() {
+		return consistency;
+	}
+
+	@Override
+	public PreparedStatement setSerialConsistencyLevel(ConsistencyLevel serialConsistency) {
+		this.serialConsistency = serialConsistency;
+		return this;
+	}
+
+	@Override
+	public ConsistencyLevel getSerialConsistencyLevel() {
+		return serialConsistency;
+	}
+
+	@Override
+	public String getQueryString() {
+		return query;
+	}
+
+	@Override
+	public String getQueryKeyspace() {
+		return keyspace;
+	}
+
+	@Override
+	public PreparedStatement enableTracing() {
+		this.traceQuery = true;
+		return this;
+	}
+
+	@Override
+	public PreparedStatement disableTracing() {
+		this.traceQuery = false;
+		return this;
+	}
+
+	@Override
+	public boolean isTracing() {
+		return traceQuery;
+	}
+
+	@Override
+	public PreparedStatement setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	@Override
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	@Override
+	public PreparedId getPreparedId() {
+		return preparedId;
+	}
+}
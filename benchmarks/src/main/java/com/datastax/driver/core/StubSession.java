@@ -0,0 +1,253 @@
+package com.datastax.driver.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Session that executes nothing. Statements are prepared locally by parsing
+ * the bind markers out of the query string, and every execution completes
+ * immediately with an empty result, so benchmarks measure the client-side
+ * cost of mapping and auditing only.
+ *
+ * Only the statement shapes generated by the mapping module and the audit
+ * logger are understood: {@code INSERT INTO ks.table(columns) VALUES (...)}
+ * and statements whose bind markers are of the form {@code column=?}.
+ */
+public class StubSession implements Session {
+
+	private static final Pattern INSERT = Pattern.compile(
+			"INSERT INTO (\\w+)\\.(\\w+)\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern TABLE = Pattern.compile(
+			"(?:FROM|UPDATE)\\s+(\\w+)\\.(\\w+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern ASSIGNMENT = Pattern.compile("(\\w+)\\s*=\\s*\\?");
+
+	private final Cluster cluster = new StubCluster();
+	private final Map<String, DataType> columnTypes;
+	private final AtomicLong executed = new AtomicLong();
+
+	/**
+	 * Constructs a session whose prepared statements bind {@code text}
+	 * values, except for the given columns.
+	 *
+	 * @param columnTypes column types by column name
+	 */
+	public StubSession(Map<String, DataType> columnTypes) {
+		this.columnTypes = new HashMap<String, DataType>(columnTypes);
+	}
+
+	/**
+	 * Returns the number of statements executed by this session.
+	 */
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	@Override
+	public String getLoggedKeyspace() {
+		return null;
+	}
+
+	@Override
+	public Session init() {
+		return this;
+	}
+
+	@Override
+	public ResultSet execute(String query) {
+		executed.incrementAndGet();
+		return EmptyResultSet.INSTANCE;
+	}
+
+	@Override
+	public ResultSet execute(String query, Object... values) {
+		executed.incrementAndGet();
+		return EmptyResultSet.INSTANCE;
+	}
+
+	@Override
+	public ResultSet execute(Statement statement) {
+		executed.incrementAndGet();
+		return EmptyResultSet.INSTANCE;
+	}
+
+	@Override
+	public ResultSetFuture executeAsync(String query) {
+		return new CompletedResultSetFuture(execute(query));
+	}
+
+	@Override
+	public ResultSetFuture executeAsync(String query, Object... values) {
+		return new CompletedResultSetFuture(execute(query, values));
+	}
+
+	@Override
+	public ResultSetFuture executeAsync(Statement statement) {
+		return new CompletedResultSetFuture(execute(statement));
+	}
+
+	@Override
+	public PreparedStatement prepare(String query) {
+		String cql = query.replace("\"", "");
+		List<ColumnDefinitions.Definition> variables = new ArrayList<ColumnDefinitions.Definition>();
+		Matcher insert = INSERT.matcher(cql);
+		if (insert.find()) {
+			for (String column : insert.group(3).split(",")) {
+				variables.add(variable(insert.group(1), insert.group(2), column.trim()));
+			}
+			return new StubPreparedStatement(query, insert.group(1), variables);
+		}
+		Matcher table = TABLE.matcher(cql);
+		if (!table.find()) {
+			throw new IllegalArgumentException("Unsupported statement: " + query);
+		}
+		Matcher assignment = ASSIGNMENT.matcher(cql);
+		while (assignment.find()) {
+			variables.add(variable(table.group(1), table.group(2), assignment.group(1)));
+		}
+		return new StubPreparedStatement(query, table.group(1), variables);
+	}
+
+	@Override
+	public PreparedStatement prepare(RegularStatement statement) {
+		return prepare(statement.getQueryString());
+	}
+
+	@Override
+	public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+		return Futures.immediateFuture(prepare(query));
+	}
+
+	@Override
+	public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement statement) {
+		return Futures.immediateFuture(prepare(statement));
+	}
+
+	@Override
+	public CloseFuture closeAsync() {
+		return CloseFuture.immediateFuture();
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isClosed() {
+		return false;
+	}
+
+	@Override
+	public Cluster getCluster() {
+		return cluster;
+	}
+
+	@Override
+	public State getState() {
+		throw new UnsupportedOperationException();
+	}
+
+	private ColumnDefinitions.Definition variable(String keyspace, String table, String column) {
+		DataType type = columnTypes.get(column);
+		return new ColumnDefinitions.Definition(keyspace, table, column, type != null ? type : DataType.text());
+	}
+
+	/**
+	 * Result of every statement executed by the session.
+	 */
+	private static class EmptyResultSet implements ResultSet {
+
+		static final EmptyResultSet INSTANCE = new EmptyResultSet();
+
+		private final ExecutionInfo info = new ExecutionInfo(Collections.<Host>emptyList());
+
+		@Override
+		public ColumnDefinitions getColumnDefinitions() {
+			return ColumnDefinitions.EMPTY;
+		}
+
+		@Override
+		public boolean isExhausted() {
+			return true;
+		}
+
+		@Override
+		public Row one() {
+			return null;
+		}
+
+		@Override
+		public List<Row> all() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Iterator<Row> iterator() {
+			return Collections.<Row>emptyList().iterator();
+		}
+
+		@Override
+		public int getAvailableWithoutFetching() {
+			return 0;
+		}
+
+		@Override
+		public boolean isFullyFetched() {
+			return true;
+		}
+
+		@Override
+		public ListenableFuture<Void> fetchMoreResults() {
+			return Futures.immediateFuture(null);
+		}
+
+		@Override
+		public ExecutionInfo getExecutionInfo() {
+			return info;
+		}
+
+		@Override
+		public List<ExecutionInfo> getAllExecutionInfo() {
+			return Collections.singletonList(info);
+		}
+
+		@Override
+		public boolean wasApplied() {
+			return true;
+		}
+	}
+
+	/**
+	 * Future completed on construction. Unlike the test stubs, it supports
+	 * listeners, so asynchronous mapper and audit callbacks run as they would
+	 * against a live cluster.
+	 */
+	private static class CompletedResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+		CompletedResultSetFuture(ResultSet resultSet) {
+			set(resultSet);
+		}
+
+		@Override
+		public ResultSet getUninterruptibly() {
+			return Futures.getUnchecked(this);
+		}
+
+		@Override
+		public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+			return Futures.getUnchecked(this);
+		}
+	}
+}
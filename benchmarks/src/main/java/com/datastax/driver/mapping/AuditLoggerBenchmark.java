@@ -0,0 +1,115 @@
+package com.datastax.driver.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.StubSession;
+
+import io.smartcat.cassandra_audit.AuditBucket;
+import io.smartcat.cassandra_audit.AuditClustering;
+import io.smartcat.cassandra_audit.AuditValueFormat;
+
+/**
+ * Measures {@link CassandraAuditLogger#log(long, String, BoundStatement)} on
+ * its own, for an entity with a single key column and a varying number of
+ * {@code text} columns, a part of which is excluded from the audit log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuditLoggerBenchmark {
+
+	private static final String KEYSPACE = "bench";
+	private static final String TABLE = "wide";
+	private static final String KEY = "id";
+
+	/**
+	 * Number of mutated columns, including the key column.
+	 */
+	@Param({ "4", "16", "64" })
+	public int columns;
+
+	/**
+	 * Ratio of the non-key columns excluded from the audit log.
+	 */
+	@Param({ "0.0", "0.5" })
+	public double excludedRatio;
+
+	@Param({ "TEXT", "BLOB_MAP" })
+	public AuditValueFormat valueFormat;
+
+	private CassandraAuditLogger logger;
+	private BoundStatement mutation;
+
+	@Setup
+	public void setUp() {
+		StubSession session = BenchmarkSessions.newSession();
+		logger = new CassandraAuditLogger(session);
+
+		List<String> names = new ArrayList<String>();
+		names.add(KEY);
+		for (int i = 1; i < columns; i++) {
+			names.add("col" + i);
+		}
+		List<String> excluded = new ArrayList<String>(
+				names.subList(1, 1 + (int)Math.round((columns - 1) * excludedRatio)));
+
+		PreparedStatement auditStatement = session.prepare(insert(TABLE + "_audit", KEY,
+				CassandraAuditLogger.AuditRow.COL_TIMESTAMP,
+				CassandraAuditLogger.AuditRow.COL_MUTATION_TYPE,
+				CassandraAuditLogger.AuditRow.COL_EXEC_TIME,
+				CassandraAuditLogger.AuditRow.COL_ERROR,
+				CassandraAuditLogger.AuditRow.COL_CQL_STRING,
+				valueFormat == AuditValueFormat.BLOB_MAP
+						? CassandraAuditLogger.AuditRow.COL_STATEMENT_RAW_VALUES
+						: CassandraAuditLogger.AuditRow.COL_STATEMENT_VALUES));
+		logger.register(KEYSPACE + "." + TABLE, auditStatement,
+				Collections.singletonList(KEY), excluded, valueFormat, AuditBucket.NONE,
+				AuditClustering.TIMESTAMP, null);
+
+		PreparedStatement ps = session.prepare(insert(TABLE, names.toArray(new String[names.size()])));
+		Object[] values = new Object[columns];
+		for (int i = 0; i < columns; i++) {
+			values[i] = "value of " + names.get(i);
+		}
+		mutation = ps.bind(values);
+	}
+
+	@Benchmark
+	public void log() {
+		logger.log(System.currentTimeMillis(), 1000000L, null, mutation);
+	}
+
+	private static String insert(String table, String... columns) {
+		StringBuilder cql = new StringBuilder("INSERT INTO ").append(KEYSPACE).append('.').append(table).append('(');
+		StringBuilder markers = new StringBuilder();
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				cql.append(',');
+				markers.append(',');
+			}
+			cql.append(columns[i]);
+			markers.append('?');
+		}
+		return cql.append(") VALUES (").append(markers).append(");").toString();
+	}
+}
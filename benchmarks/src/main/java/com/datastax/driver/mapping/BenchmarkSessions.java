@@ -0,0 +1,29 @@
+package com.datastax.driver.mapping;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.StubSession;
+
+/**
+ * Creates the stub sessions the benchmarks run against.
+ */
+final class BenchmarkSessions {
+
+	private BenchmarkSessions() {
+	}
+
+	/**
+	 * Returns a session whose prepared statements bind the audit columns
+	 * with their audit table types and any other column as {@code text}.
+	 */
+	static StubSession newSession() {
+		Map<String, DataType> columnTypes = new HashMap<String, DataType>();
+		columnTypes.put(CassandraAuditLogger.AuditRow.COL_TIMESTAMP, DataType.timestamp());
+		columnTypes.put(CassandraAuditLogger.AuditRow.COL_EXEC_TIME, DataType.bigint());
+		columnTypes.put(CassandraAuditLogger.AuditRow.COL_STATEMENT_RAW_VALUES,
+				DataType.map(DataType.text(), DataType.blob()));
+		return new StubSession(columnTypes);
+	}
+}
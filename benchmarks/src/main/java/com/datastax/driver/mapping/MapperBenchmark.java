@@ -0,0 +1,96 @@
+package com.datastax.driver.mapping;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.StubSession;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import io.smartcat.cassandra_audit.AuditConfiguration;
+import io.smartcat.cassandra_audit.AuditManager;
+
+/**
+ * Compares the mutation methods of a plain {@link Mapper} with those of an
+ * {@link AuditMapper}, auditing synchronously or through the audit queue.
+ * Statements are executed by a {@link StubSession}, so the difference between
+ * the modes is the client-side cost of auditing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+	/**
+	 * {@code plain} uses {@link Mapper}, {@code sync} and {@code async} use
+	 * {@link AuditMapper} with the respective audit mode.
+	 */
+	@Param({ "plain", "sync", "async" })
+	public String audit;
+
+	private Mapper<BenchmarkEntity> mapper;
+	private BenchmarkEntity entity;
+
+	@Setup
+	public void setUp() {
+		StubSession session = BenchmarkSessions.newSession();
+		MappingManager manager;
+		switch (audit) {
+			case "plain":
+				manager = new MappingManager(session);
+				break;
+			case "sync":
+				manager = AuditManager.getMappingManager(session, new AuditConfiguration().setSynchronous(true));
+				break;
+			case "async":
+				manager = AuditManager.getMappingManager(session, new AuditConfiguration());
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown audit mode: " + audit);
+		}
+		mapper = manager.mapper(BenchmarkEntity.class);
+
+		entity = new BenchmarkEntity();
+		entity.setId("e5b5a1b0-4b5c-11e6-beb8-9e71128cae77");
+		entity.setCol1("first value");
+		entity.setCol2("second value");
+		entity.setCol3("third value");
+		entity.setCol4("fourth value");
+		entity.setCol5("fifth value");
+		entity.setCol6("sixth value");
+		entity.setCol7("seventh value");
+	}
+
+	@Benchmark
+	public void save() {
+		mapper.save(entity);
+	}
+
+	@Benchmark
+	public ListenableFuture<Void> saveAsync() {
+		return mapper.saveAsync(entity);
+	}
+
+	@Benchmark
+	public void delete() {
+		mapper.delete(entity);
+	}
+
+	@Benchmark
+	public void deleteByKey() {
+		mapper.delete(entity.getId());
+	}
+}
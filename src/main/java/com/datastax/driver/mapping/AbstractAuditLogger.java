@@ -0,0 +1,50 @@
+package com.datastax.driver.mapping;
+
+import com.datastax.driver.core.BoundStatement;
+
+/**
+ * Base of {@link AuditLogger} implementations that log an event with the
+ * mutation's start time. An event is logged with the mutation's start time
+ * in milliseconds since the epoch, its execution time in nanoseconds, its
+ * error message, {@code null} if it succeeded, and the executed mutation
+ * statement. {@link #log(long, String, BoundStatement)} forwards to
+ * {@link #log(long, long, String, BoundStatement)} with the current time.
+ */
+public abstract class AbstractAuditLogger implements AuditLogger {
+
+	/**
+	 * Logs an audit event.
+	 *
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param statement mutation statement
+	 */
+	public abstract void log(long time, long execTime, String error, BoundStatement statement);
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.mapping.AuditLogger#log(long, java.lang.String, com.datastax.driver.core.BoundStatement)
+	 */
+	@Override
+	public void log(long execTime, String error, BoundStatement statement) {
+		log(System.currentTimeMillis(), execTime, error, statement);
+	}
+
+	/**
+	 * Logs an audit event with the given logger, passing the mutation's start
+	 * time if the logger takes it.
+	 *
+	 * @param logger audit logger
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param statement mutation statement
+	 */
+	static void log(AuditLogger logger, long time, long execTime, String error, BoundStatement statement) {
+		if (logger instanceof AbstractAuditLogger) {
+			((AbstractAuditLogger)logger).log(time, execTime, error, statement);
+		} else {
+			logger.log(execTime, error, statement);
+		}
+	}
+}
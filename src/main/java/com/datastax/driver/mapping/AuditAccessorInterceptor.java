@@ -0,0 +1,100 @@
+package com.datastax.driver.mapping;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.mapping.annotations.Accessor;
+import com.google.common.collect.MapMaker;
+
+import net.bytebuddy.implementation.bind.annotation.RuntimeType;
+import net.bytebuddy.implementation.bind.annotation.SuperCall;
+import net.bytebuddy.implementation.bind.annotation.This;
+
+/**
+ * A ByteBuddy intercepter/delegation class for instrumenting
+ * {@link MappingManager#createAccessor(Class)} in order to audit the
+ * mutations executed by {@link Accessor} methods.
+ * <p>
+ * When an accessor is created, the prepared statement of each of its
+ * methods is classified, once, against the audited entities whose mappers
+ * the manager has created so far. Methods mutating an audited entity
+ * execute their statements through an {@link AuditSession}, all other
+ * methods are left untouched.
+ * <p>
+ * As with {@link AuditMappingManagerInterceptor}, managers are passed as
+ * {@link Object}, so that the agent can inspect this class while
+ * {@link MappingManager} is being loaded.
+ */
+public class AuditAccessorInterceptor {
+
+	private static final Field HANDLER_MAPPER = field(AccessorInvocationHandler.class, "mapper");
+	private static final Field METHOD_STATEMENT = field(MethodMapper.class, "statement");
+	private static final Field METHOD_SESSION = field(MethodMapper.class, "session");
+
+	// accessors are cached by their manager, weak keys compare them by identity
+	private static final ConcurrentMap<Object, Boolean> instrumented = new MapMaker().weakKeys().makeMap();
+
+	/**
+	 * Intercepter method for {@link MappingManager#createAccessor(Class)} that
+	 * instruments the accessor created by the original method.
+	 *
+	 * @param zuper the original method
+	 * @param manager the {@link MappingManager} creating the accessor
+	 * @return the accessor
+	 * @throws Exception if the original method fails
+	 */
+	@RuntimeType
+	public static Object createAccessor(@SuperCall Callable<?> zuper, @This Object manager) throws Exception {
+		Object accessor = zuper.call();
+		if (instrumented.putIfAbsent(accessor, Boolean.TRUE) == null) {
+			instrument(accessor, manager);
+		}
+		return accessor;
+	}
+
+	/**
+	 * Routes the accessor's audited methods through an {@link AuditSession}.
+	 *
+	 * @param accessor accessor proxy
+	 * @param manager the manager that created the accessor
+	 */
+	private static void instrument(Object accessor, Object manager) {
+		MappingManager mappingManager = (MappingManager)manager;
+		AuditSession auditSession = new AuditSession(mappingManager.getSession(), mappingManager);
+		boolean audited = false;
+		for (Mapper<?> mapper : AuditMappingManagerInterceptor.getMappers(manager).values()) {
+			if (mapper instanceof AuditMapper && ((AuditMapper<?>)mapper).auditOptions.auditable) {
+				auditSession.audit((AuditMapper<?>)mapper);
+				audited = true;
+			}
+		}
+		if (!audited) {
+			return;
+		}
+		try {
+			InvocationHandler handler = Proxy.getInvocationHandler(accessor);
+			AccessorMapper<?> accessorMapper = (AccessorMapper<?>)HANDLER_MAPPER.get(handler);
+			for (MethodMapper method : accessorMapper.methods) {
+				if (auditSession.isAudited((PreparedStatement)METHOD_STATEMENT.get(method))) {
+					METHOD_SESSION.set(method, auditSession);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Unable to instrument accessor.", e);
+		}
+	}
+
+	private static Field field(Class<?> klass, String name) {
+		try {
+			Field f = klass.getDeclaredField(name);
+			f.setAccessible(true);
+			return f;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
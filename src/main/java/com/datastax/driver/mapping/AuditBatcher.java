@@ -0,0 +1,166 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Statement;
+
+/**
+ * Accumulates audit inserts per audit table and partition and writes each
+ * group as an UNLOGGED batch once it reaches the maximum batch size or
+ * the maximum delay elapses. Since all statements of a batch target the
+ * same partition, the coordinator applies them as a single mutation.
+ */
+class AuditBatcher {
+
+	/**
+	 * Executes the statements and batches produced by the batcher.
+	 */
+	interface Writer {
+		void write(Statement statement);
+	}
+
+	/**
+	 * Identifies an audit table partition by the audit insert statement
+	 * and the serialized partition key values.
+	 */
+	static final class Partition {
+		private final PreparedStatement statement;
+		private final ByteBuffer[] key;
+		private final int hash;
+
+		Partition(PreparedStatement statement, ByteBuffer[] key) {
+			this.statement = statement;
+			this.key = key;
+			this.hash = 31 * System.identityHashCode(statement) + Arrays.hashCode(key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Partition)) {
+				return false;
+			}
+			Partition other = (Partition)obj;
+			return statement == other.statement && Arrays.equals(key, other.key);
+		}
+	}
+
+	private final Writer writer;
+	private final int maxSize;
+	private final ScheduledExecutorService timer;
+
+	// guarded by this
+	private Map<Partition, List<Statement>> groups = new HashMap<Partition, List<Statement>>();
+	private boolean closed;
+
+	/**
+	 * Constructs a batcher and starts its flush timer, which runs until
+	 * the batcher is closed.
+	 *
+	 * @param writer executes the batches
+	 * @param maxSize maximum number of statements per batch
+	 * @param maxDelayMillis maximum time a statement waits to be written
+	 */
+	AuditBatcher(Writer writer, int maxSize, long maxDelayMillis) {
+		this.writer = writer;
+		this.maxSize = maxSize;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cassandra-audit-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds an audit insert to its partition's pending batch, writing
+	 * the batch if it is full.
+	 *
+	 * @param partition audit table partition targeted by the statement
+	 * @param statement audit insert statement
+	 */
+	void add(Partition partition, Statement statement) {
+		List<Statement> full = null;
+		synchronized (this) {
+			if (closed) {
+				full = Collections.singletonList(statement);
+			} else {
+				List<Statement> group = groups.get(partition);
+				if (group == null) {
+					group = new ArrayList<Statement>();
+					groups.put(partition, group);
+				}
+				group.add(statement);
+				if (group.size() >= maxSize) {
+					full = groups.remove(partition);
+				}
+			}
+		}
+		if (full != null) {
+			write(full);
+		}
+	}
+
+	/**
+	 * Writes all pending batches.
+	 */
+	void flush() {
+		Map<Partition, List<Statement>> pending;
+		synchronized (this) {
+			if (groups.isEmpty()) {
+				return;
+			}
+			pending = groups;
+			groups = new HashMap<Partition, List<Statement>>();
+		}
+		for (List<Statement> group : pending.values()) {
+			write(group);
+		}
+	}
+
+	/**
+	 * Stops the flush timer and writes all pending batches. Statements
+	 * added afterwards are written right away.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		timer.shutdown();
+		flush();
+	}
+
+	private void write(List<Statement> group) {
+		if (group.size() == 1) {
+			writer.write(group.get(0));
+			return;
+		}
+		BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+		batch.addAll(group);
+		writer.write(batch);
+	}
+}
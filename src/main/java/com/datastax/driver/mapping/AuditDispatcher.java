@@ -0,0 +1,580 @@
+package com.datastax.driver.mapping;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Session;
+import com.google.common.collect.MapMaker;
+
+import io.smartcat.cassandra_audit.AuditConfiguration;
+import io.smartcat.cassandra_audit.AuditExecutorMode;
+import io.smartcat.cassandra_audit.AuditManager;
+import io.smartcat.cassandra_audit.AuditMetrics;
+import io.smartcat.cassandra_audit.AuditRingBuffer;
+import io.smartcat.cassandra_audit.OverflowPolicy;
+
+/**
+ * Passes audit events from mutating threads to a fixed set of consumer
+ * threads through a bounded {@link AuditRingBuffer}. There is one dispatcher
+ * per {@link Session}, set up from the session's {@link AuditConfiguration}.
+ * <p>
+ * Events are recycled once they are processed or discarded, so that in a
+ * steady state handing a mutation to the pipeline does not allocate an event.
+ * <p>
+ * Events are processed by dedicated consumer threads or, depending on the
+ * configured {@link AuditExecutorMode} or executor, taken from the buffer
+ * by a single thread and processed by an executor. The dispatcher stops
+ * once its session is closed, after processing the pending events, and
+ * then closes the resources registered with {@link #closeOnStop(Closeable)}.
+ * <p>
+ * Events of the same {@linkplain AuditEvent#getShard() shard} are processed
+ * one at a time, in the order they were buffered.
+ * <p>
+ * Audit work of asynchronous mutations that may block, e.g. synchronous
+ * audits, runs on the dispatcher's {@linkplain #getCompletionExecutor()
+ * completion executor} rather than on the driver's I/O threads.
+ */
+class AuditDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(AuditDispatcher.class);
+
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+
+	private static final ConcurrentMap<Session, AuditDispatcher> dispatchers =
+			new MapMaker().weakKeys().makeMap();
+
+	private final AuditRingBuffer<AuditEvent> buffer;
+	private final int consumers;
+	// processes the events taken from the buffer, null if consumer threads process them
+	private final Executor executor;
+	// created by the dispatcher and shut down when it stops
+	private final ExecutorService ownExecutor;
+	// bounds the events handed to the executor
+	private final Semaphore processing;
+	// processes the events of a shard in order, null if events are processed in order anyway
+	private final Lane[] lanes;
+	// hands the events taken from the buffer to their lanes in the buffer's order
+	private final Lock handoff = new ReentrantLock();
+	private volatile WeakReference<Session> session;
+	private volatile boolean stopped;
+	// dispatches that may be offering an event to the buffer
+	private final AtomicInteger offering = new AtomicInteger();
+	// consumer threads still running, the last one to stop closes the closeables
+	private final AtomicInteger running = new AtomicInteger();
+	private final List<Closeable> closeables = new CopyOnWriteArrayList<Closeable>();
+	// counted down once the pending events are processed, before the resources are closed
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	// audits asynchronous mutations whose audit may block, threads are started on demand
+	private final ThreadPoolExecutor completionThreads;
+	// runs audits on the caller's thread once the completion threads are shut down
+	private final Executor completionExecutor;
+	// holds the values of pending events off-heap, if configured
+	private final AuditSlabPool slabs;
+	private final BlockingQueue<AuditEvent> recycled;
+
+	/**
+	 * Returns the dispatcher of the given session, starting it on first use.
+	 *
+	 * @param session a connection to a Cassandra cluster
+	 * @return the session's dispatcher
+	 */
+	static AuditDispatcher forSession(Session session) {
+		AuditDispatcher dispatcher = dispatchers.get(session);
+		if (dispatcher == null) {
+			AuditDispatcher newDispatcher = new AuditDispatcher(AuditManager.getConfiguration(session));
+			dispatcher = dispatchers.putIfAbsent(session, newDispatcher);
+			if (dispatcher == null) {
+				dispatcher = newDispatcher;
+				AuditMetrics metrics = AuditManager.getMetrics(session);
+				dispatcher.registerGauges(metrics);
+				// the metrics stop being reported once the session is closed
+				dispatcher.closeOnStop(metrics);
+				dispatcher.start(session);
+			}
+		}
+		return dispatcher;
+	}
+
+	AuditDispatcher(AuditConfiguration configuration) {
+		this.consumers = configuration.getConsumerThreads();
+		if (configuration.getExecutor() != null) {
+			this.executor = configuration.getExecutor();
+			this.ownExecutor = null;
+		} else {
+			this.ownExecutor = createExecutor(configuration.getExecutorMode(), consumers);
+			this.executor = ownExecutor;
+		}
+		this.processing = executor != null ? new Semaphore(consumers) : null;
+		if (executor != null || consumers > 1) {
+			this.lanes = new Lane[consumers];
+			for (int i = 0; i < consumers; i++) {
+				this.lanes[i] = new Lane();
+			}
+		} else {
+			this.lanes = null;
+		}
+		this.slabs = configuration.getOffHeapSlabs() > 0
+				? new AuditSlabPool(configuration.getOffHeapSlabSize(), configuration.getOffHeapSlabs())
+				: null;
+		this.completionThreads = new ThreadPoolExecutor(consumers, consumers, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "cassandra-audit-completion-" + threadCounter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.completionThreads.allowCoreThreadTimeOut(true);
+		this.completionExecutor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				try {
+					completionThreads.execute(command);
+				} catch (RejectedExecutionException e) {
+					command.run();
+				}
+			}
+		};
+		this.recycled = new ArrayBlockingQueue<AuditEvent>(configuration.getQueueCapacity() + consumers);
+		this.buffer = new AuditRingBuffer<AuditEvent>(
+				configuration.getQueueCapacity(),
+				configuration.getQueueMaxBytes(),
+				configuration.getOverflowPolicy(),
+				new AuditRingBuffer.Weigher<AuditEvent>() {
+					@Override
+					public int weigh(AuditEvent event) {
+						return event.estimatedSize();
+					}
+				},
+				new AuditRingBuffer.SpillHandler<AuditEvent>() {
+					@Override
+					public void spill(AuditEvent event) {
+						try {
+							event.spill();
+						} catch (Exception e) {
+							logger.error("An error occured while executing audit.", e);
+						} finally {
+							recycle(event);
+						}
+					}
+				},
+				new AuditRingBuffer.EvictionHandler<AuditEvent>() {
+					@Override
+					public void evicted(AuditEvent event) {
+						recycle(event);
+					}
+				});
+	}
+
+	/**
+	 * Hands the given event to the consumer threads, applying the
+	 * configured overflow policy if the buffer is full. The event's values
+	 * are moved off-heap first, if configured.
+	 *
+	 * @param event audit event
+	 * @param block {@code false} if the caller must not wait for room, see
+	 *        {@link AuditRingBuffer#offer(Object, boolean)}
+	 * @return {@code true} if the event has been buffered
+	 */
+	boolean dispatch(AuditEvent event, boolean block) {
+		// counted before the stop is checked, so that stopping consumers wait for the offer
+		offering.incrementAndGet();
+		try {
+			if (stopped) {
+				// nothing consumes the buffer anymore
+				process(event);
+				return true;
+			}
+			if (slabs != null) {
+				event.moveOffHeap(slabs);
+			}
+			if (buffer.offer(event, block)) {
+				return true;
+			}
+			// spilled events have been recycled by the spill handler
+			if (buffer.getPolicy() != OverflowPolicy.SPILL) {
+				recycle(event);
+			}
+			return false;
+		} finally {
+			offering.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns an event for the given mutation, recycling a processed event
+	 * if there is one.
+	 *
+	 * @param auditLogger the mutated entity's audit logger
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param statement mutation statement
+	 * @return audit event to {@link #dispatch(AuditEvent, boolean)}
+	 */
+	AuditEvent event(AuditLogger auditLogger, long time, long execTime, String error, BoundStatement statement) {
+		AuditEvent event = recycled.poll();
+		if (event == null) {
+			return new AuditEvent(auditLogger, time, execTime, error, statement);
+		}
+		return event.set(auditLogger, time, execTime, error, statement);
+	}
+
+	private void recycle(AuditEvent event) {
+		event.clear();
+		recycled.offer(event);
+	}
+
+	AuditRingBuffer<AuditEvent> getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the executor auditing asynchronous mutations once they
+	 * complete, if their audit may block. Such audits must not run on the
+	 * driver's I/O thread completing the mutation: an audit write waiting on
+	 * that thread has its own completion delivered by the same thread. Audits
+	 * run on the caller's thread once the dispatcher has stopped.
+	 *
+	 * @return the completion executor
+	 */
+	Executor getCompletionExecutor() {
+		return completionExecutor;
+	}
+
+	private void registerGauges(AuditMetrics metrics) {
+		metrics.gauge("queue.depth", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return buffer.size();
+			}
+		});
+		metrics.gauge("queue.bytes", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return buffer.bytes();
+			}
+		});
+		metrics.gauge("events.evicted", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return buffer.getDroppedOldest();
+			}
+		});
+		metrics.gauge("events.spilled", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return buffer.getSpilled();
+			}
+		});
+		if (slabs != null) {
+			metrics.gauge("offheap.slabs", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return slabs.getAllocated();
+				}
+			});
+			metrics.gauge("offheap.inuse", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return slabs.getInUse();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Creates the executor of the given mode.
+	 *
+	 * @param mode executor mode
+	 * @param parallelism number of consumer threads
+	 * @return the executor, {@code null} if consumer threads process the events
+	 */
+	private static ExecutorService createExecutor(AuditExecutorMode mode, int parallelism) {
+		switch (mode) {
+		case WORK_STEALING:
+			return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		case VIRTUAL:
+			return AuditExecutorMode.newVirtualThreadExecutor();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Starts processing events.
+	 *
+	 * @param session the session whose closing stops the dispatcher, may be {@code null}
+	 */
+	void start(Session session) {
+		this.session = session != null ? new WeakReference<Session>(session) : null;
+		int threads = executor != null ? 1 : consumers;
+		running.set(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			}, "cassandra-audit-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Registers a resource of the dispatcher's session, e.g. an audit logger,
+	 * that is closed once the dispatcher has stopped. A resource registered
+	 * after that is closed right away.
+	 *
+	 * @param closeable resource to close
+	 */
+	void closeOnStop(Closeable closeable) {
+		closeables.add(closeable);
+		if (terminated.getCount() == 0) {
+			close(closeable);
+		}
+	}
+
+	/**
+	 * Stops processing events once the pending events are processed.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Waits for the dispatcher to stop, once it has processed the pending events.
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit time unit of the timeout
+	 * @return {@code true} if the dispatcher has stopped
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * Returns whether the dispatcher keeps processing events, until it is
+	 * stopped or its session is closed or collected.
+	 */
+	private boolean running() {
+		if (stopped) {
+			return false;
+		}
+		WeakReference<Session> ref = session;
+		if (ref != null) {
+			Session s = ref.get();
+			if (s == null || s.isClosed()) {
+				stopped = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void consume() {
+		try {
+			while (running()) {
+				consumeNext(1);
+			}
+			// events offered before the dispatcher stopped, including offers racing with
+			// the stop, a dispatch that has not been counted yet processes its event itself
+			boolean offered;
+			do {
+				offered = offering.get() > 0;
+			} while (consumeNext(0) || offered);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (running.decrementAndGet() == 0) {
+				terminate();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the events handed to the executor and closes the registered
+	 * resources, once the last consumer thread has stopped.
+	 */
+	private void terminate() {
+		completionThreads.shutdown();
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+		if (processing != null) {
+			// all permits are back once the executor has processed the last event
+			processing.acquireUninterruptibly(consumers);
+		}
+		terminated.countDown();
+		for (Closeable closeable : closeables) {
+			close(closeable);
+		}
+	}
+
+	private void close(Closeable closeable) {
+		// closed once, by whichever of terminate and closeOnStop removes it
+		if (!closeables.remove(closeable)) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Unable to close audit resource " + closeable + ".", e);
+		}
+	}
+
+	/**
+	 * Takes the next event from the buffer and processes it, or hands it to
+	 * the lane of its shard.
+	 *
+	 * @param timeout seconds to wait for an event
+	 * @return {@code false} if no event has been buffered
+	 */
+	private boolean consumeNext(long timeout) throws InterruptedException {
+		AuditEvent event;
+		Lane lane = null;
+		boolean drain = false;
+		handoff.lockInterruptibly();
+		try {
+			event = buffer.poll(timeout, TimeUnit.SECONDS);
+			if (event == null) {
+				return false;
+			}
+			if (lanes != null && event.getShard() >= 0) {
+				lane = lanes[event.getShard() % lanes.length];
+				if (processing != null) {
+					// released by the lane once it has processed the event
+					processing.acquire();
+				}
+				drain = lane.add(event);
+			}
+		} finally {
+			handoff.unlock();
+		}
+		if (lane == null) {
+			consume(event);
+		} else if (drain) {
+			drain(lane);
+		}
+		return true;
+	}
+
+	/**
+	 * Processes the events of a lane no other thread is draining.
+	 *
+	 * @param lane the lane
+	 */
+	private void drain(Lane lane) {
+		if (executor == null) {
+			lane.run();
+			return;
+		}
+		try {
+			executor.execute(lane);
+		} catch (RejectedExecutionException e) {
+			// e.g. an application executor that has been shut down
+			lane.run();
+		}
+	}
+
+	private void consume(final AuditEvent event) throws InterruptedException {
+		if (executor == null) {
+			process(event);
+			return;
+		}
+		processing.acquire();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process(event);
+					} finally {
+						processing.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// e.g. an application executor that has been shut down
+			processing.release();
+			process(event);
+		}
+	}
+
+	private void process(AuditEvent event) {
+		try {
+			event.process();
+		} catch (Exception e) {
+			logger.error("An error occured while executing audit.", e);
+		} finally {
+			recycle(event);
+		}
+	}
+
+	/**
+	 * The events of a set of shards, processed by one thread at a time.
+	 */
+	private final class Lane implements Runnable {
+		private final Queue<AuditEvent> events = new ConcurrentLinkedQueue<AuditEvent>();
+		private final AtomicBoolean draining = new AtomicBoolean();
+
+		/**
+		 * Adds an event to the lane.
+		 *
+		 * @param event audit event
+		 * @return {@code true} if the caller has to drain the lane
+		 */
+		boolean add(AuditEvent event) {
+			events.add(event);
+			return draining.compareAndSet(false, true);
+		}
+
+		@Override
+		public void run() {
+			do {
+				AuditEvent event;
+				while ((event = events.poll()) != null) {
+					try {
+						process(event);
+					} finally {
+						if (processing != null) {
+							processing.release();
+						}
+					}
+				}
+				draining.set(false);
+				// an event added after the lane was found empty is drained by this thread
+			} while (!events.isEmpty() && draining.compareAndSet(false, true));
+		}
+	}
+}
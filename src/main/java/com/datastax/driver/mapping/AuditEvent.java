@@ -0,0 +1,296 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+
+/**
+ * An audit event handed by {@link AuditMapper} to the audit pipeline and
+ * passed to an {@link AuditLogger} by an {@link AuditDispatcher} consumer
+ * thread. The event holds the executed mutation statement itself, so the
+ * entity is neither retained nor bound a second time. The event of a batch
+ * holds the batch's audited mutation statements.
+ * <p>
+ * While the event is pending, its statements' bound values may be moved into
+ * a region of a direct buffer slab, see {@link #moveOffHeap(AuditSlabPool)}.
+ * The event then only retains the statements' {@link PreparedStatement}s on
+ * the heap and binds them again when it is processed, to the region itself
+ * if the logger is a {@link BorrowingAuditLogger}, otherwise to a heap copy.
+ */
+class AuditEvent {
+
+	/**
+	 * Estimated memory retained by an event regardless of its bound values.
+	 */
+	static final int OVERHEAD = 128;
+
+	/**
+	 * Estimated memory retained per statement while the values are held off-heap.
+	 */
+	static final int REFERENCE = 8;
+
+	// mutable, an event is recycled once it is processed, see AuditDispatcher
+	private AuditLogger logger;
+	private long time;
+	private long execTime;
+	private String error;
+	private BoundStatement statement;
+	private List<BoundStatement> statements;
+	private boolean batch;
+	private int size;
+	// orders the events of a row, -1 if the event is not ordered
+	private int shard;
+	// set while the bound values are held off-heap
+	private PreparedStatement[] prepared;
+	private AuditSlabPool.Region region;
+	private AuditSlabPool pool;
+
+	AuditEvent(AuditLogger logger, long time, long execTime, String error, BoundStatement statement) {
+		set(logger, time, execTime, error, statement);
+	}
+
+	AuditEvent(AuditLogger logger, long time, long execTime, String error, List<BoundStatement> statements) {
+		this.logger = logger;
+		this.time = time;
+		this.execTime = execTime;
+		this.error = error;
+		this.statement = null;
+		this.statements = statements;
+		this.batch = true;
+		this.shard = -1;
+		int size = 0;
+		for (BoundStatement bs : statements) {
+			size += estimateSize(bs);
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Sets up a recycled event for the given mutation.
+	 *
+	 * @param logger the mutated entity's audit logger
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param statement mutation statement
+	 * @return this event
+	 */
+	AuditEvent set(AuditLogger logger, long time, long execTime, String error, BoundStatement statement) {
+		this.logger = logger;
+		this.time = time;
+		this.execTime = execTime;
+		this.error = error;
+		this.statement = statement;
+		this.statements = null;
+		this.batch = false;
+		this.shard = -1;
+		this.size = estimateSize(statement);
+		return this;
+	}
+
+	/**
+	 * Orders the event after the pending events of the same shard, e.g. the
+	 * events of the same row. Events of different shards, and events without
+	 * one, may be processed concurrently.
+	 *
+	 * @param shard non-negative shard, {@code -1} if the event is not ordered
+	 * @return this event
+	 */
+	AuditEvent shard(int shard) {
+		this.shard = shard;
+		return this;
+	}
+
+	/**
+	 * Returns the event's shard, {@code -1} if the event is not ordered.
+	 */
+	int getShard() {
+		return shard;
+	}
+
+	/**
+	 * Releases the event's references once it has been processed or discarded,
+	 * so that a recycled event does not retain them.
+	 */
+	void clear() {
+		discard();
+		this.logger = null;
+		this.error = null;
+		this.statement = null;
+		this.statements = null;
+		this.prepared = null;
+	}
+
+	/**
+	 * Completes the audit action by passing the event to its {@link AuditLogger}.
+	 */
+	void process() {
+		try {
+			restore();
+			if (statements == null) {
+				AbstractAuditLogger.log(logger, time, execTime, error, statement);
+			} else if (logger instanceof BatchAuditLogger) {
+				((BatchAuditLogger)logger).logBatch(time, execTime, error, statements);
+			} else {
+				for (BoundStatement bs : statements) {
+					AbstractAuditLogger.log(logger, time, execTime, error, bs);
+				}
+			}
+		} finally {
+			discard();
+		}
+	}
+
+	/**
+	 * Sets the event aside when it overflows the audit queue, if the
+	 * event's {@link AuditLogger} supports it. Otherwise the event is processed.
+	 */
+	void spill() {
+		if (!(logger instanceof Spillable)) {
+			process();
+			return;
+		}
+		try {
+			restore();
+			if (statements == null) {
+				((Spillable)logger).spill(time, execTime, error, statement);
+			} else {
+				for (BoundStatement bs : statements) {
+					((Spillable)logger).spill(time, execTime, error, bs);
+				}
+			}
+		} finally {
+			discard();
+		}
+	}
+
+	/**
+	 * Moves the bound values of the event's statements into a slab region of
+	 * the given pool, so that the pending event does not retain them on the heap.
+	 * The event stays on the heap if its values do not fit a slab or no slab
+	 * is available. Once moved, the event's {@linkplain #estimatedSize() size}
+	 * only counts its references to the statements' {@link PreparedStatement}s.
+	 *
+	 * @param pool slab pool
+	 * @return {@code true} if the values have been moved
+	 */
+	boolean moveOffHeap(AuditSlabPool pool) {
+		List<BoundStatement> all = batch ? statements : Collections.singletonList(statement);
+		int length = 0;
+		for (BoundStatement bs : all) {
+			int variables = bs.preparedStatement().getVariables().size();
+			length += 4 + 4 * variables;
+			for (int i = 0; i < variables; i++) {
+				ByteBuffer value = bs.getBytesUnsafe(i);
+				if (value != null) {
+					length += value.remaining();
+				}
+			}
+		}
+		AuditSlabPool.Region region = pool.acquire(length);
+		if (region == null) {
+			return false;
+		}
+		ByteBuffer buffer = region.buffer;
+		PreparedStatement[] prepared = new PreparedStatement[all.size()];
+		for (int s = 0; s < prepared.length; s++) {
+			BoundStatement bs = all.get(s);
+			prepared[s] = bs.preparedStatement();
+			int variables = prepared[s].getVariables().size();
+			buffer.putInt(variables);
+			for (int i = 0; i < variables; i++) {
+				ByteBuffer value = bs.getBytesUnsafe(i);
+				if (value == null) {
+					buffer.putInt(-1);
+				} else {
+					buffer.putInt(value.remaining());
+					buffer.put(value);
+				}
+			}
+		}
+		buffer.flip();
+		this.prepared = prepared;
+		this.region = region;
+		this.pool = pool;
+		this.statement = null;
+		this.statements = null;
+		this.size = OVERHEAD + REFERENCE * prepared.length;
+		return true;
+	}
+
+	/**
+	 * Releases the event's slab region, if any, once the event has been
+	 * processed or when it is discarded without being processed.
+	 */
+	void discard() {
+		if (region != null) {
+			pool.release(region);
+			region = null;
+		}
+	}
+
+	/**
+	 * Binds the event's statements again from the values held off-heap. A
+	 * {@link BorrowingAuditLogger} is handed values in the slab region, which
+	 * is released once the event is processed. Other loggers may retain the
+	 * values, they are copied to the heap at once and the region is released.
+	 */
+	private void restore() {
+		if (prepared == null) {
+			return;
+		}
+		ByteBuffer values = region.buffer;
+		if (!(logger instanceof BorrowingAuditLogger)) {
+			values = ByteBuffer.allocate(values.remaining()).put(values);
+			values.flip();
+			discard();
+		}
+		List<BoundStatement> restored = new ArrayList<BoundStatement>(prepared.length);
+		for (PreparedStatement ps : prepared) {
+			BoundStatement bs = ps.bind();
+			int variables = values.getInt();
+			for (int i = 0; i < variables; i++) {
+				int length = values.getInt();
+				if (length < 0) {
+					bs.setBytesUnsafe(i, null);
+				} else {
+					int end = values.position() + length;
+					values.limit(end);
+					bs.setBytesUnsafe(i, values.slice());
+					values.limit(values.capacity());
+					values.position(end);
+				}
+			}
+			restored.add(bs);
+		}
+		if (batch) {
+			statements = restored;
+		} else {
+			statement = restored.get(0);
+		}
+		prepared = null;
+	}
+
+	/**
+	 * Returns an estimate of the memory retained by this event in bytes.
+	 */
+	int estimatedSize() {
+		return size;
+	}
+
+	private static int estimateSize(BoundStatement statement) {
+		int size = OVERHEAD;
+		int variables = statement.preparedStatement().getVariables().size();
+		for (int i = 0; i < variables; i++) {
+			ByteBuffer value = statement.getBytesUnsafe(i);
+			if (value != null) {
+				size += value.remaining();
+			}
+		}
+		return size;
+	}
+}
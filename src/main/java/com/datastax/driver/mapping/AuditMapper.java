@@ -1,34 +1,60 @@
 package com.datastax.driver.mapping;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.mapping.annotations.Table;
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import io.smartcat.cassandra_audit.AuditBucket;
+import io.smartcat.cassandra_audit.AuditClustering;
+import io.smartcat.cassandra_audit.AuditConfiguration;
+import io.smartcat.cassandra_audit.AuditManager;
+import io.smartcat.cassandra_audit.AuditMetrics;
+import io.smartcat.cassandra_audit.AuditSampling;
+import io.smartcat.cassandra_audit.AuditSink;
+import io.smartcat.cassandra_audit.AuditValueFormat;
 import io.smartcat.cassandra_audit.Auditable;
+import io.smartcat.cassandra_audit.OverflowPolicy;
 
 public class AuditMapper<T> extends Mapper<T> {
 
-	private static int EXECUTOR_NO_THREADS = 10;
-	private static ExecutorService executor = Executors.newFixedThreadPool(EXECUTOR_NO_THREADS);
+	private static final Function<Object, Void> NOOP = new Function<Object, Void>() {
+		@Override
+		public Void apply(Object input) {
+			return null;
+		}
+	};
 
 	class AuditOptions {
 		boolean auditable;
+		String entityName;
 		String tableName;
 		String keyspaceName;
+		AuditValueFormat valueFormat;
+		AuditBucket bucket;
+		AuditClustering clustering;
+		AuditSampling sampling;
+		boolean changesOnly;
 		
-		AuditOptions(Class<T> klass) {
+		AuditOptions(Class<T> klass, AuditConfiguration configuration) {
 			Auditable annotation = klass.getAnnotation(Auditable.class);
 			Table table = klass.getAnnotation(Table.class);
 			if (annotation != null && table != null) {
 				this.auditable = true;
+				this.entityName = CassandraAuditLogger.entityName(mapper);
 				this.tableName = annotation.tableName();
 				if (this.tableName.isEmpty()) {
 					this.tableName = annotation.tablePrefix() + table.name();
@@ -37,6 +63,14 @@ public class AuditMapper<T> extends Mapper<T> {
 				if (this.keyspaceName.isEmpty()) {
 					this.keyspaceName = mapper.getKeyspace();
 				}
+				this.valueFormat = annotation.valueFormat();
+				this.bucket = annotation.bucket();
+				this.clustering = annotation.clustering();
+				this.sampling = configuration.getSampling(this.entityName);
+				if (this.sampling == null) {
+					this.sampling = AuditSampling.of(annotation);
+				}
+				this.changesOnly = annotation.changesOnly();
 			} else {
 				this.auditable = false;
 			} 			
@@ -45,11 +79,27 @@ public class AuditMapper<T> extends Mapper<T> {
 	
 	AuditOptions auditOptions;
     private AuditLogger auditLogger;
+    private final AuditConfiguration configuration;
+    private final AuditDispatcher dispatcher;
+    private final AuditMetrics.EntityMetrics metrics;
+    private final AuditSampler sampler;
+    // primary key columns ordering the events of a row, null unless only changes are audited
+    private final List<String> keyColumns;
     
 	public AuditMapper(MappingManager manager, Class<T> klass, EntityMapper<T> mapper) {
 		super(manager, klass, mapper);
-        this.auditOptions = new AuditOptions(klass);
-        this.auditLogger = CassandraAuditLogger.getInstance(manager.getSession());
+        this.configuration = AuditManager.getConfiguration(manager.getSession());
+        this.auditOptions = new AuditOptions(klass, this.configuration);
+        this.dispatcher = AuditDispatcher.forSession(manager.getSession());
+        this.auditLogger = this.configuration.getSink() == AuditSink.FILE
+        		? FileAuditLogger.forSession(manager.getSession())
+        		: CassandraAuditLogger.getInstance(manager.getSession());
+        this.metrics = this.auditOptions.auditable 
+        		? AuditManager.getMetrics(manager.getSession()).entity(this.auditOptions.entityName) : null;
+        this.sampler = this.auditOptions.auditable && !this.auditOptions.sampling.isNone()
+        		? new AuditSampler(this.auditOptions.sampling) : null;
+        this.keyColumns = this.auditOptions.auditable && this.auditOptions.changesOnly
+        		? CassandraAuditLogger.getKeyColumns(mapper) : null;
         if (this.auditOptions.auditable) {
         	this.auditLogger.init(this);
         }
@@ -60,16 +110,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public void save(T entity) {
-		final long start = System.nanoTime();
-		try {
-			super.save(entity);
-			final long execTime = System.nanoTime() - start;
-			auditSave(execTime, null, entity);			
-		} catch (Exception err) {
-			final long execTime = System.nanoTime() - start;
-			auditSave(execTime, err.getMessage(), entity);
-			throw err;
-		}
+		execute(System.nanoTime(), saveQuery(entity));
 	}
 
 	/* (non-Javadoc)
@@ -77,16 +118,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public void save(T entity, Option... options) {
-		final long start = System.nanoTime();
-		try {
-			super.save(entity, options);
-			final long execTime = System.nanoTime() - start;
-			auditSave(execTime, null, entity, options);			
-		} catch (Exception err) {
-			final long execTime = System.nanoTime() - start;
-			auditSave(execTime, err.getMessage(), entity, options);
-			throw err;
-		}		
+		execute(System.nanoTime(), saveQuery(entity, options));
 	}
 
 
@@ -95,23 +127,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public ListenableFuture<Void> saveAsync(final T entity) {
-		final long start = System.nanoTime();
-		ListenableFuture<Void> res = super.saveAsync(entity);
-    	Futures.addCallback(res, new FutureCallback<Void>() {
-			@Override
-			public void onFailure(Throwable err) {
-				final long execTime = System.nanoTime() - start;
-				auditSave(execTime, err.getMessage(), entity);				
-			}
-
-			@Override
-			public void onSuccess(Void arg0) {
-				final long execTime = System.nanoTime() - start;
-				auditSave(execTime, null, entity);
-			}
-		});		
-
-		return res;
+		return executeAsync(System.nanoTime(), saveQuery(entity));
 	}
 
 
@@ -120,23 +136,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public ListenableFuture<Void> saveAsync(final T entity, final Option... options) {
-		final long start = System.nanoTime();
-		ListenableFuture<Void> res = super.saveAsync(entity, options);
-    	Futures.addCallback(res, new FutureCallback<Void>() {
-			@Override
-			public void onFailure(Throwable err) {
-				final long execTime = System.nanoTime() - start;
-				auditSave(execTime, err.getMessage(), entity, options);
-			}
-
-			@Override
-			public void onSuccess(Void arg0) {
-				final long execTime = System.nanoTime() - start;
-				auditSave(execTime, null, entity, options);
-			}
-		});			
-		
-		return res;
+		return executeAsync(System.nanoTime(), saveQuery(entity, options));
 	}
 
 
@@ -145,16 +145,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public void delete(T entity) {
-		final long start = System.nanoTime();
-		try {
-			super.delete(entity);
-			final long execTime = System.nanoTime() - start;
-			auditDelete(execTime, null, entity);			
-		} catch (Exception err) {
-			final long execTime = System.nanoTime() - start;
-			auditDelete(execTime, err.getMessage(), entity);
-			throw err;
-		}		
+		execute(System.nanoTime(), deleteQuery(entity));
 	}
 
 
@@ -163,16 +154,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public void delete(T entity, Option... options) {
-		final long start = System.nanoTime();
-		try {
-			super.delete(entity, options);
-			final long execTime = System.nanoTime() - start;
-			auditDelete(execTime, null, entity, options);			
-		} catch (Exception err) {
-			final long execTime = System.nanoTime() - start;
-			auditDelete(execTime, err.getMessage(), entity, options);
-			throw err;
-		}		
+		execute(System.nanoTime(), deleteQuery(entity, options));
 	}
 
 
@@ -181,23 +163,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public ListenableFuture<Void> deleteAsync(final T entity) {
-		final long start = System.nanoTime();
-		ListenableFuture<Void> res = super.deleteAsync(entity);
-    	Futures.addCallback(res, new FutureCallback<Void>() {
-			@Override
-			public void onFailure(Throwable err) {
-				final long execTime = System.nanoTime() - start;
-				auditDelete(execTime, err.getMessage(), entity);
-			}
-
-			@Override
-			public void onSuccess(Void arg0) {
-				final long execTime = System.nanoTime() - start;
-				auditDelete(execTime, null, entity);
-			}
-		});		
-
-		return res;
+		return executeAsync(System.nanoTime(), deleteQuery(entity));
 	}
 
 
@@ -206,23 +172,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public ListenableFuture<Void> deleteAsync(final T entity, final Option... options) {
-		final long start = System.nanoTime();
-		ListenableFuture<Void> res = super.deleteAsync(entity, options);
-    	Futures.addCallback(res, new FutureCallback<Void>() {
-			@Override
-			public void onFailure(Throwable err) {
-				final long execTime = System.nanoTime() - start;
-				auditDelete(execTime, err.getMessage(), entity, options);
-			}
-
-			@Override
-			public void onSuccess(Void arg0) {
-				final long execTime = System.nanoTime() - start;
-				auditDelete(execTime, null, entity, options);
-			}
-		});		
-		
-		return res;
+		return executeAsync(System.nanoTime(), deleteQuery(entity, options));
 	}
 
 
@@ -231,16 +181,7 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public void delete(Object... objects) {
-		final long start = System.nanoTime();
-		try {
-			super.delete(objects);
-			final long execTime = System.nanoTime() - start;
-			auditDelete(execTime, null, objects);			
-		} catch (Exception err) {
-			final long execTime = System.nanoTime() - start;
-			auditDelete(execTime, err.getMessage(), objects);
-			throw err;
-		}		
+		execute(System.nanoTime(), deleteQuery(objects));
 	}
 
 
@@ -249,97 +190,184 @@ public class AuditMapper<T> extends Mapper<T> {
 	 */
 	@Override
 	public ListenableFuture<Void> deleteAsync(final Object... objects) {
-		final long start = System.nanoTime();
-		ListenableFuture<Void> res = super.deleteAsync(objects);
-    	Futures.addCallback(res, new FutureCallback<Void>() {
+		return executeAsync(System.nanoTime(), deleteQuery(objects));
+	}
+
+	/**
+	 * Executes the given mutation statement and audits the very same
+	 * statement, so the entity is bound only once per mutation.
+	 * 
+	 * @param start mutation start time as returned by {@link System#nanoTime()}
+	 * @param statement mutation statement
+	 */
+	private void execute(final long start, final Statement statement) {
+		try {
+			session().execute(statement);
+			audit(System.nanoTime() - start, null, statement, true);
+		} catch (Exception err) {
+			audit(System.nanoTime() - start, err.getMessage(), statement, true);
+			throw err;
+		}
+	}
+
+	/**
+	 * Asynchronously executes the given mutation statement and audits
+	 * it once the execution completes, see {@link #completionExecutor()}.
+	 * An audit on the driver's I/O thread does not wait for room in the
+	 * audit queue.
+	 * 
+	 * @param start mutation start time as returned by {@link System#nanoTime()}
+	 * @param statement mutation statement
+	 * @return a future completed when the mutation completes
+	 */
+	private ListenableFuture<Void> executeAsync(final long start, final Statement statement) {
+		ResultSetFuture res = session().executeAsync(statement);
+		Futures.addCallback(res, new FutureCallback<ResultSet>() {
 			@Override
 			public void onFailure(Throwable err) {
-				final long execTime = System.nanoTime() - start;
-				auditDelete(execTime, err.getMessage(), objects);
+				audit(System.nanoTime() - start, err.getMessage(), statement, false);
 			}
 
 			@Override
-			public void onSuccess(Void arg0) {
-				final long execTime = System.nanoTime() - start;
-				auditDelete(execTime, null, objects);
+			public void onSuccess(ResultSet rs) {
+				audit(System.nanoTime() - start, null, statement, false);
 			}
-		});		
-		return res;
+		}, completionExecutor());
+		return Futures.transform(res, NOOP);
 	}
-    
-    private void auditSave(final long execTime, final String error, T entity) {
-    	auditSaveAsync(execTime, error, entity, (Mapper.Option[])null);
-    }
-    
-    private void auditSave(final long execTime, final String error, T entity, Option... options) {
-    	auditSaveAsync(execTime, error, entity, options);
-    }
-    
-    private void auditDelete(final long execTime, final String error, T entity) {
-    	auditDeleteAsync(execTime, error, entity, (Object[])null);
-    }
-    
-    private void auditDelete(final long execTime,  final String error, T entity, Option... options) {
-    	auditDeleteAsync(execTime, error, entity, (Object[])options);
-    }
-    
-    private void auditDelete(final long execTime, final String error, Object... objects) {
-    	auditDeleteAsync(execTime, error, null, objects);
-    }
-    
-    private void auditSaveAsync(final long execTime, final String error, final T entity, final Option... options) {
-    	if (auditOptions.auditable) {
-    		// execute the rest of audit action asynchronously  
-			Future<Void> task = executor.submit(new Callable<Void>() {
-				@Override
-				public Void call() throws Exception {
-					auditSaveExec(execTime, error, entity, options);
-					return null;
+
+	/**
+	 * Returns the executor auditing asynchronous mutations once they complete.
+	 * Fire-and-forget audits are handed to the audit queue right away on the
+	 * driver's I/O thread completing the mutation. Audits that may block, i.e.
+	 * synchronous audits and audits spilling on overflow, run on the session's
+	 * completion executor instead.
+	 * 
+	 * @return executor of the audit callbacks
+	 */
+	Executor completionExecutor() {
+		if (configuration.isSynchronous() || dispatcher.getBuffer().getPolicy() == OverflowPolicy.SPILL) {
+			return dispatcher.getCompletionExecutor();
+		}
+		return MoreExecutors.sameThreadExecutor();
+	}
+
+	private void audit(final long execTime, final String error, final Statement statement, boolean block) {
+		if (auditOptions.auditable) {
+			BoundStatement bs = (BoundStatement)statement;
+			audit(execTime, error, bs, CassandraAuditLogger.getMutationType(bs.preparedStatement().getQueryString()),
+					block);
+		}
+	}
+
+	/**
+	 * Hands an executed mutation of this mapper's entity to the audit pipeline.
+	 * 
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param bs mutation statement
+	 * @param mutationType mutation type
+	 * @param block {@code false} if the caller, e.g. a driver I/O thread, must
+	 *        not wait for room in the audit queue
+	 */
+	void audit(long execTime, String error, BoundStatement bs, String mutationType, boolean block) {
+		if (!admit(execTime, error, mutationType)) {
+			return;
+		}
+		// wall clock time the mutation started at
+		long time = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(execTime);
+		if (configuration.isSynchronous()) {
+			AbstractAuditLogger.log(auditLogger, time, execTime, error, bs);
+		} else if (!dispatcher.dispatch(dispatcher.event(auditLogger, time, execTime, error, bs).shard(shard(bs)),
+				block) && dispatcher.getBuffer().getPolicy() != OverflowPolicy.SPILL) {
+			// execute the rest of audit action asynchronously, unless the event is dropped
+			metrics.dropped();
+		}
+	}
+	
+	/**
+	 * Hands the executed mutations of a batch to the audit pipeline as a
+	 * single audit event, so that their audit rows are written together.
+	 * 
+	 * @param execTime batch execution time in nanoseconds
+	 * @param error batch error message, {@code null} if the batch succeeded
+	 * @param statements the batch's audited mutation statements
+	 * @param mappers for each statement, the mapper of the mutated entity
+	 * @param mutationTypes for each statement, the mutation type
+	 * @param block {@code false} if the caller must not wait for room in the audit queue
+	 */
+	static void audit(long execTime, String error, List<BoundStatement> statements, 
+			List<AuditMapper<?>> mappers, List<String> mutationTypes, boolean block) {
+		List<BoundStatement> admitted = new ArrayList<BoundStatement>(statements.size());
+		List<AuditMapper<?>> admittedMappers = new ArrayList<AuditMapper<?>>(statements.size());
+		int shard = -1;
+		for (int i = 0; i < statements.size(); i++) {
+			if (mappers.get(i).admit(execTime, error, mutationTypes.get(i))) {
+				admitted.add(statements.get(i));
+				admittedMappers.add(mappers.get(i));
+				if (shard < 0) {
+					// ordered with the events of the first row whose changes are audited,
+					// the batch's other rows are ordered only if they share its shard
+					shard = mappers.get(i).shard(statements.get(i));
 				}
-			});
-			try {
-				task.get();
-			} catch (InterruptedException | ExecutionException e) {
-				throw new RuntimeException("An error occured while executing audit.", e);
 			}
-    	}
-    }
-    
-    private void auditDeleteAsync(final long execTime, final String error, final T entity, final Object... objects) {
-    	if (auditOptions.auditable) {
-    		// execute the rest of audit action asynchronously
-			Future<Void> task = executor.submit(new Callable<Void>() {
-				@Override
-				public Void call() throws Exception {
-					auditDeleteExec(execTime, error, entity, objects);
-					return null;
-				}
-			});
-			try {
-				task.get();
-			} catch (InterruptedException | ExecutionException e) {
-				throw new RuntimeException("An error occured while executing audit.", e);
-			}			
-    	}    	
-    }
-     
-    private void auditSaveExec(final long execTime, final String error, final T entity, final Option... options) {    	
-    	BoundStatement bs;
-    	if (options == null) {
-    		bs = (BoundStatement)saveQuery(entity);
-    	} else {
-    		bs = (BoundStatement)saveQuery(entity, options);
-    	}
-    	auditLogger.log(execTime, error, bs);
-    } 
-    
-    private void auditDeleteExec(final long execTime, final String error, final T entity, final Object... objects) {
-    	BoundStatement bs;
-    	if (objects == null) {
-    		bs = (BoundStatement)deleteQuery(entity);
-    	} else {
-    		bs = (BoundStatement)deleteQuery(entity, objects);
-    	}    
-    	auditLogger.log(execTime, error, bs);
-    }
+		}
+		if (admitted.isEmpty()) {
+			return;
+		}
+		// the mappers of a session share the audit pipeline
+		AuditMapper<?> mapper = admittedMappers.get(0);
+		long time = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(execTime);
+		AuditEvent event = new AuditEvent(mapper.auditLogger, time, execTime, error, admitted).shard(shard);
+		if (mapper.configuration.isSynchronous()) {
+			event.process();
+		} else if (!mapper.dispatcher.dispatch(event, block)
+				&& mapper.dispatcher.getBuffer().getPolicy() != OverflowPolicy.SPILL) {
+			for (AuditMapper<?> admittedMapper : admittedMappers) {
+				admittedMapper.metrics.dropped();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the shard ordering the audit events of the row mutated by the
+	 * given statement, if only the entity's changes are audited, so that the
+	 * row's mutations are compared with its audited state in order.
+	 * 
+	 * @param bs mutation statement
+	 * @return non-negative hash of the row's primary key, {@code -1} if the
+	 *         events of the entity are not ordered
+	 */
+	private int shard(BoundStatement bs) {
+		if (keyColumns == null) {
+			return -1;
+		}
+		ColumnDefinitions variables = bs.preparedStatement().getVariables();
+		int hash = 0;
+		for (String column : keyColumns) {
+			int i = variables.getIndexOf(column);
+			ByteBuffer value = i >= 0 ? bs.getBytesUnsafe(i) : null;
+			hash = 31 * hash + (value != null ? value.hashCode() : 0);
+		}
+		return hash & Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Records an executed mutation and decides, by the entity's sampling,
+	 * whether it is audited.
+	 * 
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param mutationType mutation type
+	 * @return {@code true} if the mutation is audited
+	 */
+	private boolean admit(long execTime, String error, String mutationType) {
+		metrics.mutation(mutationType, execTime);
+		if (sampler != null && !sampler.sample(error != null)) {
+			metrics.skipped();
+			return false;
+		}
+		metrics.enqueued();
+		return true;
+	}
 }
@@ -1,50 +1,66 @@
 package com.datastax.driver.mapping;
 
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 
-import net.bytebuddy.implementation.bind.annotation.Origin;
+import com.google.common.base.Throwables;
+
 import net.bytebuddy.implementation.bind.annotation.RuntimeType;
 import net.bytebuddy.implementation.bind.annotation.This;
 
 /**
  * A ButeBuddy intercepter/delegation class for instrumenting
  * {@link MappingManager} in order to enable auditing.
+ * <p>
+ * Mappers are cached in the manager's own copy-on-write map, which is
+ * read through a method handle resolved once, so looking up a created
+ * mapper takes no reflection and no locking.
+ * <p>
+ * The agent inspects this class while {@link MappingManager} is being
+ * loaded, and inspecting a class resolves the types of its method
+ * signatures, so no signature may mention {@link MappingManager}: managers
+ * are passed as {@link Object}. Method bodies and the static initializer
+ * may link against {@link MappingManager} directly, as they only run once
+ * an instrumented manager calls the intercepter.
  */
 public class AuditMappingManagerInterceptor {
 
+	private static final MethodHandle MAPPERS_GETTER = mappersAccessor(false);
+	private static final MethodHandle MAPPERS_SETTER = mappersAccessor(true);
+
 	/**
 	 * Intercepter method for {@link MappingManager#getMapper} method that
 	 * modifies behavior of the original factory method and returns
 	 * {@link AuditManager} instance instead of {@link Mapper}.
 	 * 
-	 * @param klass
-	 * @param manager
-	 * @param managerClass
-	 * @return
+	 * @param klass the entity class
+	 * @param manager the {@link MappingManager} creating the mapper
+	 * @return the manager's mapper of the entity
 	 */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @SuppressWarnings("unchecked")
     @RuntimeType
-    public static <T> Mapper<T> getMapper(Class<T> klass, @This Object manager, @Origin Class managerClass) {
-    	Map<Class<?>, Mapper<?>> mappers = getMappers(manager, managerClass);
-        Mapper<T> mapper = (Mapper<T>)mappers.get(klass);
+    public static <T> Mapper<T> getMapper(Class<T> klass, @This Object manager) {
+    	Mapper<T> mapper = (Mapper<T>)getMappers(manager).get(klass);
         if (mapper == null) {
-            synchronized (mappers) {
+            // created outside the lock, so that mappers created at once set up their
+            // audit tables at once, a mapper created concurrently for the same entity
+            // is discarded, the entity's audit table is set up once
+            MappingManager mappingManager = (MappingManager)manager;
+            EntityMapper<T> entityMapper = AnnotationParser.parseEntity(klass, ReflectionMapper.factory(), 
+            		mappingManager);
+            Mapper<T> newMapper = new AuditMapper<T>(mappingManager, klass, entityMapper);
+            synchronized (manager) {
+                Map<Class<?>, Mapper<?>> mappers = getMappers(manager);
                 mapper = (Mapper<T>)mappers.get(klass);
                 if (mapper == null) {
-                    EntityMapper<T> entityMapper = getEntityMapper(klass, manager);
-                    try {
-						mapper = (Mapper<T>)instrumentMapper(manager, klass, entityMapper);
-					} catch (Exception e) {
-						throw new IllegalArgumentException(e);
-					}
+                    mapper = newMapper;
                     Map<Class<?>, Mapper<?>> newMappers = new HashMap<Class<?>, Mapper<?>>(mappers);
                     newMappers.put(klass, mapper);
-                    mappers = newMappers;
+                    setMappers(manager, newMappers);
                 }
             }
         }
@@ -52,85 +68,47 @@ public class AuditMappingManagerInterceptor {
     }
     
     /**
-     * A helper method for invoking {@link AnnotationParser#parseEntity(Class, com.datastax.driver.mapping.EntityMapper.Factory, MappingManager)}
-     * method using reflection.
+     * Returns the mappers cached by the given manager, a copy-on-write map
+     * held in the private field {@link MappingManager#mappers}.
      * 
-     * @param klass the entity's class object
      * @param manager a reference to the {@link MappingManager} instance
-     * @return an instance of {@link EntityMapper} for the given entity class
+     * @return value of the given manager's private field {@code mappers}
      */
     @SuppressWarnings("unchecked")
-	private static <T> EntityMapper<T> getEntityMapper(Class<T> klass, Object manager) {
-    	Method[] methods = AnnotationParser.class.getDeclaredMethods();
-    	Method parseEntityMethod = null;
-    	
-    	for (Method m : methods) {
-    		if ("parseEntity".equals(m.getName())) {
-    			parseEntityMethod = m;
-    		}
-    	}
-    	if (parseEntityMethod != null) {
-    		try {
-				return (EntityMapper<T>)parseEntityMethod.invoke(manager, klass, ReflectionMapper.factory(), manager);
-			} catch (IllegalAccessException | InvocationTargetException e) {
-				throw new IllegalArgumentException(e);
-			}
-    	} else {
-    		throw new IllegalStateException("Unable to find AnnotationParser.parseEntity method.");
-    	}
+	static Map<Class<?>, Mapper<?>> getMappers(Object manager) {
+        try {
+            return (Map<Class<?>, Mapper<?>>)MAPPERS_GETTER.invokeExact(manager);
+        } catch (Throwable t) {
+        	throw Throwables.propagate(t);
+        }
     }
     
     /**
-     * A helper method for obtaining a reference to the private field {@link MappingManager#mappers} using
-     * reflection.
+     * Replaces the private field {@link MappingManager#mappers}, so that
+     * the created mapper is cached by the manager.
      * 
      * @param manager a reference to the {@link MappingManager} instance
-     * @param managerClass a reference to the {@link MappingManager} class object 
-     * @return value of the given manager's private field {@code mappers}
+     * @param mappers the manager's new mappers
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-	private static Map<Class<?>, Mapper<?>> getMappers(Object manager, Class managerClass) {
-        Field f = null;
-        Map<Class<?>, Mapper<?>> val = null;
+	private static void setMappers(Object manager, Map<Class<?>, Mapper<?>> mappers) {
         try {
-            f = managerClass.getDeclaredField("mappers");
-            f.setAccessible(true);
-            val = (Map<Class<?>, Mapper<?>>)f.get(manager);
-        } catch (NoSuchFieldException nsfe) {
-        	throw new IllegalStateException(nsfe);
-        } catch (IllegalAccessException e) {
-        	throw new IllegalStateException(e);
-		}
-        return val;
+            MAPPERS_SETTER.invokeExact(manager, mappers);
+        } catch (Throwable t) {
+        	throw Throwables.propagate(t);
+        }
     }
     
-    /**
-     * Instantiate {@link AuditMapper} using reflection in order to avoid
-     * mentioning {@link MappingManager} class. This is necessary because
-     * this action is executed in the process of {@link MappingManager} 
-     * instrumentation.  
-     *  
-     * @param manager a reference to the originating {@link MappingManager} instance 
-     * @param klass the entity class 
-     * @param mapper a respective {@link EntityManager}
-     * @return a {@link AuditManager} instance
-     * @throws Exception
-     */
-    @SuppressWarnings("unchecked")
-	private static <T> Mapper<T> instrumentMapper(Object manager, Class<T> klass, EntityMapper<T> mapper) {   	
-    	@SuppressWarnings("rawtypes")
-		Constructor[] ctors = AuditMapper.class.getDeclaredConstructors();
-    	
-    	@SuppressWarnings("rawtypes")
-		Constructor ctor = ctors[0];
-    	ctor.setAccessible(true);
-    	
-    	try {
-			return (Mapper<T>)ctor.newInstance(manager, klass, mapper);
-		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException e) {
-			throw new IllegalStateException("Unable to instantiate AuditMapper.", e);
+	private static MethodHandle mappersAccessor(boolean setter) {
+		try {
+			Field f = MappingManager.class.getDeclaredField("mappers");
+			f.setAccessible(true);
+			// typed over Object, as managers are passed as such
+			return setter 
+					? MethodHandles.lookup().unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, Map.class)) 
+					: MethodHandles.lookup().unreflectGetter(f).asType(MethodType.methodType(Map.class, Object.class));
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new IllegalStateException("Unable to access MappingManager.mappers.", e);
 		}
-    }    
+	}
 
 }
@@ -0,0 +1,182 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+
+import io.smartcat.cassandra_audit.AuditBucket;
+import io.smartcat.cassandra_audit.AuditClustering;
+import io.smartcat.cassandra_audit.AuditValueFormat;
+
+/**
+ * Precompiled mapping from the bound variables of a mutation statement to
+ * the audit insert statement of the mutated entity. A plan is computed once
+ * per mutation {@link PreparedStatement}, so that auditing a mutation copies
+ * values by index without any column name lookups, and resolves the mutation
+ * type and the audited entity of the statement once. Plans are cached by
+ * statement identity: a re-prepared statement gets a plan of its own, and
+ * the plans of an entity are dropped when the entity is registered again.
+ */
+final class AuditPlan {
+
+	// positions of the audit columns following the key columns in the audit insert
+	static final int TIMESTAMP = 0;
+	static final int MUTATION_TYPE = 1;
+	static final int EXEC_TIME = 2;
+	static final int ERROR = 3;
+	static final int CQL_STRING = 4;
+	static final int STATEMENT_VALUES = 5;
+	static final int BUCKET = 6;
+
+	/**
+	 * Audit insert statement of the mutated entity, {@code null} if audit
+	 * events are not stored in Cassandra.
+	 */
+	final PreparedStatement auditStatement;
+
+	/**
+	 * Number of key columns of the audit insert statement.
+	 */
+	final int keyCount;
+
+	/**
+	 * For each mutation variable, the index of the respective key column in
+	 * the audit insert statement, or -1 if the variable is not a key column.
+	 */
+	final int[] keyTargets;
+
+	/**
+	 * Mutation variables whose values are not included into the audit log.
+	 */
+	final BitSet excluded;
+
+	/**
+	 * Format of the audit values.
+	 */
+	final AuditValueFormat valueFormat;
+
+	/**
+	 * Time bucket of the audit table's partition key.
+	 */
+	final AuditBucket bucket;
+
+	/**
+	 * Type of the audit table's clustering column.
+	 */
+	final AuditClustering clustering;
+
+	/**
+	 * For each mutation variable, the column name.
+	 */
+	final String[] columnNames;
+
+	/**
+	 * For each mutation variable, the column name prefix used in the {@link AuditValueFormat#TEXT} values.
+	 */
+	final String[] valuePrefixes;
+
+	/**
+	 * Mutation variables of a text type, whose serialized values are their
+	 * {@link AuditValueFormat#TEXT} representation as they are.
+	 */
+	final BitSet textual;
+
+	/**
+	 * Mutation type of the mutation statement.
+	 */
+	final String mutationType;
+
+	/**
+	 * Serialized mutation type, shared by the audit inserts of all mutations.
+	 */
+	final ByteBuffer mutationTypeBytes;
+
+	/**
+	 * Serialized query string of the mutation statement, shared by the audit
+	 * inserts of all mutations.
+	 */
+	final ByteBuffer cqlBytes;
+
+	/**
+	 * For each mutation variable, the index of the column's hash in the
+	 * entity's {@link AuditStateCache} state, or -1 if the variable is a key
+	 * column or excluded. {@code null} unless only changes are audited.
+	 */
+	final int[] stateSlots;
+
+	/**
+	 * Number of column hashes of the entity's state.
+	 */
+	final int stateSize;
+
+	/**
+	 * Compiles a plan for the given mutation statement.
+	 *
+	 * @param mutation the mutation's prepared statement
+	 * @param auditStatement the entity's audit insert statement, may be {@code null}
+	 * @param keyColumns the entity's primary key column names in audit insert order
+	 * @param excludedColumns names of the entity's columns excluded from the audit log
+	 * @param valueFormat format of the audit values
+	 * @param bucket time bucket of the audit table's partition key
+	 * @param clustering type of the audit table's clustering column
+	 * @param stateColumns the entity's non-key column names whose changes are audited,
+	 *        {@code null} to audit all values of every mutation
+	 */
+	AuditPlan(PreparedStatement mutation, PreparedStatement auditStatement,
+			List<String> keyColumns, List<String> excludedColumns, AuditValueFormat valueFormat,
+			AuditBucket bucket, AuditClustering clustering, List<String> stateColumns) {
+		this.auditStatement = auditStatement;
+		this.keyCount = keyColumns.size();
+		this.valueFormat = valueFormat;
+		this.bucket = bucket;
+		this.clustering = clustering;
+		this.mutationType = CassandraAuditLogger.getMutationType(mutation.getQueryString());
+		this.mutationTypeBytes = utf8(mutationType);
+		this.cqlBytes = utf8(mutation.getQueryString());
+
+		ColumnDefinitions variables = mutation.getVariables();
+		int size = variables.size();
+		this.keyTargets = new int[size];
+		this.excluded = new BitSet(size);
+		this.columnNames = new String[size];
+		this.valuePrefixes = new String[size];
+		this.textual = new BitSet(size);
+		this.stateSlots = stateColumns != null ? new int[size] : null;
+		this.stateSize = stateColumns != null ? stateColumns.size() : 0;
+		for (int i = 0; i < size; i++) {
+			String name = variables.getName(i);
+			keyTargets[i] = keyColumns.indexOf(name);
+			if (excludedColumns.contains(name)) {
+				excluded.set(i);
+			}
+			columnNames[i] = name;
+			valuePrefixes[i] = name + ":";
+			DataType.Name type = variables.getType(i).getName();
+			if (type == DataType.Name.TEXT || type == DataType.Name.VARCHAR || type == DataType.Name.ASCII) {
+				textual.set(i);
+			}
+			if (stateSlots != null) {
+				stateSlots[i] = keyTargets[i] < 0 && !excluded.get(i) ? stateColumns.indexOf(name) : -1;
+			}
+		}
+	}
+
+	private static ByteBuffer utf8(String value) {
+		return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns the index of the given audit column in the audit insert statement.
+	 *
+	 * @param column one of the audit column positions defined by this class
+	 * @return bind marker index
+	 */
+	int auditColumn(int column) {
+		return keyCount + column;
+	}
+}
@@ -0,0 +1,65 @@
+package com.datastax.driver.mapping;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.smartcat.cassandra_audit.AuditSampling;
+
+/**
+ * Applies an {@link AuditSampling} policy to the mutations of an entity.
+ * The rate limit is a token bucket, implemented as the equivalent generic
+ * cell rate algorithm: a single theoretical arrival time is advanced with
+ * compare-and-set, so concurrent mutations never block each other.
+ */
+class AuditSampler {
+
+	private final long sampleRate;
+	// nanoseconds per event and burst tolerance, 0 without a rate limit
+	private final long interval;
+	private final long tolerance;
+
+	private final AtomicLong mutations = new AtomicLong();
+	private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+	AuditSampler(AuditSampling sampling) {
+		this.sampleRate = sampling.getSampleRate();
+		if (sampling.getMaxEventsPerSecond() > 0) {
+			this.interval = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / sampling.getMaxEventsPerSecond()));
+			// a bucket of one second's worth of events, at least one
+			this.tolerance = Math.max(interval, TimeUnit.SECONDS.toNanos(1)) - interval;
+		} else {
+			this.interval = 0;
+			this.tolerance = 0;
+		}
+	}
+
+	/**
+	 * Decides whether a mutation is audited.
+	 *
+	 * @param failed whether the mutation failed, failed mutations are always audited
+	 * @return {@code true} if the mutation is audited
+	 */
+	boolean sample(boolean failed) {
+		if (failed) {
+			return true;
+		}
+		if (sampleRate > 1 && mutations.getAndIncrement() % sampleRate != 0) {
+			return false;
+		}
+		return interval == 0 || acquire(System.nanoTime());
+	}
+
+	boolean acquire(long now) {
+		while (true) {
+			long current = arrival.get();
+			long tat = current == Long.MIN_VALUE ? now : current;
+			if (now - (tat - tolerance) < 0) {
+				return false;
+			}
+			long next = (now - tat > 0 ? now : tat) + interval;
+			if (arrival.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package com.datastax.driver.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CloseFuture;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import io.smartcat.cassandra_audit.AuditManager;
+import io.smartcat.cassandra_audit.Auditable;
+
+/**
+ * A {@link Session} that audits the mutations of audited entities executed
+ * as {@link BoundStatement}s, the same way {@link AuditMapper} audits the
+ * mutations of its entity. Entities are audited once they are registered
+ * with {@link #audit(Class)}.
+ * <p>
+ * Statements are classified by their {@link PreparedStatement}, once, when
+ * the statement is prepared through this session or on its first execution.
+ * A classified statement is audited by the mapper of the entity whose table
+ * it mutates and whose primary key it binds. Other statements, including
+ * mutations of audited entities giving their key as CQL literals, pass
+ * through without overhead. The audited
+ * statements of a {@link BatchStatement} are audited as one audit event,
+ * whose audit rows are written together.
+ *
+ * @see AuditManager#getAuditSession(Session)
+ */
+public class AuditSession implements Session {
+
+	/**
+	 * Classification of a statement that is not audited.
+	 */
+	private static final AuditTarget NOT_AUDITED = new AuditTarget(null, null);
+
+	/**
+	 * Audit metadata of a prepared statement.
+	 */
+	private static class AuditTarget {
+		final AuditMapper<?> mapper;
+		final String mutationType;
+
+		AuditTarget(AuditMapper<?> mapper, String mutationType) {
+			this.mapper = mapper;
+			this.mutationType = mutationType;
+		}
+	}
+
+	/**
+	 * Audited statements of a batch.
+	 */
+	private static class BatchTargets {
+		final List<BoundStatement> statements = new ArrayList<BoundStatement>();
+		final List<AuditMapper<?>> mappers = new ArrayList<AuditMapper<?>>();
+		final List<String> mutationTypes = new ArrayList<String>();
+
+		void audit(long execTime, String error, boolean block) {
+			AuditMapper.audit(execTime, error, statements, mappers, mutationTypes, block);
+		}
+	}
+
+	private final Session session;
+	private final MappingManager manager;
+	// keyed by entity name, {@code keyspace.table}
+	private final ConcurrentMap<String, AuditMapper<?>> mappers = new ConcurrentHashMap<String, AuditMapper<?>>();
+	// weak keys compare statements by identity
+	private final ConcurrentMap<PreparedStatement, AuditTarget> targets = new MapMaker().weakKeys().makeMap();
+	// bumped by each registered entity, to invalidate concurrent classifications
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Constructs an auditing session.
+	 *
+	 * @param session the session statements are executed by
+	 * @param manager audit-augmented mapping manager of the given session
+	 */
+	public AuditSession(Session session, MappingManager manager) {
+		this.session = session;
+		this.manager = manager;
+	}
+
+	/**
+	 * Audits the mutations of the given entity, creating its audit table
+	 * if it does not exist.
+	 *
+	 * @param entityClass an entity class annotated with {@link Auditable}
+	 * @return this session
+	 */
+	public AuditSession audit(Class<?> entityClass) {
+		Mapper<?> mapper = manager.mapper(entityClass);
+		if (!(mapper instanceof AuditMapper) || !((AuditMapper<?>)mapper).auditOptions.auditable) {
+			throw new IllegalArgumentException(entityClass.getName() + " is not an auditable entity.");
+		}
+		audit((AuditMapper<?>)mapper);
+		return this;
+	}
+
+	/**
+	 * Audits the mutations of the given mapper's entity.
+	 *
+	 * @param mapper mapper of an audited entity
+	 */
+	void audit(AuditMapper<?> mapper) {
+		mappers.put(mapper.auditOptions.entityName, mapper);
+		generation.incrementAndGet();
+		// statements of the entity's table may have been classified as not audited
+		targets.values().removeAll(Collections.singleton(NOT_AUDITED));
+	}
+
+	/**
+	 * Returns whether executions of the given statement are audited.
+	 *
+	 * @param ps a prepared statement
+	 * @return {@code true} if the statement mutates an audited entity
+	 */
+	boolean isAudited(PreparedStatement ps) {
+		return classify(ps) != NOT_AUDITED;
+	}
+
+	/**
+	 * Returns the audit-augmented mapping manager of the underlying session.
+	 * Mappers of this manager audit their mutations on their own, the
+	 * manager should be used instead of a manager of this session.
+	 */
+	public MappingManager getMappingManager() {
+		return manager;
+	}
+
+	/**
+	 * Returns the session statements are executed by.
+	 */
+	public Session getDelegate() {
+		return session;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Session#execute(com.datastax.driver.core.Statement)
+	 */
+	@Override
+	public ResultSet execute(Statement statement) {
+		if (statement instanceof BatchStatement) {
+			return execute((BatchStatement)statement);
+		}
+		AuditTarget target = classify(statement);
+		if (target == NOT_AUDITED) {
+			return session.execute(statement);
+		}
+		long start = System.nanoTime();
+		try {
+			ResultSet rs = session.execute(statement);
+			target.mapper.audit(System.nanoTime() - start, null, (BoundStatement)statement, target.mutationType, true);
+			return rs;
+		} catch (RuntimeException err) {
+			target.mapper.audit(System.nanoTime() - start, err.getMessage(), (BoundStatement)statement,
+					target.mutationType, true);
+			throw err;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Session#executeAsync(com.datastax.driver.core.Statement)
+	 */
+	@Override
+	public ResultSetFuture executeAsync(final Statement statement) {
+		if (statement instanceof BatchStatement) {
+			return executeAsync((BatchStatement)statement);
+		}
+		final AuditTarget target = classify(statement);
+		final long start = System.nanoTime();
+		ResultSetFuture res = session.executeAsync(statement);
+		if (target != NOT_AUDITED) {
+			Futures.addCallback(res, new FutureCallback<ResultSet>() {
+				@Override
+				public void onSuccess(ResultSet rs) {
+					target.mapper.audit(System.nanoTime() - start, null, (BoundStatement)statement,
+							target.mutationType, false);
+				}
+
+				@Override
+				public void onFailure(Throwable err) {
+					target.mapper.audit(System.nanoTime() - start, err.getMessage(), (BoundStatement)statement,
+							target.mutationType, false);
+				}
+			}, target.mapper.completionExecutor());
+		}
+		return res;
+	}
+
+	/**
+	 * Executes a batch, auditing its mutations of audited entities together.
+	 *
+	 * @param batch a batch statement
+	 * @return the batch's result
+	 */
+	private ResultSet execute(BatchStatement batch) {
+		BatchTargets targets = classify(batch);
+		if (targets == null) {
+			return session.execute(batch);
+		}
+		long start = System.nanoTime();
+		try {
+			ResultSet rs = session.execute(batch);
+			targets.audit(System.nanoTime() - start, null, true);
+			return rs;
+		} catch (RuntimeException err) {
+			targets.audit(System.nanoTime() - start, err.getMessage(), true);
+			throw err;
+		}
+	}
+
+	/**
+	 * Asynchronously executes a batch, auditing its mutations of audited
+	 * entities together once the batch completes.
+	 *
+	 * @param batch a batch statement
+	 * @return a future completed when the batch completes
+	 */
+	private ResultSetFuture executeAsync(BatchStatement batch) {
+		final BatchTargets targets = classify(batch);
+		final long start = System.nanoTime();
+		ResultSetFuture res = session.executeAsync(batch);
+		if (targets != null) {
+			Futures.addCallback(res, new FutureCallback<ResultSet>() {
+				@Override
+				public void onSuccess(ResultSet rs) {
+					targets.audit(System.nanoTime() - start, null, false);
+				}
+
+				@Override
+				public void onFailure(Throwable err) {
+					targets.audit(System.nanoTime() - start, err.getMessage(), false);
+				}
+			}, targets.mappers.get(0).completionExecutor());
+		}
+		return res;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Session#prepare(java.lang.String)
+	 */
+	@Override
+	public PreparedStatement prepare(String query) {
+		return classified(session.prepare(query));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Session#prepare(com.datastax.driver.core.RegularStatement)
+	 */
+	@Override
+	public PreparedStatement prepare(RegularStatement statement) {
+		return classified(session.prepare(statement));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Session#prepareAsync(java.lang.String)
+	 */
+	@Override
+	public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+		return Futures.transform(session.prepareAsync(query), classifier());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.core.Session#prepareAsync(com.datastax.driver.core.RegularStatement)
+	 */
+	@Override
+	public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement statement) {
+		return Futures.transform(session.prepareAsync(statement), classifier());
+	}
+
+	@Override
+	public String getLoggedKeyspace() {
+		return session.getLoggedKeyspace();
+	}
+
+	@Override
+	public Session init() {
+		session.init();
+		return this;
+	}
+
+	@Override
+	public ResultSet execute(String query) {
+		return session.execute(query);
+	}
+
+	@Override
+	public ResultSet execute(String query, Object... values) {
+		return session.execute(query, values);
+	}
+
+	@Override
+	public ResultSetFuture executeAsync(String query) {
+		return session.executeAsync(query);
+	}
+
+	@Override
+	public ResultSetFuture executeAsync(String query, Object... values) {
+		return session.executeAsync(query, values);
+	}
+
+	@Override
+	public CloseFuture closeAsync() {
+		return session.closeAsync();
+	}
+
+	@Override
+	public void close() {
+		session.close();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return session.isClosed();
+	}
+
+	@Override
+	public Cluster getCluster() {
+		return session.getCluster();
+	}
+
+	@Override
+	public State getState() {
+		return session.getState();
+	}
+
+	private Function<PreparedStatement, PreparedStatement> classifier() {
+		return new Function<PreparedStatement, PreparedStatement>() {
+			@Override
+			public PreparedStatement apply(PreparedStatement ps) {
+				return classified(ps);
+			}
+		};
+	}
+
+	private PreparedStatement classified(PreparedStatement ps) {
+		classify(ps);
+		return ps;
+	}
+
+	/**
+	 * Collects the audited statements of the given batch.
+	 *
+	 * @param batch a batch statement
+	 * @return the batch's audited statements, {@code null} if there are none
+	 */
+	private BatchTargets classify(BatchStatement batch) {
+		if (mappers.isEmpty()) {
+			return null;
+		}
+		BatchTargets targets = null;
+		for (Statement inner : batch.getStatements()) {
+			AuditTarget target = classify(inner);
+			if (target != NOT_AUDITED) {
+				if (targets == null) {
+					targets = new BatchTargets();
+				}
+				targets.statements.add((BoundStatement)inner);
+				targets.mappers.add(target.mapper);
+				targets.mutationTypes.add(target.mutationType);
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Returns the audit metadata of the given statement.
+	 *
+	 * @param statement an executed statement
+	 * @return audit metadata, {@link #NOT_AUDITED} if the statement is not audited
+	 */
+	private AuditTarget classify(Statement statement) {
+		if (!(statement instanceof BoundStatement) || mappers.isEmpty()) {
+			return NOT_AUDITED;
+		}
+		return classify(((BoundStatement)statement).preparedStatement());
+	}
+
+	/**
+	 * Returns the audit metadata of the given prepared statement, classifying
+	 * the statement on first use.
+	 *
+	 * @param ps a prepared statement
+	 * @return audit metadata, {@link #NOT_AUDITED} if the statement is not audited
+	 */
+	private AuditTarget classify(PreparedStatement ps) {
+		AuditTarget target = targets.get(ps);
+		if (target != null) {
+			return target;
+		}
+		long classifiedGeneration = generation.get();
+		target = NOT_AUDITED;
+		String mutationType = CassandraAuditLogger.getMutationType(ps.getQueryString().trim());
+		if (ps.getVariables().size() > 0 && !mutationType.equals(CassandraAuditLogger.AuditRow.UKNOWN_MUTATION)) {
+			AuditMapper<?> mapper = mappers.get(CassandraAuditLogger.entityName(ps));
+			if (mapper != null && bindsKey(ps, mapper)) {
+				target = new AuditTarget(mapper, mutationType);
+			}
+		}
+		targets.put(ps, target);
+		if (target == NOT_AUDITED && generation.get() != classifiedGeneration) {
+			// an entity was registered meanwhile, possibly after its entries were removed
+			targets.remove(ps, NOT_AUDITED);
+		}
+		return target;
+	}
+
+	/**
+	 * Returns whether the given statement binds all primary key columns of
+	 * the given mapper's entity. Audit rows are keyed by the bound values.
+	 *
+	 * @param ps a prepared statement
+	 * @param mapper mapper of the entity whose table the statement mutates
+	 * @return {@code true} if no key column is given as a CQL literal
+	 */
+	private static boolean bindsKey(PreparedStatement ps, AuditMapper<?> mapper) {
+		ColumnDefinitions variables = ps.getVariables();
+		Set<String> names = new HashSet<String>();
+		for (int i = 0; i < variables.size(); i++) {
+			names.add(variables.getName(i));
+		}
+		return names.containsAll(CassandraAuditLogger.getKeyColumns(mapper.mapper));
+	}
+}
@@ -0,0 +1,152 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of fixed size direct {@link ByteBuffer} slabs holding the
+ * encoded values of pending audit events outside the Java heap. An event
+ * takes a {@link Region} of the size it needs, regions are cut one after
+ * another from the current slab. A slab is reused once a new slab has taken
+ * its place and all of its regions have been released, the current slab is
+ * cut again from its start once all of its regions have been released. Slabs are allocated
+ * on demand, up to the pool's maximum. The pool's memory is never returned
+ * to the operating system, it is at most the number of slabs times the slab size.
+ */
+class AuditSlabPool {
+
+	/**
+	 * A direct buffer cut into the regions of pending events.
+	 */
+	private static final class Slab {
+		final ByteBuffer buffer;
+		// one per unreleased region, plus one while regions are cut from the slab
+		final AtomicInteger references = new AtomicInteger();
+
+		Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A part of a slab holding the values of a pending event.
+	 */
+	static final class Region {
+		private final Slab slab;
+		final ByteBuffer buffer;
+
+		private Region(Slab slab, ByteBuffer buffer) {
+			this.slab = slab;
+			this.buffer = buffer;
+		}
+	}
+
+	private final int slabSize;
+	private final int maxSlabs;
+	private final Queue<Slab> free = new ConcurrentLinkedQueue<Slab>();
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	// regions are cut from this slab, guarded by this
+	private Slab current;
+
+	/**
+	 * Constructs a pool.
+	 *
+	 * @param slabSize slab size in bytes
+	 * @param maxSlabs maximum number of slabs
+	 */
+	AuditSlabPool(int slabSize, int maxSlabs) {
+		this.slabSize = slabSize;
+		this.maxSlabs = maxSlabs;
+	}
+
+	/**
+	 * Acquires a region of the given size.
+	 *
+	 * @param size number of bytes needed
+	 * @return a region whose buffer's remaining bytes are the given size,
+	 *         {@code null} if the size exceeds the slab size or all slabs are in use
+	 */
+	synchronized Region acquire(int size) {
+		if (size > slabSize) {
+			return null;
+		}
+		if (current != null && current.buffer.remaining() < size && current.references.get() == 1) {
+			// all regions of the current slab have been released
+			current.buffer.clear();
+		}
+		if (current == null || current.buffer.remaining() < size) {
+			Slab next = take();
+			if (next == null) {
+				return null;
+			}
+			if (current != null) {
+				unreference(current);
+			}
+			current = next;
+		}
+		ByteBuffer buffer = current.buffer;
+		int position = buffer.position();
+		buffer.limit(position + size);
+		Region region = new Region(current, buffer.slice());
+		buffer.limit(buffer.capacity());
+		buffer.position(position + size);
+		current.references.incrementAndGet();
+		return region;
+	}
+
+	private Slab take() {
+		Slab slab = free.poll();
+		if (slab == null) {
+			int count;
+			do {
+				count = allocated.get();
+				if (count == maxSlabs) {
+					return null;
+				}
+			} while (!allocated.compareAndSet(count, count + 1));
+			slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+		}
+		inUse.incrementAndGet();
+		slab.buffer.clear();
+		// held by the pool until regions are cut from another slab
+		slab.references.set(1);
+		return slab;
+	}
+
+	/**
+	 * Returns a region to the pool. The region must not be used afterwards.
+	 *
+	 * @param region a region acquired from this pool
+	 */
+	void release(Region region) {
+		unreference(region.slab);
+	}
+
+	private void unreference(Slab slab) {
+		if (slab.references.decrementAndGet() == 0) {
+			inUse.decrementAndGet();
+			free.offer(slab);
+		}
+	}
+
+	int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * Returns the number of slabs allocated so far.
+	 */
+	int getAllocated() {
+		return allocated.get();
+	}
+
+	/**
+	 * Returns the number of slabs holding pending events, or taking them.
+	 */
+	int getInUse() {
+		return inUse.get();
+	}
+}
@@ -0,0 +1,242 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.datastax.driver.core.PreparedStatement;
+
+/**
+ * A bounded, least recently used cache of the last audited state of entity
+ * rows. A row's state holds a 64-bit hash of each column value, so that
+ * a mutation can be compared with the row's state without retaining the
+ * values themselves.
+ * <p>
+ * A mutation's state is merged into the row's state only once its audit
+ * write has succeeded, see {@link #begin(Row)} and {@link #succeeded(Pending)}.
+ * While a row has audit writes pending, its next mutation is not compared
+ * with the row's state, and a failed, discarded or out of order write
+ * forgets the row's state, so that no change goes unaudited.
+ */
+class AuditStateCache {
+
+	/**
+	 * Hash of a column whose value is not known.
+	 */
+	static final long UNKNOWN = 0;
+
+	/**
+	 * Hash of a null value.
+	 */
+	static final long NULL = 1;
+
+	private static final long[] FORGOTTEN = new long[0];
+
+	/**
+	 * Identifies an entity row by the entity's audit insert statement and
+	 * the serialized primary key values.
+	 */
+	static final class Row {
+		private final PreparedStatement entity;
+		private final ByteBuffer[] key;
+		private final int hash;
+
+		Row(PreparedStatement entity, ByteBuffer[] key) {
+			this.entity = entity;
+			this.key = key;
+			this.hash = 31 * System.identityHashCode(entity) + Arrays.hashCode(key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Row)) {
+				return false;
+			}
+			Row other = (Row)obj;
+			return entity == other.entity && Arrays.equals(key, other.key);
+		}
+	}
+
+	/**
+	 * An audited mutation of a row whose audit write is pending.
+	 */
+	static final class Pending {
+		final Row row;
+		final long sequence;
+		final long[] previous;
+		// column value hashes of the mutation, null if the mutation deletes the row
+		long[] state;
+
+		Pending(Row row, long sequence, long[] previous) {
+			this.row = row;
+			this.sequence = sequence;
+			this.previous = previous;
+		}
+
+		/**
+		 * Returns the row's state the mutation is compared with.
+		 *
+		 * @return column value hashes, {@code null} if the row's state is not known
+		 */
+		long[] getPrevious() {
+			return previous;
+		}
+	}
+
+	/**
+	 * The state of a row and its pending mutations.
+	 */
+	private static final class RowState {
+		// sequence of the first mutation begun with this entry
+		final long created;
+		long[] state = FORGOTTEN;
+		// sequence of the last mutation merged into the state
+		long applied;
+		int pending;
+
+		RowState(long created) {
+			this.created = created;
+		}
+	}
+
+	// guarded by this
+	private final Map<Row, RowState> states;
+	// orders the mutations begun with this cache, guarded by this
+	private long sequence;
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param maxSize maximum number of rows whose state is cached
+	 */
+	AuditStateCache(final int maxSize) {
+		this.states = new LinkedHashMap<Row, RowState>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Row, RowState> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the last audited state of the given row.
+	 *
+	 * @param row entity row
+	 * @return column value hashes, {@code null} if the row's state is not known
+	 */
+	synchronized long[] get(Row row) {
+		RowState entry = states.get(row);
+		return entry != null && entry.state != FORGOTTEN ? entry.state : null;
+	}
+
+	/**
+	 * Begins an audited mutation of the given row. The mutations of a row
+	 * must begin in the order they were executed.
+	 *
+	 * @param row entity row
+	 * @return the pending mutation, holding the row's state to compare the
+	 *         mutation with unless other mutations of the row are pending
+	 */
+	synchronized Pending begin(Row row) {
+		long sequence = ++this.sequence;
+		RowState entry = states.get(row);
+		if (entry == null) {
+			entry = new RowState(sequence);
+			states.put(row, entry);
+		}
+		long[] previous = entry.pending == 0 && entry.state != FORGOTTEN ? entry.state : null;
+		entry.pending++;
+		return new Pending(row, sequence, previous);
+	}
+
+	/**
+	 * Merges the state of a mutation whose audit write succeeded into the
+	 * row's state. Columns whose hash is {@link #UNKNOWN} keep their
+	 * previous hash. A deletion, or a write completing after a later
+	 * mutation's write, forgets the row's state.
+	 *
+	 * @param pending the mutation
+	 */
+	synchronized void succeeded(Pending pending) {
+		RowState entry = complete(pending);
+		if (entry == null) {
+			return;
+		}
+		if (pending.state == null || pending.sequence < entry.applied) {
+			entry.state = FORGOTTEN;
+		} else if (entry.state == FORGOTTEN) {
+			entry.state = pending.state;
+		} else {
+			long[] merged = entry.state.clone();
+			for (int i = 0; i < merged.length; i++) {
+				if (pending.state[i] != UNKNOWN) {
+					merged[i] = pending.state[i];
+				}
+			}
+			entry.state = merged;
+		}
+		entry.applied = Math.max(entry.applied, pending.sequence);
+	}
+
+	/**
+	 * Forgets the row's state when the audit write of a mutation failed or
+	 * was discarded, the row's later mutations are audited in full.
+	 *
+	 * @param pending the mutation
+	 */
+	synchronized void failed(Pending pending) {
+		RowState entry = complete(pending);
+		if (entry != null) {
+			entry.state = FORGOTTEN;
+			entry.applied = Math.max(entry.applied, pending.sequence);
+		}
+	}
+
+	private RowState complete(Pending pending) {
+		RowState entry = states.get(pending.row);
+		if (entry == null) {
+			// evicted, the row's state is not known anymore
+			return null;
+		}
+		if (pending.sequence < entry.created) {
+			// begun with an evicted entry
+			entry.state = FORGOTTEN;
+			return null;
+		}
+		entry.pending--;
+		return entry;
+	}
+
+	/**
+	 * Returns the number of rows whose state is cached.
+	 */
+	synchronized int size() {
+		return states.size();
+	}
+
+	/**
+	 * Returns the 64-bit FNV-1a hash of a serialized value, never {@link #UNKNOWN}.
+	 *
+	 * @param value serialized value, may be {@code null}
+	 * @return value hash
+	 */
+	static long hash(ByteBuffer value) {
+		if (value == null) {
+			return NULL;
+		}
+		long hash = 0xcbf29ce484222325L;
+		for (int i = value.position(); i < value.limit(); i++) {
+			hash ^= value.get(i) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash == UNKNOWN || hash == NULL ? hash + 2 : hash;
+	}
+}
@@ -0,0 +1,178 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.smartcat.cassandra_audit.AuditValueFormat;
+
+/**
+ * Builds {@link AuditValueFormat#TEXT} audit values in preallocated buffers
+ * that are reused by later audit events. Encoders are pooled rather than
+ * kept per thread, so that events processed on a new thread each, e.g. on
+ * virtual threads, share the encoders too. Values
+ * of text columns are decoded straight from their serialized form and the
+ * result is encoded straight into the audit insert's value, so that building
+ * the audit values allocates only the serialized result.
+ * <p>
+ * Buffers grown beyond {@link #MAX_RETAINED_CHARS} or {@link #MAX_RETAINED_BYTES}
+ * by a large event are reallocated at their initial size before the next event,
+ * so that a thread does not retain them.
+ */
+final class AuditTextEncoder {
+
+	private static final int INITIAL_CHARS = 1024;
+	private static final int INITIAL_BYTES = 4096;
+
+	/**
+	 * Maximum capacity of the retained text and char buffers.
+	 */
+	static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+	/**
+	 * Maximum capacity of the retained byte buffer.
+	 */
+	static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+	/**
+	 * Maximum number of encoders retained by the pool.
+	 */
+	static final int POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+	// released encoders, empty slots are null
+	private static final AtomicReferenceArray<AuditTextEncoder> pool = 
+			new AtomicReferenceArray<AuditTextEncoder>(POOLED);
+
+	private StringBuilder text = new StringBuilder(INITIAL_CHARS);
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private CharBuffer chars = CharBuffer.allocate(INITIAL_CHARS);
+	private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_BYTES);
+
+	/**
+	 * Takes a cleared encoder from the pool, or a new one if none is available.
+	 * An encoder that is not {@linkplain #release() released}, e.g. after a
+	 * failure, is left to the garbage collector.
+	 */
+	static AuditTextEncoder acquire() {
+		// threads start at different slots
+		int start = slot();
+		for (int i = 0; i < POOLED; i++) {
+			AuditTextEncoder encoder = pool.getAndSet((start + i) % POOLED, null);
+			if (encoder != null) {
+				encoder.reset();
+				return encoder;
+			}
+		}
+		return new AuditTextEncoder();
+	}
+
+	/**
+	 * Returns the encoder to the pool, unless the pool is full.
+	 */
+	void release() {
+		int start = slot();
+		for (int i = 0; i < POOLED; i++) {
+			if (pool.compareAndSet((start + i) % POOLED, null, this)) {
+				return;
+			}
+		}
+	}
+
+	private static int slot() {
+		return (int)(Thread.currentThread().getId() % POOLED);
+	}
+
+	private void reset() {
+		if (text.capacity() > MAX_RETAINED_CHARS) {
+			text = new StringBuilder(INITIAL_CHARS);
+		} else {
+			text.setLength(0);
+		}
+		if (chars.capacity() > MAX_RETAINED_CHARS) {
+			chars = CharBuffer.allocate(INITIAL_CHARS);
+		}
+		if (bytes.capacity() > MAX_RETAINED_BYTES) {
+			bytes = ByteBuffer.allocate(INITIAL_BYTES);
+		}
+	}
+
+	AuditTextEncoder append(String value) {
+		text.append(value);
+		return this;
+	}
+
+	AuditTextEncoder append(Object value) {
+		text.append(value);
+		return this;
+	}
+
+	/**
+	 * Appends a serialized UTF-8 or ASCII value.
+	 *
+	 * @param value serialized value, may be {@code null}
+	 * @return this encoder
+	 */
+	AuditTextEncoder appendUtf8(ByteBuffer value) {
+		if (value == null) {
+			text.append((Object)null);
+			return this;
+		}
+		// a UTF-8 byte decodes to at most one char
+		CharBuffer chars = chars(value.remaining());
+		decoder.reset();
+		decoder.decode(value.duplicate(), chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		text.append(chars);
+		return this;
+	}
+
+	/**
+	 * Returns the UTF-8 serialized text appended so far. The result does not
+	 * share the encoder's buffers, the encoder may be released afterwards.
+	 *
+	 * @return a new buffer holding the serialized text
+	 */
+	ByteBuffer toUtf8() {
+		int length = text.length();
+		CharBuffer chars = chars(length);
+		text.getChars(0, length, chars.array(), 0);
+		chars.limit(length);
+		if (bytes.capacity() < length * 3) {
+			bytes = ByteBuffer.allocate(length * 3);
+		}
+		bytes.clear();
+		encoder.reset();
+		encoder.encode(chars, bytes, true);
+		encoder.flush(bytes);
+		bytes.flip();
+		ByteBuffer result = ByteBuffer.allocate(bytes.remaining());
+		result.put(bytes);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * Returns the total capacity of the encoder's buffers, in chars and bytes.
+	 */
+	int retained() {
+		return text.capacity() + chars.capacity() + bytes.capacity();
+	}
+
+	private CharBuffer chars(int capacity) {
+		if (chars.capacity() < capacity) {
+			chars = CharBuffer.allocate(capacity);
+		}
+		chars.clear();
+		return chars;
+	}
+}
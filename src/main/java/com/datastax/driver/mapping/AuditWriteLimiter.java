@@ -0,0 +1,150 @@
+package com.datastax.driver.mapping;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.Statement;
+
+import io.smartcat.cassandra_audit.InFlightPolicy;
+
+/**
+ * Caps the number of audit writes in flight. A write takes a permit
+ * before it is issued and hands it back, or over to a queued write,
+ * once it completes. Writes issued while all permits are taken are
+ * handled according to the {@link InFlightPolicy}. Discarded writes,
+ * including writes overflowing the queue, are handed to a {@link Shedder}.
+ */
+class AuditWriteLimiter {
+
+	/**
+	 * Handles the audit writes discarded by the limiter.
+	 */
+	interface Shedder {
+		/**
+		 * @param statement discarded audit write
+		 */
+		void shed(Statement statement);
+	}
+
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final InFlightPolicy policy;
+	private final Shedder shedder;
+	private final Semaphore permits;
+	private final Queue<Statement> queue = new ConcurrentLinkedQueue<Statement>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong shed = new AtomicLong();
+
+	/**
+	 * Constructs a limiter.
+	 *
+	 * @param maxInFlight maximum number of audit writes in flight
+	 * @param maxQueued maximum number of queued writes with {@link InFlightPolicy#QUEUE}
+	 * @param policy policy applied to writes issued while all permits are taken
+	 * @param shedder handles discarded writes
+	 */
+	AuditWriteLimiter(int maxInFlight, int maxQueued, InFlightPolicy policy, Shedder shedder) {
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.policy = policy;
+		this.shedder = shedder;
+		this.permits = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Takes a permit for the given write.
+	 *
+	 * @param statement audit write
+	 * @return the write to issue now, holding a permit, which may be a
+	 *         previously queued write, or {@code null} if there is none
+	 */
+	Statement acquire(Statement statement) {
+		switch (policy) {
+			case WAIT:
+				permits.acquireUninterruptibly();
+				return statement;
+			case SHED:
+				if (permits.tryAcquire()) {
+					return statement;
+				}
+				shed(statement);
+				return null;
+			default:
+				if (permits.tryAcquire()) {
+					return statement;
+				}
+				if (queued.incrementAndGet() > maxQueued) {
+					queued.decrementAndGet();
+					shed(statement);
+				} else {
+					queue.add(statement);
+				}
+				// a write may have completed after the permit was refused
+				return pollQueued();
+		}
+	}
+
+	/**
+	 * Waits for a permit, whatever the policy. Used by writes issued on a
+	 * background thread that can wait, e.g. writes replayed from the journal.
+	 */
+	void acquireUninterruptibly() {
+		permits.acquireUninterruptibly();
+	}
+
+	private void shed(Statement statement) {
+		shed.incrementAndGet();
+		shedder.shed(statement);
+	}
+
+	/**
+	 * Hands back the permit of a completed write.
+	 *
+	 * @return a queued write to issue now, holding the permit, or {@code null} if there is none
+	 */
+	Statement release() {
+		Statement next = queue.poll();
+		if (next != null) {
+			queued.decrementAndGet();
+			return next;
+		}
+		permits.release();
+		return pollQueued();
+	}
+
+	private Statement pollQueued() {
+		while (!queue.isEmpty() && permits.tryAcquire()) {
+			Statement next = queue.poll();
+			if (next != null) {
+				queued.decrementAndGet();
+				return next;
+			}
+			permits.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of audit writes in flight.
+	 */
+	int getInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	/**
+	 * Returns the number of queued audit writes.
+	 */
+	int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of discarded audit writes.
+	 */
+	long getShed() {
+		return shed.get();
+	}
+}
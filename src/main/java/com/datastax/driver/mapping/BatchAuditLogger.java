@@ -0,0 +1,13 @@
+package com.datastax.driver.mapping;
+
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+
+/**
+ * Implemented by {@link AuditLogger}s that can store the audit events of
+ * the mutations of a batch together.
+ */
+interface BatchAuditLogger {
+	void logBatch(long time, long execTime, String error, List<BoundStatement> statements);
+}
@@ -0,0 +1,10 @@
+package com.datastax.driver.mapping;
+
+/**
+ * Implemented by {@link AuditLogger}s that do not retain the bound values of
+ * a logged statement once the call returns, copying the values they keep.
+ * The statements of an event held off-heap are handed to these loggers bound
+ * to the event's slab region, which is reused after the call.
+ */
+interface BorrowingAuditLogger {
+}
@@ -3,39 +3,147 @@ package com.datastax.driver.mapping;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.insertInto;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.ColumnDefinitions;
-import com.datastax.driver.core.ColumnDefinitions.Definition;
 import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.schemabuilder.Create;
 import com.datastax.driver.core.schemabuilder.SchemaBuilder;
+import com.datastax.driver.core.schemabuilder.SchemaBuilder.Direction;
 import com.datastax.driver.mapping.annotations.Column;
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import io.smartcat.cassandra_audit.AuditBucket;
+import io.smartcat.cassandra_audit.AuditClustering;
+import io.smartcat.cassandra_audit.AuditConfiguration;
 import io.smartcat.cassandra_audit.AuditExclusion;
+import io.smartcat.cassandra_audit.AuditJournal;
+import io.smartcat.cassandra_audit.AuditManager;
+import io.smartcat.cassandra_audit.AuditMetrics;
+import io.smartcat.cassandra_audit.AuditSchemaMode;
+import io.smartcat.cassandra_audit.AuditValueFormat;
 
 /**
  * This is an implementation of {@link AuditLogger} that stores audit
- * events in Cassandra tables.
+ * events in Cassandra tables. There is one logger per {@link Session}.
+ * An entity's audit table is created and its audit insert statement is
+ * prepared once per logger, the registered entities are looked up without
+ * locking. The logger is closed once its session is closed.
  */
-public class CassandraAuditLogger implements AuditLogger {
+public class CassandraAuditLogger extends AbstractAuditLogger implements Spillable, BatchAuditLogger, 
+		BorrowingAuditLogger, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraAuditLogger.class);
+
+	// delays of the retries of a failed lazy initialization, doubled after each failure
+	private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
 
-	private static CassandraAuditLogger INSTANCE;
+	// weak keys compare sessions by identity and let closed sessions be collected,
+	// guarded by itself for creating loggers
+	private static final ConcurrentMap<Session, CassandraAuditLogger> loggers = 
+			new MapMaker().weakKeys().makeMap();
 	
 	private final Session session;
-	private volatile Map<String, PreparedStatement> preparedQueries = new HashMap<String, PreparedStatement>();
-	private volatile Map<String, List<String>> primaryKeyColumns = new HashMap<String, List<String>>();
-	private volatile Map<String, List<String>> excludedColumns = new HashMap<String, List<String>>();
+	private final AuditBatcher batcher;
+	private final AuditJournal journal;
+	private final AuditWriteLimiter limiter;
+	// writes handed over by completing writes, issued by the loop in issue(Statement)
+	private final ThreadLocal<Deque<Statement>> issuing = new ThreadLocal<Deque<Statement>>();
+	private final AuditMetrics metrics;
+	// registered entities, keyed by entity name
+	private final ConcurrentMap<String, Entity> entities = new ConcurrentHashMap<String, Entity>();
+	// entity initializations in eager schema mode, running or completed, keyed by entity name
+	private final ConcurrentMap<String, ListenableFutureTask<Void>> initializations = 
+			new ConcurrentHashMap<String, ListenableFutureTask<Void>>();
+	// entity initializations in lazy schema mode, keyed by entity name
+	private final ConcurrentMap<String, LazyInitialization> lazyInitializations = 
+			new ConcurrentHashMap<String, LazyInitialization>();
+	// lazy initializations whose entity's events are still deferred
+	private final AtomicInteger pendingInitializations = new AtomicInteger();
+	private final AuditSchemaMode schemaMode;
+	private final boolean createTables;
+	private final boolean synchronous;
+	// maximum number of deferred events of an entity
+	private final int maxDeferred;
+	// runs and retries the initializations in lazy schema mode
+	private final ScheduledExecutorService schemaExecutor;
+	// last audited state of the rows of entities audited by their changes
+	private final AuditStateCache stateCache;
+	// row mutations of audit writes not completed yet, weak keys compare statements by identity
+	private final ConcurrentMap<Statement, AuditStateCache.Pending> pendingStates = 
+			new MapMaker().weakKeys().makeMap();
+	// compiled per mutation statement, weak keys compare statements by identity,
+	// so a re-prepared statement is compiled again and the replaced plan collected
+	private final ConcurrentMap<PreparedStatement, AuditPlan> plans = new MapMaker().weakKeys().makeMap();
+	// names of the entities mutated by mutation statements, looked up before the plans are compiled
+	private final ConcurrentMap<PreparedStatement, String> entityNames = new MapMaker().weakKeys().makeMap();
+	// keyed by audit insert statement
+	private final ConcurrentMap<PreparedStatement, AuditMetrics.EntityMetrics> entityMetrics = 
+			new MapMaker().weakKeys().makeMap();
+	
+	/**
+	 * Options and audit insert statement of a registered entity.
+	 */
+	private static class Entity {
+		final PreparedStatement auditStatement;
+		final List<String> keyColumns;
+		final List<String> excludedColumns;
+		final AuditValueFormat valueFormat;
+		final AuditBucket bucket;
+		final AuditClustering clustering;
+		final List<String> stateColumns;
+
+		Entity(PreparedStatement auditStatement, List<String> keyColumns, List<String> excludedColumns,
+				AuditValueFormat valueFormat, AuditBucket bucket, AuditClustering clustering,
+				List<String> stateColumns) {
+			this.auditStatement = auditStatement;
+			this.keyColumns = keyColumns;
+			this.excludedColumns = excludedColumns;
+			this.valueFormat = valueFormat;
+			this.bucket = bucket;
+			this.clustering = clustering;
+			this.stateColumns = stateColumns;
+		}
+	}
 	
 	public static class AuditRow {
 		static String COL_TIMESTAMP = "time";
@@ -44,6 +152,8 @@ public class CassandraAuditLogger implements AuditLogger {
 		static String COL_MUTATION_TYPE = "type";
 		static String COL_CQL_STRING = "cql";
 		static String COL_STATEMENT_VALUES = "values";
+		static String COL_STATEMENT_RAW_VALUES = "raw_values";
+		static String COL_BUCKET = "bucket";
 		
 		static String INSERT_MUTATION = "INSERT";
 		static String UPDATE_MUTATION = "UPDATE";
@@ -52,16 +162,25 @@ public class CassandraAuditLogger implements AuditLogger {
 	}
 	
 	/**
-	 * Returns the singleton instance.
+	 * Returns the logger of the given session, creating it on first use.
 	 * 
 	 * @param session Cassandra session used to save audit events
-	 * @return {@link CassandraAuditLogger} singleton instance
+	 * @return the session's {@link CassandraAuditLogger}
 	 */
 	public static CassandraAuditLogger getInstance(Session session) {
-		if (INSTANCE == null) {
-			INSTANCE = new CassandraAuditLogger(session);
+		CassandraAuditLogger logger = loggers.get(session);
+		if (logger == null) {
+			// a logger opens the session's journal and registers its gauges, it is created once
+			synchronized (loggers) {
+				logger = loggers.get(session);
+				if (logger == null) {
+					logger = new CassandraAuditLogger(session);
+					loggers.put(session, logger);
+					AuditDispatcher.forSession(session).closeOnStop(logger);
+				}
+			}
 		}
-		return INSTANCE;
+		return logger;
 	}	
 	
 	/**
@@ -72,37 +191,398 @@ public class CassandraAuditLogger implements AuditLogger {
 	 */
 	public CassandraAuditLogger(Session session) {
 		this.session = session;
+		this.metrics = AuditManager.getMetrics(session);
+		AuditConfiguration configuration = AuditManager.getConfiguration(session);
+		this.batcher = configuration.getBatchSize() > 1
+				? new AuditBatcher(new AuditBatcher.Writer() {
+					@Override
+					public void write(Statement statement) {
+						CassandraAuditLogger.this.write(statement);
+					}
+				}, configuration.getBatchSize(), configuration.getBatchDelayMillis())
+				: null;
+		this.limiter = createLimiter(configuration);
+		// replayed writes take in-flight permits, the limiter is created first
+		this.journal = openJournal(configuration);
+		this.stateCache = new AuditStateCache(configuration.getStateCacheSize());
+		this.schemaMode = configuration.getSchemaMode();
+		this.createTables = configuration.isCreateTables();
+		this.synchronous = configuration.isSynchronous();
+		this.maxDeferred = configuration.getQueueCapacity();
+		this.schemaExecutor = schemaMode == AuditSchemaMode.LAZY 
+				? createSchemaExecutor(configuration.getSchemaThreads()) : null;
 	}
 	
-	public <T> void init(AuditMapper<T> mapper) {
-		// audited entity is identified by its keyspace and table name
-		String entityName = trim(mapper.mapper.getKeyspace()) + "." + trim(mapper.mapper.getTable());
-
-		// if the logger is already initialized for this event,
-		// silently ignore 
-		if (preparedQueries.containsKey(entityName)) {
+	/**
+	 * Stops retrying failed lazy initializations, writes the pending audit
+	 * batches and stops their flush timer, then closes the journal.
+	 */
+	@Override
+	public void close() {
+		if (schemaExecutor != null) {
+			schemaExecutor.shutdownNow();
+		}
+		if (batcher != null) {
+			batcher.close();
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close audit journal.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Creates the executor initializing entities in the background and retrying
+	 * failed initializations. Its threads stop once they are idle, they are
+	 * needed at startup only.
+	 * 
+	 * @param threads maximum number of initializations running at once
+	 * @return the executor
+	 */
+	private static ScheduledExecutorService createSchemaExecutor(int threads) {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cassandra-audit-schema");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Creates the in-flight write limiter, if a maximum is configured.
+	 * 
+	 * @param configuration audit configuration
+	 * @return the limiter, or {@code null} if audit writes are not limited
+	 */
+	private AuditWriteLimiter createLimiter(AuditConfiguration configuration) {
+		if (configuration.getMaxInFlightWrites() == 0) {
+			return null;
+		}
+		final AuditWriteLimiter limiter = new AuditWriteLimiter(configuration.getMaxInFlightWrites(),
+				configuration.getQueueCapacity(), configuration.getInFlightPolicy(), new AuditWriteLimiter.Shedder() {
+					@Override
+					public void shed(Statement statement) {
+						settle(statement, false);
+						recordShed(statement);
+						if (journal != null) {
+							journal(statement);
+						}
+					}
+				});
+		metrics.gauge("writes.inflight", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return limiter.getInFlight();
+			}
+		});
+		metrics.gauge("writes.queued", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return limiter.getQueued();
+			}
+		});
+		metrics.gauge("writes.shed", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return limiter.getShed();
+			}
+		});
+		return limiter;
+	}
+	
+	/**
+	 * Opens the journal and starts its replay, if a journal directory is configured.
+	 * 
+	 * @param configuration audit configuration
+	 * @return the journal, or {@code null} if no journal is configured
+	 */
+	private AuditJournal openJournal(AuditConfiguration configuration) {
+		if (configuration.getJournalDirectory() == null) {
+			return null;
+		}
+		final AuditJournal journal;
+		try {
+			journal = new AuditJournal(configuration.getJournalDirectory(), configuration.getJournalSegmentSize());
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to open audit journal.", e);
+		}
+		journal.start(new JournalReplayer(), configuration.getJournalReplayIntervalMillis());
+		metrics.gauge("journal.appended", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return journal.getAppended();
+			}
+		});
+		metrics.gauge("journal.replayed", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return journal.getReplayed();
+			}
+		});
+		metrics.gauge("journal.rejected", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return journal.getRejected();
+			}
+		});
+		return journal;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.mapping.AuditLogger#init(com.datastax.driver.mapping.AuditMapper)
+	 */
+	@Override
+	public <T> void init(final AuditMapper<T> mapper) {
+		final String entityName = entityName(mapper.mapper);
+		if (schemaExecutor != null) {
+			LazyInitialization lazyInitialization = new LazyInitialization(entityName, mapper);
+			if (lazyInitializations.putIfAbsent(entityName, lazyInitialization) == null) {
+				pendingInitializations.incrementAndGet();
+				lazyInitialization.start();
+			}
 			return;
 		}
-		
+		ListenableFutureTask<Void> initialization = initializations.get(entityName);
+		if (initialization == null) {
+			final ListenableFutureTask<Void> newInitialization = ListenableFutureTask.create(new Callable<Void>() {
+				@Override
+				public Void call() {
+					createEntity(entityName, mapper);
+					return null;
+				}
+			});
+			initialization = initializations.putIfAbsent(entityName, newInitialization);
+			if (initialization == null) {
+				initialization = newInitialization;
+				Futures.addCallback(initialization, new FutureCallback<Void>() {
+					@Override
+					public void onSuccess(Void result) {
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						// a later initialization retries
+						initializations.remove(entityName, newInitialization);
+					}
+				});
+				initialization.run();
+			}
+		}
+		// concurrent initializations of the entity wait for the first one
+		await(initialization);
+	}
+	
+	/**
+	 * Waits for an entity initialization to complete.
+	 * 
+	 * @param initialization the entity's initialization
+	 */
+	private static void await(ListenableFutureTask<Void> initialization) {
+		try {
+			Uninterruptibles.getUninterruptibly(initialization);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+	
+	/**
+	 * Returns the initialization the events of the entity mutated by the given
+	 * statement are deferred by. Events are logged right away, unless in lazy
+	 * schema mode they are deferred until the entity's initialization has
+	 * succeeded and the events deferred before have been logged.
+	 * 
+	 * @param mutation the mutation's prepared statement
+	 * @return the entity's initialization, {@code null} if the event is logged right away
+	 */
+	private LazyInitialization deferring(PreparedStatement mutation) {
+		if (pendingInitializations.get() == 0) {
+			return null;
+		}
+		LazyInitialization initialization = lazyInitializations.get(mutatedEntity(mutation));
+		return initialization == null || initialization.isDone() ? null : initialization;
+	}
+	
+	/**
+	 * Returns the name of the entity mutated by the given statement, looked up once per statement.
+	 * 
+	 * @param mutation the mutation's prepared statement
+	 * @return entity name, {@code keyspace.table}
+	 */
+	private String mutatedEntity(PreparedStatement mutation) {
+		String entityName = entityNames.get(mutation);
+		if (entityName == null) {
+			entityName = entityName(mutation);
+			entityNames.put(mutation, entityName);
+		}
+		return entityName;
+	}
+	
+	/**
+	 * Initializes an entity in lazy schema mode. A failed initialization is
+	 * retried after a delay growing with each failure, until the logger is
+	 * closed. The entity's events are deferred while it is initialized and
+	 * logged in order once it has been registered, so that the dispatcher's
+	 * consumer threads do not wait for the audit table.
+	 */
+	private class LazyInitialization implements Runnable {
+		private final String entityName;
+		private final AuditMapper<?> mapper;
+		// the first attempt, synchronous audits wait for it
+		private volatile Future<?> first;
+		// events waiting for the entity, null once they are logged, guarded by this
+		private List<Runnable> deferred = new ArrayList<Runnable>();
+		// the thread logging the deferred events, guarded by this
+		private Thread draining;
+		// only accessed by the attempts, which run one after another
+		private int failures;
+
+		LazyInitialization(String entityName, AuditMapper<?> mapper) {
+			this.entityName = entityName;
+			this.mapper = mapper;
+		}
+
+		void start() {
+			first = schemaExecutor.submit(this);
+		}
+
+		/**
+		 * Returns whether the entity's events are logged right away, on the
+		 * calling thread.
+		 */
+		synchronized boolean isDone() {
+			return deferred == null || draining == Thread.currentThread();
+		}
+
+		/**
+		 * Defers an event of the entity. A synchronous audit waits for the
+		 * first attempt to initialize the entity instead.
+		 * 
+		 * @param event logs the event
+		 * @return {@code false} if the entity is ready and the event has to be logged
+		 */
+		boolean defer(Runnable event) {
+			if (synchronous) {
+				try {
+					Uninterruptibles.getUninterruptibly(first);
+				} catch (ExecutionException e) {
+					// attempts handle their failures
+				}
+			}
+			synchronized (this) {
+				if (deferred == null) {
+					return false;
+				}
+				if (deferred.size() < maxDeferred) {
+					deferred.add(event);
+					return true;
+				}
+			}
+			metrics.entity(entityName).dropped();
+			logger.error("Too many audit events of " + entityName + " wait for its audit table, the event is lost.");
+			return true;
+		}
+
+		@Override
+		public void run() {
+			try {
+				createEntity(entityName, mapper);
+			} catch (RuntimeException e) {
+				long delay = Math.min(MAX_RETRY_DELAY_MILLIS, MIN_RETRY_DELAY_MILLIS << Math.min(failures, 16));
+				failures++;
+				logger.error("Unable to set up audit table for " + entityName + ", retrying in " + delay + " ms.", e);
+				try {
+					schemaExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException closed) {
+					// the logger has been closed
+				}
+				return;
+			}
+			// events deferred while the earlier ones are logged keep their order
+			while (true) {
+				List<Runnable> events;
+				synchronized (this) {
+					if (deferred.isEmpty()) {
+						deferred = null;
+						draining = null;
+						break;
+					}
+					draining = Thread.currentThread();
+					events = deferred;
+					deferred = new ArrayList<Runnable>();
+				}
+				for (Runnable event : events) {
+					try {
+						event.run();
+					} catch (Exception e) {
+						logger.error("An error occured while executing audit.", e);
+					}
+				}
+			}
+			pendingInitializations.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Creates the entity's audit table, if it does not exist and tables are
+	 * created, and registers the entity.
+	 * 
+	 * @param entityName audited entity's keyspace and table name, {@code keyspace.table}
+	 * @param mapper the entity's mapper
+	 */
+	private <T> void createEntity(String entityName, AuditMapper<T> mapper) {
 		// create audit table and wait till schema change is propagated
 		String keyspace = mapper.auditOptions.keyspaceName;
 		String table = mapper.auditOptions.tableName;
-		session.execute(createAuditTable(keyspace, table, mapper.mapper))
-			.getExecutionInfo().isSchemaInAgreement();
-
-		// save the entity's primary key column names
-		synchronized (primaryKeyColumns) {
-			primaryKeyColumns.put(entityName, getKeyColumns(mapper.mapper));
+		AuditValueFormat valueFormat = mapper.auditOptions.valueFormat;
+		AuditBucket bucket = mapper.auditOptions.bucket;
+		AuditClustering clustering = mapper.auditOptions.clustering;
+		if (createTables) {
+			session.execute(createAuditTable(keyspace, table, valueFormat, bucket, clustering, mapper.mapper))
+				.getExecutionInfo().isSchemaInAgreement();
 		}
-		
+
 		// prepare statement for inserting audit events
 		PreparedStatement stmt = session.prepare(
-				makePreparedStatement(keyspace, table, mapper.mapper));
-		synchronized (preparedQueries) {
-			preparedQueries.put(entityName, stmt);
-		}
-		synchronized (excludedColumns) {
-			excludedColumns.put(entityName, getExcludedColumns(mapper.mapper));
+				makePreparedStatement(keyspace, table, valueFormat, bucket, mapper.mapper));
+		register(entityName, stmt, getKeyColumns(mapper.mapper), 
+				getExcludedColumns(mapper.mapper), valueFormat, bucket, clustering, 
+				mapper.auditOptions.changesOnly ? getRegularColumns(mapper.mapper) : null);
+	}
+	
+	/**
+	 * Registers an audited entity whose audit table already exists.
+	 * 
+	 * @param entityName audited entity's keyspace and table name, {@code keyspace.table}
+	 * @param auditStatement the entity's audit insert statement
+	 * @param keyColumns the entity's primary key column names in audit insert order
+	 * @param excludedColumns names of the entity's columns excluded from the audit log
+	 * @param valueFormat format of the audit values
+	 * @param bucket time bucket of the audit table's partition key
+	 * @param clustering type of the audit table's clustering column
+	 * @param stateColumns the entity's non-key column names whose changes are audited,
+	 *        {@code null} to audit all values of every mutation
+	 */
+	void register(String entityName, PreparedStatement auditStatement, List<String> keyColumns,
+			List<String> excludedColumns, AuditValueFormat valueFormat, AuditBucket bucket,
+			AuditClustering clustering, List<String> stateColumns) {
+		entityMetrics.put(auditStatement, metrics.entity(entityName));
+		Entity previous = entities.put(entityName, new Entity(auditStatement, keyColumns, excludedColumns,
+				valueFormat, bucket, clustering, stateColumns));
+		// plans compiled for the entity's previous registration are stale
+		if (previous != null && previous.auditStatement != auditStatement) {
+			for (Iterator<AuditPlan> it = plans.values().iterator(); it.hasNext();) {
+				if (it.next().auditStatement == previous.auditStatement) {
+					it.remove();
+				}
+			}
 		}
 	}
 	
@@ -110,52 +590,602 @@ public class CassandraAuditLogger implements AuditLogger {
 	 * @see io.smartcat.cassandra_audit.AuditLogger#log(com.datastax.driver.core.Statement, com.datastax.driver.mapping.Mapper)
 	 */
 	@Override
-	public void log(long execTime, String error, BoundStatement origStatement) {
-		PreparedStatement origPreparedStatement = origStatement.preparedStatement();
+	public void log(final long time, final long execTime, final String error, final BoundStatement origStatement) {
+		PreparedStatement mutation = origStatement.preparedStatement();
+		LazyInitialization initialization = deferring(mutation);
+		if (initialization != null) {
+			final BoundStatement deferred = detach(origStatement);
+			if (initialization.defer(new Runnable() {
+				@Override
+				public void run() {
+					log(time, execTime, error, deferred);
+				}
+			})) {
+				return;
+			}
+		}
+		AuditPlan plan = getPlan(mutation);
+		BoundStatement bs = bind(plan, time, execTime, error, origStatement);
 		
-		String entityName = trim(origPreparedStatement.getVariables().getKeyspace(0)) + "." + 
-				trim(origPreparedStatement.getVariables().getTable(0));
-
-		PreparedStatement ps = preparedQueries.get(entityName);
-		if (ps == null) {
-			throw new IllegalStateException("AuditLogger has not been initilized for " + entityName);
+		if (batcher != null) {
+			batcher.add(new AuditBatcher.Partition(plan.auditStatement, partitionKey(plan, bs)), bs);
+		} else {
+			write(bs);
+		}
+	}
+	
+	/**
+	 * Logs the audit events of the mutations of a batch. Unless audit inserts
+	 * are batched anyway, the audit inserts are written as one UNLOGGED batch,
+	 * grouped by audit table partition, instead of one write per mutation.
+	 * The events share the batch's start time. With {@link AuditClustering#TIMEUUID}
+	 * clustering each gets its own timeuuid. With {@link AuditClustering#TIMESTAMP}
+	 * clustering, mutations of the same row share the audit row, which holds the
+	 * event of the row's last mutation in the batch.
+	 * 
+	 * @param time batch start time in milliseconds since the epoch
+	 * @param execTime batch execution time in nanoseconds
+	 * @param error batch error message, {@code null} if the batch succeeded
+	 * @param origStatements the batch's audited mutation statements
+	 */
+	@Override
+	public void logBatch(final long time, final long execTime, final String error, 
+			final List<BoundStatement> origStatements) {
+		for (BoundStatement origStatement : origStatements) {
+			// deferred as a whole, until the entities of all its mutations are ready
+			LazyInitialization initialization = deferring(origStatement.preparedStatement());
+			if (initialization != null) {
+				final List<BoundStatement> deferred = new ArrayList<BoundStatement>(origStatements.size());
+				for (BoundStatement bs : origStatements) {
+					deferred.add(detach(bs));
+				}
+				if (initialization.defer(new Runnable() {
+					@Override
+					public void run() {
+						logBatch(time, execTime, error, deferred);
+					}
+				})) {
+					return;
+				}
+			}
+		}
+		Map<AuditBatcher.Partition, List<Statement>> partitions = 
+				new LinkedHashMap<AuditBatcher.Partition, List<Statement>>();
+		for (BoundStatement origStatement : origStatements) {
+			AuditPlan plan = getPlan(origStatement.preparedStatement());
+			BoundStatement bs = bind(plan, time, execTime, error, origStatement);
+			AuditBatcher.Partition partition = new AuditBatcher.Partition(plan.auditStatement, partitionKey(plan, bs));
+			List<Statement> group = partitions.get(partition);
+			if (group == null) {
+				group = new ArrayList<Statement>();
+				partitions.put(partition, group);
+			} else if (plan.clustering == AuditClustering.TIMESTAMP) {
+				// same clustering key, the later event would overwrite the earlier one anyway
+				group.set(0, bs);
+				continue;
+			}
+			group.add(bs);
+		}
+		if (batcher != null) {
+			for (Map.Entry<AuditBatcher.Partition, List<Statement>> entry : partitions.entrySet()) {
+				for (Statement bs : entry.getValue()) {
+					batcher.add(entry.getKey(), bs);
+				}
+			}
+			return;
+		}
+		if (origStatements.size() == 1) {
+			write(partitions.values().iterator().next().get(0));
+			return;
+		}
+		BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+		for (List<Statement> group : partitions.values()) {
+			batch.addAll(group);
+		}
+		write(batch);
+	}
+	
+	/**
+	 * Appends the audit event to the journal instead of storing it, if a
+	 * journal is configured. Otherwise the event is logged.
+	 * 
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param origStatement mutation statement
+	 */
+	@Override
+	public void spill(final long time, final long execTime, final String error, final BoundStatement origStatement) {
+		PreparedStatement mutation = origStatement.preparedStatement();
+		LazyInitialization initialization = deferring(mutation);
+		if (initialization != null) {
+			final BoundStatement deferred = detach(origStatement);
+			if (initialization.defer(new Runnable() {
+				@Override
+				public void run() {
+					spill(time, execTime, error, deferred);
+				}
+			})) {
+				return;
+			}
+		}
+		if (journal == null) {
+			log(time, execTime, error, origStatement);
+			return;
+		}
+		BoundStatement bs = bind(getPlan(origStatement.preparedStatement()), time, execTime, error, origStatement);
+		// the journaled event is stored later, the row's state is not known until then
+		settle(bs, false);
+		journal(bs);
+	}
+	
+	/**
+	 * Creates the audit insert statement for the given mutation statement.
+	 * 
+	 * @param plan the mutation statement's audit plan
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param origStatement mutation statement
+	 * @return audit insert statement
+	 */
+	private BoundStatement bind(AuditPlan plan, long time, long execTime, String error, 
+			BoundStatement origStatement) {
+		BoundStatement bs = plan.auditStatement.bind();
+		AuditStateCache.Pending pending = diff(plan, error, origStatement);
+		long[] previous = null;
+		if (pending != null) {
+			pendingStates.put(bs, pending);
+			// deletions are audited with all values
+			previous = pending.state != null ? pending.getPrevious() : null;
 		}
 		
-		BoundStatement bs = ps.bind();
+		int[] keyTargets = plan.keyTargets;
+		boolean raw = plan.valueFormat == AuditValueFormat.BLOB_MAP;
+		AuditTextEncoder values = raw ? null : AuditTextEncoder.acquire();
+		Map<String, ByteBuffer> rawValues = raw ? new HashMap<String, ByteBuffer>() : null;
+		for (int i = 0; i < keyTargets.length; i++) {
+			// if column is part of the entity's primary key
+			// inject it into the audit statement
+			int keyIndex = keyTargets[i];
+			if (keyIndex >= 0) {
+				// audit key is constructed from the entity's schema so type
+				// checking is not necessary
+				bs.setBytesUnsafe(keyIndex, retained(origStatement.getBytesUnsafe(i)));
+			}
+			
+			// collect the original statemenet's values for this column
+			// unless it is excluded
+			if (!plan.excluded.get(i) && !unchanged(plan, previous, i, origStatement)) {
+				if (raw) {
+					// serialized values are stored as they are, skipping deserialization
+					ByteBuffer value = origStatement.getBytesUnsafe(i);
+					if (value != null) {
+						rawValues.put(plan.columnNames[i], value);
+					}
+				} else {
+					values.append(plan.valuePrefixes[i]);
+					if (plan.textual.get(i)) {
+						// text is appended as it is, skipping deserialization
+						values.appendUtf8(origStatement.getBytesUnsafe(i));
+					} else {
+						values.append(origStatement.getObject(i));
+					}
+					values.append("; ");
+				}
+			}
+		}
+
+		if (plan.clustering == AuditClustering.TIMEUUID) {
+			bs.setUUID(plan.auditColumn(AuditPlan.TIMESTAMP), TimeUuids.forTime(time));
+		} else {
+			bs.setBytesUnsafe(plan.auditColumn(AuditPlan.TIMESTAMP), timestamp(time));
+		}
+		// the serialized mutation type and query string are shared
+		bs.setBytesUnsafe(plan.auditColumn(AuditPlan.MUTATION_TYPE), plan.mutationTypeBytes);
+		bs.setLong(plan.auditColumn(AuditPlan.EXEC_TIME), execTime);
+		bs.setString(plan.auditColumn(AuditPlan.ERROR), error);
+		bs.setBytesUnsafe(plan.auditColumn(AuditPlan.CQL_STRING), plan.cqlBytes);
+		if (raw) {
+			bs.setMap(plan.auditColumn(AuditPlan.STATEMENT_VALUES), rawValues);
+		} else {
+			bs.setBytesUnsafe(plan.auditColumn(AuditPlan.STATEMENT_VALUES), values.toUtf8());
+			values.release();
+		}
+		if (plan.bucket != AuditBucket.NONE) {
+			bs.setBytesUnsafe(plan.auditColumn(AuditPlan.BUCKET), timestamp(plan.bucket.bucket(time)));
+		}
+		return bs;
+	}
+	
+	/**
+	 * Returns a bound value that may be retained once the logging call
+	 * returns. Values in direct buffers, e.g. those of an event held
+	 * off-heap, are copied to the heap, see {@link BorrowingAuditLogger}.
+	 * 
+	 * @param value serialized value, may be {@code null}
+	 * @return the value or its copy
+	 */
+	private static ByteBuffer retained(ByteBuffer value) {
+		if (value == null || !value.isDirect()) {
+			return value;
+		}
+		ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+		copy.put(value.duplicate());
+		copy.flip();
+		return copy;
+	}
+	
+	/**
+	 * Returns a mutation statement whose values may be retained once the
+	 * logging call returns, e.g. by a deferred event.
+	 * 
+	 * @param origStatement mutation statement
+	 * @return a mutation statement bound to {@linkplain #retained(ByteBuffer) retained} values
+	 */
+	private static BoundStatement detach(BoundStatement origStatement) {
+		BoundStatement detached = origStatement.preparedStatement().bind();
+		int variables = origStatement.preparedStatement().getVariables().size();
+		for (int i = 0; i < variables; i++) {
+			detached.setBytesUnsafe(i, retained(origStatement.getBytesUnsafe(i)));
+		}
+		return detached;
+	}
+	
+	/**
+	 * Returns a serialized {@code timestamp} value.
+	 * 
+	 * @param time milliseconds since the epoch
+	 * @return serialized value
+	 */
+	private static ByteBuffer timestamp(long time) {
+		ByteBuffer value = ByteBuffer.allocate(8);
+		value.putLong(0, time);
+		return value;
+	}
+	
+	/**
+	 * Begins the mutation of the row mutated by the given statement, if only
+	 * changes of the entity are audited. The row's last audited state is
+	 * updated once the audit write has succeeded, see {@link #settle(Statement, boolean)}.
+	 * 
+	 * @param plan the mutation statement's audit plan
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param origStatement mutation statement
+	 * @return the pending row mutation, {@code null} if all values are audited
+	 */
+	private AuditStateCache.Pending diff(AuditPlan plan, String error, BoundStatement origStatement) {
+		// failed mutations did not change the row
+		if (plan.stateSlots == null || error != null) {
+			return null;
+		}
+		ByteBuffer[] key = new ByteBuffer[plan.keyCount];
+		for (int i = 0; i < plan.keyTargets.length; i++) {
+			if (plan.keyTargets[i] >= 0) {
+				key[plan.keyTargets[i]] = retained(origStatement.getBytesUnsafe(i));
+			}
+		}
+		AuditStateCache.Pending pending = stateCache.begin(new AuditStateCache.Row(plan.auditStatement, key));
+		if (plan.mutationType.equals(AuditRow.DELETE_MUTATION)) {
+			return pending;
+		}
+		long[] state = new long[plan.stateSize];
+		for (int i = 0; i < plan.stateSlots.length; i++) {
+			if (plan.stateSlots[i] >= 0) {
+				state[plan.stateSlots[i]] = AuditStateCache.hash(origStatement.getBytesUnsafe(i));
+			}
+		}
+		pending.state = state;
+		return pending;
+	}
+	
+	/**
+	 * Completes the row mutations audited by an audit write. A succeeded
+	 * write updates the rows' last audited state, a failed or discarded
+	 * write forgets it.
+	 * 
+	 * @param statement audit insert statement or batch
+	 * @param succeeded whether the write succeeded
+	 */
+	private void settle(Statement statement, boolean succeeded) {
+		if (pendingStates.isEmpty()) {
+			return;
+		}
+		if (statement instanceof BatchStatement) {
+			for (Statement inner : ((BatchStatement)statement).getStatements()) {
+				settle(inner, succeeded);
+			}
+			return;
+		}
+		AuditStateCache.Pending pending = pendingStates.remove(statement);
+		if (pending == null) {
+			return;
+		}
+		if (succeeded) {
+			stateCache.succeeded(pending);
+		} else {
+			stateCache.failed(pending);
+		}
+	}
+	
+	/**
+	 * Returns whether a mutation variable's value equals the row's last audited value.
+	 * 
+	 * @param plan the mutation statement's audit plan
+	 * @param previous the row's previous state, may be {@code null}
+	 * @param i variable index
+	 * @param origStatement mutation statement
+	 * @return {@code true} if the value is unchanged
+	 */
+	private static boolean unchanged(AuditPlan plan, long[] previous, int i, BoundStatement origStatement) {
+		if (previous == null || plan.stateSlots[i] < 0) {
+			return false;
+		}
+		return previous[plan.stateSlots[i]] == AuditStateCache.hash(origStatement.getBytesUnsafe(i));
+	}
+	
+	/**
+	 * Returns the serialized partition key values of the given audit insert statement.
+	 * 
+	 * @param plan audit plan the statement has been created with
+	 * @param bs audit insert statement
+	 * @return partition key values
+	 */
+	private static ByteBuffer[] partitionKey(AuditPlan plan, BoundStatement bs) {
+		boolean bucketed = plan.bucket != AuditBucket.NONE;
+		ByteBuffer[] partitionKey = new ByteBuffer[bucketed ? plan.keyCount + 1 : plan.keyCount];
+		for (int i = 0; i < plan.keyCount; i++) {
+			partitionKey[i] = bs.getBytesUnsafe(i);
+		}
+		if (bucketed) {
+			partitionKey[plan.keyCount] = bs.getBytesUnsafe(plan.auditColumn(AuditPlan.BUCKET));
+		}
+		return partitionKey;
+	}
+	
+	/**
+	 * Executes an audit insert statement or batch. If a journal is configured,
+	 * failed writes are appended to the journal, later writes are still
+	 * executed right away. If in-flight writes are limited, the
+	 * write waits for, queues for or is discarded without a free permit.
+	 * 
+	 * @param statement audit insert statement or batch
+	 */
+	private void write(Statement statement) {
+		if (limiter != null) {
+			statement = limiter.acquire(statement);
+			if (statement == null) {
+				return;
+			}
+		}
+		issue(statement);
+	}
+	
+	/**
+	 * Executes an audit write and the queued writes it is handed over on
+	 * completion. A write completing right away, on the issuing thread, hands
+	 * over its permit to the loop below instead of issuing the next write
+	 * recursively, so a long queue does not overflow the stack.
+	 * 
+	 * @param statement audit insert statement or batch holding an in-flight permit
+	 */
+	private void issue(Statement statement) {
+		Deque<Statement> pending = issuing.get();
+		if (pending != null) {
+			// issued by the loop further up this thread's stack
+			pending.add(statement);
+			return;
+		}
+		pending = new ArrayDeque<Statement>();
+		issuing.set(pending);
+		try {
+			for (Statement next = statement; next != null; next = pending.poll()) {
+				execute(next);
+			}
+		} finally {
+			issuing.remove();
+		}
+	}
+	
+	/**
+	 * Executes an audit insert statement or batch holding an in-flight permit,
+	 * if in-flight writes are limited.
+	 * 
+	 * @param statement audit insert statement or batch
+	 */
+	private void execute(final Statement statement) {
+		final long start = System.nanoTime();
+		ResultSetFuture future;
+		try {
+			future = session.executeAsync(statement);
+		} catch (RuntimeException e) {
+			failed(statement, System.nanoTime() - start, e);
+			return;
+		}
+		Futures.addCallback(future, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet result) {
+				settle(statement, true);
+				release();
+				recordWrite(statement, System.nanoTime() - start, true);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				failed(statement, System.nanoTime() - start, t);
+			}
+		});
+	}
+	
+	/**
+	 * Handles a failed audit write, appending it to the journal if one is configured.
+	 * 
+	 * @param statement audit insert statement or batch
+	 * @param latency write latency in nanoseconds
+	 * @param t the failure
+	 */
+	private void failed(Statement statement, long latency, Throwable t) {
+		settle(statement, false);
+		release();
+		recordWrite(statement, latency, false);
+		if (journal != null) {
+			logger.warn("Unable to store audit events, appending them to the journal.", t);
+			journal(statement);
+		}
+	}
+	
+	/**
+	 * Hands back the in-flight permit of a completed write, issuing a queued write.
+	 */
+	private void release() {
+		if (limiter != null) {
+			Statement next = limiter.release();
+			if (next != null) {
+				issue(next);
+			}
+		}
+	}
+	
+	/**
+	 * Records a completed audit write in the metrics of the audited entities.
+	 * 
+	 * @param statement audit insert statement or batch
+	 * @param latency write latency in nanoseconds
+	 * @param succeeded whether the write succeeded
+	 */
+	private void recordWrite(Statement statement, long latency, boolean succeeded) {
+		if (!(statement instanceof BatchStatement)) {
+			recordWrite(((BoundStatement)statement).preparedStatement(), 1, latency, succeeded);
+			return;
+		}
+		// the inserts of a batch are grouped by audit table
+		PreparedStatement current = null;
+		int events = 0;
+		for (Statement inner : ((BatchStatement)statement).getStatements()) {
+			PreparedStatement ps = ((BoundStatement)inner).preparedStatement();
+			if (ps != current && current != null) {
+				recordWrite(current, events, latency, succeeded);
+				events = 0;
+			}
+			current = ps;
+			events++;
+		}
+		if (current != null) {
+			recordWrite(current, events, latency, succeeded);
+		}
+	}
+	
+	private void recordWrite(PreparedStatement auditStatement, int events, long latency, boolean succeeded) {
+		AuditMetrics.EntityMetrics entity = entityMetrics.get(auditStatement);
+		if (entity != null) {
+			entity.written(events, latency, succeeded);
+		}
+	}
+	
+	/**
+	 * Records an audit write discarded by the in-flight limit in the metrics
+	 * of the audited entities.
+	 * 
+	 * @param statement audit insert statement or batch
+	 */
+	private void recordShed(Statement statement) {
+		if (statement instanceof BatchStatement) {
+			for (Statement inner : ((BatchStatement)statement).getStatements()) {
+				recordShed(inner);
+			}
+			return;
+		}
+		AuditMetrics.EntityMetrics entity = entityMetrics.get(((BoundStatement)statement).preparedStatement());
+		if (entity != null) {
+			entity.shed();
+		}
+	}
+	
+	/**
+	 * Appends an audit insert statement or batch to the journal.
+	 * 
+	 * @param statement audit insert statement or batch
+	 */
+	private void journal(Statement statement) {
+		if (statement instanceof BatchStatement) {
+			for (Statement inner : ((BatchStatement)statement).getStatements()) {
+				journal(inner);
+			}
+			return;
+		}
+		BoundStatement bs = (BoundStatement)statement;
+		ByteBuffer[] values = new ByteBuffer[bs.preparedStatement().getVariables().size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = bs.getBytesUnsafe(i);
+		}
+		if (!journal.append(bs.preparedStatement().getQueryString(), values)) {
+			logger.error("Audit journal rejected an audit event, the event is lost.");
+		}
+	}
+	
+	/**
+	 * Stores journaled audit insert statements. A journal record is keyed by
+	 * the audit insert query string and holds the statement's bound values.
+	 * Replayed writes wait for an in-flight permit, if in-flight writes are
+	 * limited, so that a replay after an outage does not flood the cluster.
+	 */
+	private class JournalReplayer implements AuditJournal.Replayer {
 		
-		List<String> pkc = primaryKeyColumns.get(entityName);
-		List<String> exc = excludedColumns.get(entityName);
-		StringBuffer values = new StringBuffer();
-		ColumnDefinitions columns = origPreparedStatement.getVariables();
-    	for (Definition def : columns) {
-    		String colName = def.getName();
-    		// if column is part of the entity's primary key
-    		// inject it into the audit statement
-    		if (pkc.contains(colName)) {
-    			// audit key is constructed from the entity's schema so type
-    			// checking is not necessary
-    			bs.setBytesUnsafe(colName, origStatement.getBytesUnsafe(colName));
-    		}
+		// only accessed by the journal's replay thread
+		private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
 
-    		// collect the original statemenet's values for this column
-    		// unless it is excluded
-    		if (!exc.contains(colName)) {
-	    		values.append(colName);
-	    		values.append(":");
-	    		values.append(origStatement.getObject(colName));
-	    		values.append("; ");
-    		}
-    	}
+		@Override
+		public boolean replay(String query, ByteBuffer[] values) {
+			try {
+				PreparedStatement ps = statements.get(query);
+				if (ps == null) {
+					ps = session.prepare(query);
+					statements.put(query, ps);
+				}
+				BoundStatement bs = ps.bind();
+				for (int i = 0; i < values.length; i++) {
+					bs.setBytesUnsafe(i, values[i]);
+				}
+				if (limiter != null) {
+					limiter.acquireUninterruptibly();
+				}
+				try {
+					session.execute(bs);
+				} finally {
+					release();
+				}
+				return true;
+			} catch (Exception e) {
+				logger.debug("Unable to replay audit journal, retrying later.", e);
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the audit plan of the given mutation statement, compiling
+	 * it on the statement's first use.
+	 * 
+	 * @param origPreparedStatement the mutation's prepared statement
+	 * @return audit plan
+	 */
+	private AuditPlan getPlan(PreparedStatement origPreparedStatement) {
+		AuditPlan plan = plans.get(origPreparedStatement);
+		if (plan != null) {
+			return plan;
+		}
+		
+		String entityName = mutatedEntity(origPreparedStatement);
 
-    	String cqlString = origPreparedStatement.getQueryString();
-		bs.setDate(AuditRow.COL_TIMESTAMP, new Date());
-		bs.setString(AuditRow.COL_MUTATION_TYPE, getMutationType(cqlString));
-		bs.setLong(AuditRow.COL_EXEC_TIME, execTime);
-		bs.setString(AuditRow.COL_ERROR, error);
-		bs.setString(AuditRow.COL_CQL_STRING, cqlString);
-		bs.setString(AuditRow.COL_STATEMENT_VALUES, values.toString());
+		Entity entity = entities.get(entityName);
+		if (entity == null) {
+			throw new IllegalStateException("AuditLogger has not been initialized for " + entityName);
+		}
 		
-		session.executeAsync(bs);
+		plan = new AuditPlan(origPreparedStatement, entity.auditStatement, entity.keyColumns, 
+				entity.excludedColumns, entity.valueFormat, entity.bucket, entity.clustering, entity.stateColumns);
+		plans.put(origPreparedStatement, plan);
+		return plan;
 	}
 
 	/**
@@ -164,13 +1194,36 @@ public class CassandraAuditLogger implements AuditLogger {
 	 * @param cql a CQL statement string
 	 * @return mutation type
 	 */
-	private static String getMutationType(String cql) {
-		switch(cql.substring(0, 3).toUpperCase()) {
-			case "INS": return AuditRow.INSERT_MUTATION;
-			case "UPD": return AuditRow.UPDATE_MUTATION;
-			case "DEL": return AuditRow.DELETE_MUTATION;
-			default: return AuditRow.UKNOWN_MUTATION;
+	static String getMutationType(String cql) {
+		// compared in place, the type is looked up for every audited mutation
+		if (cql.regionMatches(true, 0, "INS", 0, 3)) {
+			return AuditRow.INSERT_MUTATION;
+		} else if (cql.regionMatches(true, 0, "UPD", 0, 3)) {
+			return AuditRow.UPDATE_MUTATION;
+		} else if (cql.regionMatches(true, 0, "DEL", 0, 3)) {
+			return AuditRow.DELETE_MUTATION;
 		}
+		return AuditRow.UKNOWN_MUTATION;
+	}
+	
+	/**
+	 * Returns the name identifying an audited entity, its keyspace and table name.
+	 * 
+	 * @param mapper the entity's mapper
+	 * @return entity name, {@code keyspace.table}
+	 */
+	static String entityName(EntityMapper<?> mapper) {
+		return trim(mapper.getKeyspace()) + "." + trim(mapper.getTable());
+	}
+	
+	/**
+	 * Returns the name of the entity mutated by the given statement.
+	 * 
+	 * @param mutation the mutation's prepared statement
+	 * @return entity name, {@code keyspace.table}
+	 */
+	static String entityName(PreparedStatement mutation) {
+		return trim(mutation.getVariables().getKeyspace(0)) + "." + trim(mutation.getVariables().getTable(0));
 	}
 	
 	/**
@@ -189,10 +1242,13 @@ public class CassandraAuditLogger implements AuditLogger {
 	 * 
 	 * @param keyspaceName audit keyspace name
 	 * @param tableName audit table name
+	 * @param valueFormat format of the audit values
+	 * @param bucket time bucket of the audit table's partition key
 	 * @param mapper entity's mapper
 	 * @return CQL INSERT statement string
 	 */
-	private <T> String makePreparedStatement(String keyspaceName, String tableName, EntityMapper<T> mapper) {
+	private <T> String makePreparedStatement(String keyspaceName, String tableName, 
+			AuditValueFormat valueFormat, AuditBucket bucket, EntityMapper<T> mapper) {
 		Insert insert =	insertInto(keyspaceName, tableName);
 
 		for (ColumnMapper<T> cm : mapper.partitionKeys) {
@@ -208,7 +1264,10 @@ public class CassandraAuditLogger implements AuditLogger {
 		insert.value(AuditRow.COL_EXEC_TIME, bindMarker());
 		insert.value(AuditRow.COL_ERROR, bindMarker());		
 		insert.value(AuditRow.COL_CQL_STRING, bindMarker());
-		insert.value(AuditRow.COL_STATEMENT_VALUES, bindMarker());
+		insert.value(valueColumn(valueFormat), bindMarker());
+		if (bucket != AuditBucket.NONE) {
+			insert.value(AuditRow.COL_BUCKET, bindMarker());
+		}
 		
 		return insert.toString();
 	}
@@ -218,10 +1277,15 @@ public class CassandraAuditLogger implements AuditLogger {
 	 *  
 	 * @param keyspaceName audit table keyspace
 	 * @param tableName audit table name
+	 * @param valueFormat format of the audit values
+	 * @param bucket time bucket added to the partition key
+	 * @param clustering type of the clustering column
 	 * @param mapper entity's mapper
 	 * @return table create statement
 	 */
-	private <T> Statement createAuditTable(String keyspaceName, String tableName, EntityMapper<T> mapper) {
+	private <T> Statement createAuditTable(String keyspaceName, String tableName, 
+			AuditValueFormat valueFormat, AuditBucket bucket, AuditClustering clustering, 
+			EntityMapper<T> mapper) {
 		Create create = SchemaBuilder.createTable(keyspaceName, tableName).ifNotExists();
 
 		for (ColumnMapper<T> cm : mapper.partitionKeys) {
@@ -232,15 +1296,43 @@ public class CassandraAuditLogger implements AuditLogger {
 			create.addPartitionKey(cm.getColumnName(), cm.getDataType());
 		}
 		
+		if (bucket != AuditBucket.NONE) {
+			create.addPartitionKey(AuditRow.COL_BUCKET, DataType.timestamp());
+		}
+		
+		boolean timeuuid = clustering == AuditClustering.TIMEUUID;
 		create
-			.addClusteringColumn(AuditRow.COL_TIMESTAMP, DataType.timestamp())
+			.addClusteringColumn(AuditRow.COL_TIMESTAMP, timeuuid ? DataType.timeuuid() : DataType.timestamp())
 			.addColumn(AuditRow.COL_MUTATION_TYPE, DataType.text())
 			.addColumn(AuditRow.COL_EXEC_TIME, DataType.bigint())
 			.addColumn(AuditRow.COL_ERROR, DataType.text())			
 			.addColumn(AuditRow.COL_CQL_STRING, DataType.text())
-			.addColumn(AuditRow.COL_STATEMENT_VALUES, DataType.text());
+			.addColumn(valueColumn(valueFormat), valueType(valueFormat));
 		
-		return create;
+		// newest first, so the latest events of a row are a slice from the partition's start
+		return timeuuid ? create.withOptions().clusteringOrder(AuditRow.COL_TIMESTAMP, Direction.DESC) : create;
+	}
+	
+	/**
+	 * Returns the name of the audit table column that stores the mutation's values.
+	 * 
+	 * @param valueFormat format of the audit values
+	 * @return column name
+	 */
+	private static String valueColumn(AuditValueFormat valueFormat) {
+		return valueFormat == AuditValueFormat.BLOB_MAP 
+				? AuditRow.COL_STATEMENT_RAW_VALUES : AuditRow.COL_STATEMENT_VALUES;
+	}
+	
+	/**
+	 * Returns the type of the audit table column that stores the mutation's values.
+	 * 
+	 * @param valueFormat format of the audit values
+	 * @return column type
+	 */
+	private static DataType valueType(AuditValueFormat valueFormat) {
+		return valueFormat == AuditValueFormat.BLOB_MAP 
+				? DataType.map(DataType.text(), DataType.blob()) : DataType.text();
 	}
 
 	/**
@@ -250,7 +1342,7 @@ public class CassandraAuditLogger implements AuditLogger {
 	 * @param mapper the entity's mapper
 	 * @return a list of primary key columns 
 	 */
-	private <T> List<String> getKeyColumns(EntityMapper<T> mapper) {
+	static <T> List<String> getKeyColumns(EntityMapper<T> mapper) {
 		List<String> columns = new ArrayList<String>();
 		
 		for (ColumnMapper<T> cm : mapper.partitionKeys) {
@@ -263,6 +1355,20 @@ public class CassandraAuditLogger implements AuditLogger {
 		return columns;
 	}
 	
+	/**
+	 * Returns a list of the entity's columns that are not primary key columns.
+	 * 
+	 * @param mapper the entity's mapper
+	 * @return a list of regular column names
+	 */
+	static <T> List<String> getRegularColumns(EntityMapper<T> mapper) {
+		List<String> columns = new ArrayList<String>();
+		for (ColumnMapper<T> cm : mapper.regularColumns) {
+			columns.add(trim(cm.getColumnName()));
+		}
+		return columns;
+	}
+	
 	/**
 	 * Returns a list of columns (cells) whose values should not be
 	 * included into the audit log.
@@ -270,7 +1376,7 @@ public class CassandraAuditLogger implements AuditLogger {
 	 * @param mapper entity mapper
 	 * @return a list of column names
 	 */
-	private <T> List<String> getExcludedColumns(EntityMapper<T> mapper) {
+	static <T> List<String> getExcludedColumns(EntityMapper<T> mapper) {
 		ArrayList<String> excludedColumns = new ArrayList<String>();
 		for (Field f : mapper.entityClass.getDeclaredFields()) {
 			if (f.getAnnotation(AuditExclusion.class) != null) {
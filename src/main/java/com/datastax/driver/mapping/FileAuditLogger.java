@@ -0,0 +1,551 @@
+package com.datastax.driver.mapping;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.utils.Bytes;
+import com.google.common.collect.MapMaker;
+
+import io.smartcat.cassandra_audit.AuditBucket;
+import io.smartcat.cassandra_audit.AuditClustering;
+import io.smartcat.cassandra_audit.AuditConfiguration;
+import io.smartcat.cassandra_audit.AuditManager;
+import io.smartcat.cassandra_audit.AuditMetrics;
+import io.smartcat.cassandra_audit.AuditSink;
+import io.smartcat.cassandra_audit.AuditValueFormat;
+
+/**
+ * This is an implementation of {@link AuditLogger} that appends audit
+ * events to rolling local files, one JSON record per line:
+ * <pre>
+ * {"time":1468857600123,"entity":"ks.table","type":"INSERT","exec":1200345,"err":null,
+ *  "cql":"INSERT INTO ...","key":{"key":"test-key"},"values":"col1:value; "}
+ * </pre>
+ * Entities with the {@link AuditValueFormat#BLOB_MAP} format have a
+ * {@code raw_values} object of hex encoded serialized values instead.
+ * <p>
+ * Records are written by a single thread with group commit: records
+ * logged while a write is in progress are written together, with one
+ * {@link FileChannel#force(boolean)} call. A new file is started once the
+ * current one exceeds its maximum size or age. In synchronous mode
+ * {@link #log(long, long, String, BoundStatement)} returns once the
+ * record is on disk. The logger is closed once its session is closed.
+ */
+public class FileAuditLogger extends AbstractAuditLogger implements BorrowingAuditLogger, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileAuditLogger.class);
+
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+	private static final String FILE_PREFIX = "audit-";
+	private static final String FILE_SUFFIX = ".ndjson";
+
+	private static final ConcurrentMap<Session, FileAuditLogger> loggers =
+			new MapMaker().weakKeys().makeMap();
+
+	/**
+	 * Options of an audited entity.
+	 */
+	private static class Entity {
+		final String name;
+		final List<String> keyColumns;
+		final List<String> excludedColumns;
+		final AuditValueFormat valueFormat;
+		final AuditMetrics.EntityMetrics metrics;
+
+		Entity(String name, List<String> keyColumns, List<String> excludedColumns,
+				AuditValueFormat valueFormat, AuditMetrics.EntityMetrics metrics) {
+			this.name = name;
+			this.keyColumns = keyColumns;
+			this.excludedColumns = excludedColumns;
+			this.valueFormat = valueFormat;
+			this.metrics = metrics;
+		}
+	}
+
+	/**
+	 * Audit plan of a mutation statement and the mutated entity.
+	 */
+	private static class Target {
+		final Entity entity;
+		final AuditPlan plan;
+
+		Target(Entity entity, AuditPlan plan) {
+			this.entity = entity;
+			this.plan = plan;
+		}
+	}
+
+	/**
+	 * An encoded record waiting to be written.
+	 */
+	private static class Record {
+		final byte[] line;
+		final AuditMetrics.EntityMetrics metrics;
+		final long logged;
+
+		Record(byte[] line, AuditMetrics.EntityMetrics metrics, long logged) {
+			this.line = line;
+			this.metrics = metrics;
+			this.logged = logged;
+		}
+	}
+
+	private final File directory;
+	private final long maxSize;
+	private final long rollIntervalMillis;
+	private final boolean synchronous;
+	private final AuditMetrics metrics;
+	private final ConcurrentMap<String, Entity> entities = new ConcurrentHashMap<String, Entity>();
+	// compiled per mutation statement, weak keys compare statements by identity
+	private final ConcurrentMap<PreparedStatement, Target> targets = new MapMaker().weakKeys().makeMap();
+	private final Thread writer;
+
+	// guarded by this
+	private List<Record> pending = new ArrayList<Record>();
+	private long appended;
+	private long committed;
+	// sequence ranges of the groups that could not be written, first to last sequence
+	private final TreeMap<Long, Long> failed = new TreeMap<Long, Long>();
+	private boolean closed;
+
+	// confined to the writer thread
+	private FileChannel channel;
+	private long fileSize;
+	private long fileOpened;
+
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong files = new AtomicLong();
+
+	/**
+	 * Returns the file audit logger of the given session, opening it on first use.
+	 *
+	 * @param session a connection to a Cassandra cluster
+	 * @return the session's file audit logger
+	 */
+	static FileAuditLogger forSession(Session session) {
+		FileAuditLogger fileLogger = loggers.get(session);
+		if (fileLogger == null) {
+			AuditConfiguration configuration = AuditManager.getConfiguration(session);
+			FileAuditLogger newLogger = new FileAuditLogger(configuration.getFileDirectory(),
+					configuration.getFileMaxSize(), configuration.getFileRollIntervalMillis(),
+					configuration.isSynchronous(), AuditManager.getMetrics(session));
+			fileLogger = loggers.putIfAbsent(session, newLogger);
+			if (fileLogger == null) {
+				fileLogger = newLogger;
+				fileLogger.registerGauges();
+				AuditDispatcher.forSession(session).closeOnStop(fileLogger);
+			} else {
+				newLogger.close();
+			}
+		}
+		return fileLogger;
+	}
+
+	/**
+	 * Constructs a file audit logger and starts its writer thread.
+	 *
+	 * @param directory audit file directory, created if it does not exist
+	 * @param maxSize size in bytes at which a new file is started
+	 * @param rollIntervalMillis age at which a new file is started
+	 * @param synchronous whether logging waits until the record is on disk
+	 * @param metrics audit metrics
+	 * @see AuditSink#FILE
+	 */
+	public FileAuditLogger(File directory, long maxSize, long rollIntervalMillis, boolean synchronous,
+			AuditMetrics metrics) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Unable to create audit file directory " + directory);
+		}
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.rollIntervalMillis = rollIntervalMillis;
+		this.synchronous = synchronous;
+		this.metrics = metrics;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "cassandra-audit-file");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.mapping.AuditLogger#init(com.datastax.driver.mapping.AuditMapper)
+	 */
+	@Override
+	public <T> void init(AuditMapper<T> mapper) {
+		String entityName = CassandraAuditLogger.entityName(mapper.mapper);
+		if (entities.containsKey(entityName)) {
+			return;
+		}
+		entities.putIfAbsent(entityName, new Entity(entityName,
+				CassandraAuditLogger.getKeyColumns(mapper.mapper),
+				CassandraAuditLogger.getExcludedColumns(mapper.mapper),
+				mapper.auditOptions.valueFormat, metrics.entity(entityName)));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.datastax.driver.mapping.AbstractAuditLogger#log(long, long, java.lang.String, com.datastax.driver.core.BoundStatement)
+	 */
+	@Override
+	public void log(long time, long execTime, String error, BoundStatement origStatement) {
+		Target target = getTarget(origStatement.preparedStatement());
+		long sequence = append(encode(target.entity, target.plan, time, execTime, error, origStatement),
+				target.entity.metrics);
+		if (synchronous) {
+			awaitCommit(sequence);
+		}
+	}
+
+	/**
+	 * Hands an encoded record to the writer thread.
+	 *
+	 * @param line encoded record including the line separator
+	 * @param entityMetrics metrics of the audited entity, may be {@code null}
+	 * @return the record's sequence number
+	 */
+	synchronized long append(byte[] line, AuditMetrics.EntityMetrics entityMetrics) {
+		if (closed) {
+			throw new IllegalStateException("Audit file logger is closed.");
+		}
+		pending.add(new Record(line, entityMetrics, System.nanoTime()));
+		if (pending.size() == 1) {
+			notifyAll();
+		}
+		return ++appended;
+	}
+
+	/**
+	 * Waits until the record with the given sequence number has been written.
+	 *
+	 * @param sequence record sequence number
+	 * @throws IllegalStateException if the record could not be written
+	 */
+	synchronized void awaitCommit(long sequence) {
+		boolean interrupted = false;
+		while (committed < sequence) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		Map.Entry<Long, Long> range = failed.floorEntry(sequence);
+		if (range != null && range.getValue() >= sequence) {
+			throw new IllegalStateException("Unable to write audit record to " + directory + ".");
+		}
+	}
+
+	/**
+	 * Writes the pending records and stops the writer thread.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of {@link FileChannel#force(boolean)} calls, each committing a group of records.
+	 */
+	public long getCommits() {
+		return commits.get();
+	}
+
+	/**
+	 * Returns the number of files opened.
+	 */
+	public long getFiles() {
+		return files.get();
+	}
+
+	private void registerGauges() {
+		metrics.gauge("file.commits", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return commits.get();
+			}
+		});
+		metrics.gauge("file.files", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return files.get();
+			}
+		});
+	}
+
+	private void writeLoop() {
+		while (true) {
+			List<Record> batch;
+			long sequence;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// the writer thread is stopped by close
+					}
+				}
+				if (pending.isEmpty()) {
+					break;
+				}
+				batch = pending;
+				pending = new ArrayList<Record>();
+				sequence = appended;
+			}
+			boolean succeeded = write(batch);
+			long now = System.nanoTime();
+			for (Record record : batch) {
+				if (record.metrics != null) {
+					record.metrics.written(1, now - record.logged, succeeded);
+				}
+			}
+			synchronized (this) {
+				if (!succeeded) {
+					fail(committed + 1, sequence);
+				}
+				committed = sequence;
+				notifyAll();
+			}
+		}
+		closeFile();
+	}
+
+	/**
+	 * Records a group of records that could not be written. Consecutive
+	 * failed groups are merged into one range.
+	 *
+	 * @param first sequence number of the group's first record
+	 * @param last sequence number of the group's last record
+	 */
+	private void fail(long first, long last) {
+		Map.Entry<Long, Long> previous = failed.lastEntry();
+		if (previous != null && previous.getValue() == first - 1) {
+			failed.put(previous.getKey(), last);
+		} else {
+			failed.put(first, last);
+		}
+	}
+
+	/**
+	 * Writes and forces a group of records, starting a new file if needed.
+	 *
+	 * @param batch records to write
+	 * @return {@code true} if the records are on disk
+	 */
+	private boolean write(List<Record> batch) {
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		long size = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(batch.get(i).line);
+			size += buffers[i].remaining();
+		}
+		try {
+			if (channel == null || (fileSize > 0 && fileSize + size > maxSize)
+					|| System.currentTimeMillis() - fileOpened >= rollIntervalMillis) {
+				roll();
+			}
+			long written = 0;
+			while (written < size) {
+				written += channel.write(buffers);
+			}
+			channel.force(false);
+			fileSize += size;
+			commits.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to write audit records, " + batch.size() + " audit events are lost.", e);
+			// start over with a new file
+			closeFile();
+			return false;
+		}
+	}
+
+	private void roll() throws IOException {
+		closeFile();
+		fileOpened = System.currentTimeMillis();
+		// named by opening time, so that the names sort in write order
+		File file;
+		int i = 0;
+		do {
+			file = new File(directory, String.format("%s%d-%05d%s", FILE_PREFIX, fileOpened, i++, FILE_SUFFIX));
+		} while (file.exists());
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		fileSize = 0;
+		files.incrementAndGet();
+	}
+
+	private void closeFile() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close audit file.", e);
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Returns the audit plan and entity of the given mutation statement,
+	 * compiling the plan on the statement's first use.
+	 *
+	 * @param origPreparedStatement the mutation's prepared statement
+	 * @return audit plan and entity
+	 */
+	private Target getTarget(PreparedStatement origPreparedStatement) {
+		Target target = targets.get(origPreparedStatement);
+		if (target != null) {
+			return target;
+		}
+		String entityName = CassandraAuditLogger.entityName(origPreparedStatement);
+		Entity entity = entities.get(entityName);
+		if (entity == null) {
+			throw new IllegalStateException("AuditLogger has not been initialized for " + entityName);
+		}
+		target = new Target(entity, new AuditPlan(origPreparedStatement, null, entity.keyColumns,
+				entity.excludedColumns, entity.valueFormat, AuditBucket.NONE, AuditClustering.TIMESTAMP, null));
+		targets.put(origPreparedStatement, target);
+		return target;
+	}
+
+	/**
+	 * Encodes an audit event as a JSON record.
+	 *
+	 * @param entity the mutated entity
+	 * @param plan the mutation statement's audit plan
+	 * @param time mutation start time in milliseconds since the epoch
+	 * @param execTime mutation execution time in nanoseconds
+	 * @param error mutation error message, {@code null} if the mutation succeeded
+	 * @param origStatement mutation statement
+	 * @return the record including the line separator
+	 */
+	private static byte[] encode(Entity entity, AuditPlan plan, long time, long execTime, String error,
+			BoundStatement origStatement) {
+		String cqlString = origStatement.preparedStatement().getQueryString();
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"time\":").append(time);
+		json.append(",\"entity\":");
+		quote(json, entity.name);
+		json.append(",\"type\":");
+		quote(json, plan.mutationType);
+		json.append(",\"exec\":").append(execTime);
+		json.append(",\"err\":");
+		quote(json, error);
+		json.append(",\"cql\":");
+		quote(json, cqlString);
+
+		json.append(",\"key\":{");
+		boolean first = true;
+		for (int i = 0; i < plan.keyTargets.length; i++) {
+			if (plan.keyTargets[i] >= 0) {
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				quote(json, plan.columnNames[i]);
+				json.append(':');
+				Object value = origStatement.getObject(i);
+				quote(json, value != null ? value.toString() : null);
+			}
+		}
+		json.append('}');
+
+		if (plan.valueFormat == AuditValueFormat.BLOB_MAP) {
+			json.append(",\"raw_values\":{");
+			first = true;
+			for (int i = 0; i < plan.columnNames.length; i++) {
+				ByteBuffer value = origStatement.getBytesUnsafe(i);
+				if (!plan.excluded.get(i) && value != null) {
+					if (!first) {
+						json.append(',');
+					}
+					first = false;
+					quote(json, plan.columnNames[i]);
+					json.append(':');
+					quote(json, Bytes.toHexString(value));
+				}
+			}
+			json.append('}');
+		} else {
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < plan.columnNames.length; i++) {
+				if (!plan.excluded.get(i)) {
+					values.append(plan.valuePrefixes[i]);
+					values.append(origStatement.getObject(i));
+					values.append("; ");
+				}
+			}
+			json.append(",\"values\":");
+			quote(json, values.toString());
+		}
+		json.append("}\n");
+		return json.toString().getBytes(UTF8);
+	}
+
+	/**
+	 * Appends the given string as a JSON string literal.
+	 *
+	 * @param json the record being encoded
+	 * @param value string value, {@code null} is appended as JSON null
+	 */
+	private static void quote(StringBuilder json, String value) {
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"': json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int)c));
+					} else {
+						json.append(c);
+					}
+			}
+		}
+		json.append('"');
+	}
+}
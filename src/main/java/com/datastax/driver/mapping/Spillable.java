@@ -0,0 +1,11 @@
+package com.datastax.driver.mapping;
+
+import com.datastax.driver.core.BoundStatement;
+
+/**
+ * Implemented by {@link AuditLogger}s that can set aside audit events
+ * which overflow the audit queue instead of storing them right away.
+ */
+interface Spillable {
+	void spill(long time, long execTime, String error, BoundStatement statement);
+}
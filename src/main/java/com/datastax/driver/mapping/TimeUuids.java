@@ -0,0 +1,52 @@
+package com.datastax.driver.mapping;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.datastax.driver.core.utils.UUIDs;
+
+/**
+ * Generates version 1 (time-based) UUIDs for a given time. Unlike
+ * {@link UUIDs#timeBased()}, the UUID's timestamp is not the current time,
+ * so it cannot tell UUIDs apart on its own: events are not logged in time
+ * order and any number of them may share a millisecond. The clock sequence
+ * and node are therefore random for each UUID, with the multicast bit of
+ * the node set, as RFC 4122 requires of random nodes, so that two UUIDs for
+ * the same time, from this JVM or another, only collide with the
+ * probability of 62 random bits matching. The 100-nanosecond part of the
+ * timestamp is taken from a counter, so that UUIDs generated in turn for
+ * the same millisecond mostly sort in that order. It is not carried into
+ * the timestamp, so the time of a UUID is always the given time.
+ */
+final class TimeUuids {
+
+	// 100-nanosecond intervals between the UUID epoch, 1582-10-15, and the Unix epoch
+	private static final long UUID_EPOCH_OFFSET = 0x01b21dd213814000L;
+	private static final int TICKS_PER_MILLI = 10000;
+
+	private static final long VARIANT = 0x8000000000000000L;
+	private static final long MULTICAST = 0x0000010000000000L;
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private TimeUuids() {
+	}
+
+	/**
+	 * Returns a time-based UUID for the given time.
+	 *
+	 * @param millis milliseconds since the epoch
+	 * @return version 1 UUID
+	 */
+	static UUID forTime(long millis) {
+		int ticks = (counter.getAndIncrement() & Integer.MAX_VALUE) % TICKS_PER_MILLI;
+		long timestamp = millis * TICKS_PER_MILLI + UUID_EPOCH_OFFSET + ticks;
+		long msb = (timestamp & 0x00000000ffffffffL) << 32
+				| (timestamp & 0x0000ffff00000000L) >>> 16
+				| (timestamp & 0x0fff000000000000L) >>> 48
+				| 0x0000000000001000L; // version 1
+		long lsb = ThreadLocalRandom.current().nextLong() & ~0xc000000000000000L | VARIANT | MULTICAST;
+		return new UUID(msb, lsb);
+	}
+}
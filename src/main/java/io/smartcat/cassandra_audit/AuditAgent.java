@@ -5,6 +5,7 @@ import static net.bytebuddy.matcher.ElementMatchers.named;
 
 import java.lang.instrument.Instrumentation;
 
+import com.datastax.driver.mapping.AuditAccessorInterceptor;
 import com.datastax.driver.mapping.AuditMappingManagerInterceptor;
 
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -29,7 +30,9 @@ public class AuditAgent {
 					TypeDescription typeDescription) {
 				return builder
 						.method(named("getMapper"))
-						.intercept(MethodDelegation.to(AuditMappingManagerInterceptor.class));				
+						.intercept(MethodDelegation.to(AuditMappingManagerInterceptor.class))
+						.method(named("createAccessor"))
+						.intercept(MethodDelegation.to(AuditAccessorInterceptor.class));
 			}
 		})
 		.installOn(inst);
@@ -0,0 +1,73 @@
+package io.smartcat.cassandra_audit;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines the layout of an audit table's partitions. By default the audit
+ * events of an entity row are stored in a single partition keyed by the
+ * row's primary key, which grows without bounds for frequently mutated rows.
+ * A bucketed layout adds a {@code bucket timestamp} column, holding the start
+ * of the time bucket an event belongs to, to the partition key, so that a
+ * row's events are split into one partition per hour or day.
+ * <p>
+ * Readers of a bucketed audit table query one partition per bucket, see
+ * {@link #buckets(Date, Date)}.
+ */
+public enum AuditBucket {
+
+	/**
+	 * No bucket, all events of an entity row are stored in one partition.
+	 */
+	NONE(0),
+
+	/**
+	 * Events are bucketed per hour (UTC).
+	 */
+	HOUR(TimeUnit.HOURS.toMillis(1)),
+
+	/**
+	 * Events are bucketed per day (UTC).
+	 */
+	DAY(TimeUnit.DAYS.toMillis(1));
+
+	private final long millis;
+
+	private AuditBucket(long millis) {
+		this.millis = millis;
+	}
+
+	/**
+	 * Returns the start of the bucket holding the given time.
+	 *
+	 * @param time milliseconds since the epoch
+	 * @return bucket start in milliseconds since the epoch
+	 * @throws IllegalStateException if called on {@link #NONE}
+	 */
+	public long bucket(long time) {
+		if (this == NONE) {
+			throw new IllegalStateException("Audit bucket NONE has no buckets.");
+		}
+		long offset = time % millis;
+		return time - (offset < 0 ? offset + millis : offset);
+	}
+
+	/**
+	 * Returns the start of every bucket overlapping the given time range, that is,
+	 * the {@code bucket} values of the partitions to read for the range.
+	 *
+	 * @param from range start, inclusive
+	 * @param to range end, inclusive
+	 * @return bucket starts in ascending order
+	 * @throws IllegalStateException if called on {@link #NONE}
+	 */
+	public List<Date> buckets(Date from, Date to) {
+		List<Date> buckets = new ArrayList<Date>();
+		for (long bucket = bucket(from.getTime()); bucket <= to.getTime(); bucket += millis) {
+			buckets.add(new Date(bucket));
+		}
+		return buckets;
+	}
+}
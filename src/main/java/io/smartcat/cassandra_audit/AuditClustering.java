@@ -0,0 +1,23 @@
+package io.smartcat.cassandra_audit;
+
+/**
+ * Defines how the audit events of an entity row are ordered in the audit
+ * table, that is, the type and order of the {@code time} clustering column.
+ */
+public enum AuditClustering {
+
+	/**
+	 * Events are clustered by the mutation's start time, a {@code timestamp}
+	 * with millisecond precision, in ascending order. Events of the same row
+	 * that start in the same millisecond overwrite each other, as do the
+	 * events of a row mutated more than once in a batch.
+	 */
+	TIMESTAMP,
+
+	/**
+	 * Events are clustered by a {@code timeuuid} generated from the mutation's
+	 * start time, newest first. Every event gets a unique clustering key, and
+	 * the latest N events of a row are the first N rows of its partition.
+	 */
+	TIMEUUID
+}
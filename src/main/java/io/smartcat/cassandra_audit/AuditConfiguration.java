@@ -0,0 +1,720 @@
+package io.smartcat.cassandra_audit;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.mapping.MappingManager;
+
+/**
+ * Runtime options of the audit pipeline. A configuration is bound to a
+ * {@link Session} through {@link AuditManager#getMappingManager(Session, AuditConfiguration)};
+ * sessions without an explicit configuration use the defaults.
+ */
+public class AuditConfiguration {
+
+	private volatile boolean synchronous = false;
+	private volatile int queueCapacity = 8192;
+	private volatile long queueMaxBytes = 32L * 1024 * 1024;
+	// null applies the default, which depends on the journal
+	private volatile OverflowPolicy overflowPolicy;
+	private volatile int consumerThreads = 2;
+	private volatile AuditExecutorMode executorMode = AuditExecutorMode.THREADS;
+	private volatile Executor executor;
+	private volatile int offHeapSlabs = 0;
+	private volatile int offHeapSlabSize = 4096;
+	private volatile int batchSize = 1;
+	private volatile long batchDelayMillis = 10;
+	private volatile int maxInFlightWrites = 0;
+	private volatile InFlightPolicy inFlightPolicy = InFlightPolicy.WAIT;
+	private volatile File journalDirectory;
+	private volatile int journalSegmentSize = 16 * 1024 * 1024;
+	private volatile long journalReplayIntervalMillis = 1000;
+	private volatile MetricRegistry metricRegistry;
+	private volatile boolean jmxReporting = true;
+	private volatile AuditSink sink = AuditSink.CASSANDRA;
+	private volatile File fileDirectory = new File("audit");
+	private volatile long fileMaxSize = 64L * 1024 * 1024;
+	private volatile long fileRollIntervalMillis = 60 * 60 * 1000;
+	private volatile int stateCacheSize = 10000;
+	private volatile AuditSchemaMode schemaMode = AuditSchemaMode.EAGER;
+	private volatile boolean createTables = true;
+	private volatile int schemaThreads = 4;
+	private final ConcurrentMap<String, AuditSampling> samplings = new ConcurrentHashMap<String, AuditSampling>();
+
+	/**
+	 * Returns whether audit events are stored on the caller's thread
+	 * before the mutation method returns.
+	 *
+	 * @return {@code true} if auditing is synchronous
+	 */
+	public boolean isSynchronous() {
+		return synchronous;
+	}
+
+	/**
+	 * Sets the audit mode. By default auditing is fire-and-forget: the mutation
+	 * method returns as soon as the entity mutation completes and the audit event
+	 * is stored in the background. Synchronous mode stores the audit event on the
+	 * caller's thread and propagates audit errors to the caller. Asynchronous
+	 * mutations are then audited on a thread of the audit pipeline once they
+	 * complete, never on the driver's I/O threads.
+	 *
+	 * @param synchronous {@code true} to audit synchronously
+	 * @return this configuration
+	 */
+	public AuditConfiguration setSynchronous(boolean synchronous) {
+		this.synchronous = synchronous;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of audit events waiting to be stored.
+	 *
+	 * @return audit queue capacity
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of audit events waiting to be stored.
+	 * The default is 8192.
+	 *
+	 * @param queueCapacity audit queue capacity
+	 * @return this configuration
+	 */
+	public AuditConfiguration setQueueCapacity(int queueCapacity) {
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+		}
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum estimated size, in bytes, of audit events waiting to be stored.
+	 *
+	 * @return audit queue byte limit
+	 */
+	public long getQueueMaxBytes() {
+		return queueMaxBytes;
+	}
+
+	/**
+	 * Sets the maximum estimated size, in bytes, of audit events waiting to be stored.
+	 * The default is 32MB.
+	 *
+	 * @param queueMaxBytes audit queue byte limit
+	 * @return this configuration
+	 */
+	public AuditConfiguration setQueueMaxBytes(long queueMaxBytes) {
+		if (queueMaxBytes <= 0) {
+			throw new IllegalArgumentException("Queue byte limit must be positive: " + queueMaxBytes);
+		}
+		this.queueMaxBytes = queueMaxBytes;
+		return this;
+	}
+
+	/**
+	 * Returns the policy applied to audit events that do not fit into the queue.
+	 *
+	 * @return overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		if (overflowPolicy != null) {
+			return overflowPolicy;
+		}
+		return journalDirectory != null ? OverflowPolicy.SPILL : OverflowPolicy.DROP_NEWEST;
+	}
+
+	/**
+	 * Sets the policy applied to audit events that do not fit into the queue.
+	 * {@link OverflowPolicy#SPILL} appends overflowing events to the journal,
+	 * see {@link #setJournalDirectory(File)}; without a journal they are stored
+	 * on the mutating thread. The default never blocks the mutating thread:
+	 * it is {@link OverflowPolicy#SPILL} if a journal is configured and
+	 * {@link OverflowPolicy#DROP_NEWEST} otherwise.
+	 *
+	 * @param overflowPolicy overflow policy, {@code null} to apply the default
+	 * @return this configuration
+	 */
+	public AuditConfiguration setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * Returns the number of threads consuming the audit queue.
+	 *
+	 * @return number of consumer threads
+	 */
+	public int getConsumerThreads() {
+		return consumerThreads;
+	}
+
+	/**
+	 * Sets the number of threads consuming the audit queue. Unless the
+	 * {@link AuditExecutorMode#THREADS} mode is used, it is the maximum number
+	 * of audit events processed at once. The default is 2.
+	 *
+	 * @param consumerThreads number of consumer threads
+	 * @return this configuration
+	 */
+	public AuditConfiguration setConsumerThreads(int consumerThreads) {
+		if (consumerThreads <= 0) {
+			throw new IllegalArgumentException("Number of consumer threads must be positive: " + consumerThreads);
+		}
+		this.consumerThreads = consumerThreads;
+		return this;
+	}
+
+	/**
+	 * Returns the mode audit events are processed in.
+	 *
+	 * @return executor mode
+	 */
+	public AuditExecutorMode getExecutorMode() {
+		return executorMode;
+	}
+
+	/**
+	 * Sets the mode audit events are processed in. The default is
+	 * {@link AuditExecutorMode#THREADS}. {@link AuditExecutorMode#VIRTUAL}
+	 * pairs with a larger number of consumer threads, as processing an event
+	 * may block, e.g. on the maximum number of in-flight writes.
+	 *
+	 * @param executorMode executor mode
+	 * @return this configuration
+	 * @see #setConsumerThreads(int)
+	 */
+	public AuditConfiguration setExecutorMode(AuditExecutorMode executorMode) {
+		if (executorMode == null) {
+			throw new IllegalArgumentException("Executor mode must not be null.");
+		}
+		if (!executorMode.isAvailable()) {
+			throw new IllegalArgumentException("Executor mode is not supported by this JVM: " + executorMode);
+		}
+		this.executorMode = executorMode;
+		return this;
+	}
+
+	/**
+	 * Returns the executor processing audit events.
+	 *
+	 * @return the executor, {@code null} if the executor mode applies
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor processing audit events, instead of the executor
+	 * mode's. Events are taken from the audit queue by a dedicated thread and
+	 * handed to the executor, at most the number of consumer threads at once.
+	 * The executor is owned by the application and is not shut down when the
+	 * session is closed.
+	 *
+	 * @param executor the executor, {@code null} to apply the executor mode
+	 * @return this configuration
+	 */
+	public AuditConfiguration setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of direct buffer slabs holding pending audit events.
+	 *
+	 * @return maximum number of slabs, 0 if pending events are kept on the heap
+	 */
+	public int getOffHeapSlabs() {
+		return offHeapSlabs;
+	}
+
+	/**
+	 * Sets the maximum number of direct buffer slabs holding the values of
+	 * pending audit events. A pending event holding its values in a slab
+	 * retains only the mutation's prepared statement on the heap, so a full
+	 * audit queue does not add to the garbage collector's work. Events take
+	 * regions of the size of their values, packed one after another into a
+	 * slab. Off-heap memory is allocated on demand, up to the number of slabs
+	 * times the slab size, and a slab is reused once its events have been
+	 * processed. Events are kept on the heap while all slabs are in use or if
+	 * they do not fit a slab. By default pending events are kept on the heap.
+	 *
+	 * @param offHeapSlabs maximum number of slabs, 0 to keep pending events on the heap
+	 * @return this configuration
+	 */
+	public AuditConfiguration setOffHeapSlabs(int offHeapSlabs) {
+		if (offHeapSlabs < 0) {
+			throw new IllegalArgumentException("Number of off-heap slabs must not be negative: " + offHeapSlabs);
+		}
+		this.offHeapSlabs = offHeapSlabs;
+		return this;
+	}
+
+	/**
+	 * Returns the size of a direct buffer slab holding pending audit events.
+	 *
+	 * @return slab size in bytes
+	 */
+	public int getOffHeapSlabSize() {
+		return offHeapSlabSize;
+	}
+
+	/**
+	 * Sets the size of a direct buffer slab holding pending audit events,
+	 * which bounds the size of the values an off-heap event can hold. The
+	 * default is 4096 bytes.
+	 *
+	 * @param offHeapSlabSize slab size in bytes
+	 * @return this configuration
+	 */
+	public AuditConfiguration setOffHeapSlabSize(int offHeapSlabSize) {
+		if (offHeapSlabSize <= 0) {
+			throw new IllegalArgumentException("Off-heap slab size must be positive: " + offHeapSlabSize);
+		}
+		this.offHeapSlabSize = offHeapSlabSize;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of audit inserts written in one batch.
+	 *
+	 * @return maximum batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of audit inserts written in one batch. Audit inserts
+	 * are grouped per audit table partition and each group is written as an UNLOGGED
+	 * batch when it is full or when the batch delay elapses. The default is 1,
+	 * which disables batching.
+	 *
+	 * @param batchSize maximum batch size
+	 * @return this configuration
+	 */
+	public AuditConfiguration setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum time, in milliseconds, an audit insert waits for its batch to fill up.
+	 *
+	 * @return maximum batch delay
+	 */
+	public long getBatchDelayMillis() {
+		return batchDelayMillis;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, an audit insert waits for its batch
+	 * to fill up. Only used if batching is enabled. The default is 10 milliseconds.
+	 *
+	 * @param batchDelayMillis maximum batch delay
+	 * @return this configuration
+	 */
+	public AuditConfiguration setBatchDelayMillis(long batchDelayMillis) {
+		if (batchDelayMillis <= 0) {
+			throw new IllegalArgumentException("Batch delay must be positive: " + batchDelayMillis);
+		}
+		this.batchDelayMillis = batchDelayMillis;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of audit writes in flight.
+	 *
+	 * @return maximum number of in-flight audit writes, 0 if unlimited
+	 */
+	public int getMaxInFlightWrites() {
+		return maxInFlightWrites;
+	}
+
+	/**
+	 * Sets the maximum number of audit writes, statements or batches, in flight
+	 * at once. Capping them keeps bursts of audit writes from taking over the
+	 * connections' request ids from application queries. By default audit
+	 * writes are not limited.
+	 *
+	 * @param maxInFlightWrites maximum number of in-flight audit writes, 0 for no limit
+	 * @return this configuration
+	 */
+	public AuditConfiguration setMaxInFlightWrites(int maxInFlightWrites) {
+		if (maxInFlightWrites < 0) {
+			throw new IllegalArgumentException("Maximum in-flight writes must not be negative: " + maxInFlightWrites);
+		}
+		this.maxInFlightWrites = maxInFlightWrites;
+		return this;
+	}
+
+	/**
+	 * Returns the policy applied to audit writes issued while the maximum number is in flight.
+	 *
+	 * @return in-flight policy
+	 */
+	public InFlightPolicy getInFlightPolicy() {
+		return inFlightPolicy;
+	}
+
+	/**
+	 * Sets the policy applied to audit writes issued while the maximum number
+	 * is in flight. The default is {@link InFlightPolicy#WAIT}, which slows down
+	 * the audit queue consumers and lets the audit queue's overflow policy apply.
+	 *
+	 * @param inFlightPolicy in-flight policy
+	 * @return this configuration
+	 */
+	public AuditConfiguration setInFlightPolicy(InFlightPolicy inFlightPolicy) {
+		if (inFlightPolicy == null) {
+			throw new IllegalArgumentException("In-flight policy must not be null.");
+		}
+		this.inFlightPolicy = inFlightPolicy;
+		return this;
+	}
+
+	/**
+	 * Returns the directory of the local audit journal.
+	 *
+	 * @return journal directory, {@code null} if the journal is disabled
+	 */
+	public File getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	/**
+	 * Sets the directory of the local audit journal. Audit events that cannot
+	 * be stored, because the audit write failed or the audit queue overflowed
+	 * with {@link OverflowPolicy#SPILL}, are appended to the journal and replayed
+	 * in the background once audit writes succeed again. Only the failed events
+	 * are journaled, later events are still written right away. By default there
+	 * is no journal and such audit events are lost.
+	 *
+	 * @param journalDirectory journal directory, {@code null} to disable the journal
+	 * @return this configuration
+	 */
+	public AuditConfiguration setJournalDirectory(File journalDirectory) {
+		this.journalDirectory = journalDirectory;
+		return this;
+	}
+
+	/**
+	 * Returns the size of an audit journal segment file in bytes.
+	 *
+	 * @return journal segment size
+	 */
+	public int getJournalSegmentSize() {
+		return journalSegmentSize;
+	}
+
+	/**
+	 * Sets the size of an audit journal segment file in bytes. The default is 16MB.
+	 *
+	 * @param journalSegmentSize journal segment size
+	 * @return this configuration
+	 */
+	public AuditConfiguration setJournalSegmentSize(int journalSegmentSize) {
+		if (journalSegmentSize <= 0) {
+			throw new IllegalArgumentException("Journal segment size must be positive: " + journalSegmentSize);
+		}
+		this.journalSegmentSize = journalSegmentSize;
+		return this;
+	}
+
+	/**
+	 * Returns the delay, in milliseconds, between audit journal replays.
+	 *
+	 * @return journal replay interval
+	 */
+	public long getJournalReplayIntervalMillis() {
+		return journalReplayIntervalMillis;
+	}
+
+	/**
+	 * Sets the delay, in milliseconds, between audit journal replays. The default is 1 second.
+	 *
+	 * @param journalReplayIntervalMillis journal replay interval
+	 * @return this configuration
+	 */
+	public AuditConfiguration setJournalReplayIntervalMillis(long journalReplayIntervalMillis) {
+		if (journalReplayIntervalMillis <= 0) {
+			throw new IllegalArgumentException("Journal replay interval must be positive: " + journalReplayIntervalMillis);
+		}
+		this.journalReplayIntervalMillis = journalReplayIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * Returns the registry the audit metrics are registered with.
+	 *
+	 * @return metric registry, {@code null} if the audit pipeline uses its own registry
+	 */
+	public MetricRegistry getMetricRegistry() {
+		return metricRegistry;
+	}
+
+	/**
+	 * Sets the registry the audit metrics are registered with, see {@link AuditMetrics}.
+	 * By default the audit pipeline of each session uses its own registry.
+	 *
+	 * @param metricRegistry metric registry, {@code null} to use a registry of the audit pipeline
+	 * @return this configuration
+	 */
+	public AuditConfiguration setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+		return this;
+	}
+
+	/**
+	 * Returns whether the audit metrics are published as JMX MBeans.
+	 *
+	 * @return {@code true} if JMX reporting is enabled
+	 */
+	public boolean isJmxReporting() {
+		return jmxReporting;
+	}
+
+	/**
+	 * Sets whether the audit metrics are published as JMX MBeans, see
+	 * {@link AuditMetrics} for their domain. Disable it if the metric
+	 * registry is reported otherwise. The default is {@code true}.
+	 *
+	 * @param jmxReporting {@code true} to enable JMX reporting
+	 * @return this configuration
+	 */
+	public AuditConfiguration setJmxReporting(boolean jmxReporting) {
+		this.jmxReporting = jmxReporting;
+		return this;
+	}
+
+	/**
+	 * Returns where audit events are stored.
+	 *
+	 * @return audit sink
+	 */
+	public AuditSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Sets where audit events are stored. The default is {@link AuditSink#CASSANDRA}.
+	 *
+	 * @param sink audit sink
+	 * @return this configuration
+	 */
+	public AuditConfiguration setSink(AuditSink sink) {
+		if (sink == null) {
+			throw new IllegalArgumentException("Audit sink must not be null.");
+		}
+		this.sink = sink;
+		return this;
+	}
+
+	/**
+	 * Returns the directory of the audit files.
+	 *
+	 * @return audit file directory
+	 */
+	public File getFileDirectory() {
+		return fileDirectory;
+	}
+
+	/**
+	 * Sets the directory audit events are written to with {@link AuditSink#FILE}.
+	 * The default is the {@code audit} directory in the working directory.
+	 *
+	 * @param fileDirectory audit file directory, created if it does not exist
+	 * @return this configuration
+	 */
+	public AuditConfiguration setFileDirectory(File fileDirectory) {
+		if (fileDirectory == null) {
+			throw new IllegalArgumentException("Audit file directory must not be null.");
+		}
+		this.fileDirectory = fileDirectory;
+		return this;
+	}
+
+	/**
+	 * Returns the size, in bytes, at which a new audit file is started.
+	 *
+	 * @return maximum audit file size
+	 */
+	public long getFileMaxSize() {
+		return fileMaxSize;
+	}
+
+	/**
+	 * Sets the size, in bytes, at which a new audit file is started. The default is 64MB.
+	 *
+	 * @param fileMaxSize maximum audit file size
+	 * @return this configuration
+	 */
+	public AuditConfiguration setFileMaxSize(long fileMaxSize) {
+		if (fileMaxSize <= 0) {
+			throw new IllegalArgumentException("Audit file size must be positive: " + fileMaxSize);
+		}
+		this.fileMaxSize = fileMaxSize;
+		return this;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, after which a new audit file is started.
+	 *
+	 * @return audit file roll interval
+	 */
+	public long getFileRollIntervalMillis() {
+		return fileRollIntervalMillis;
+	}
+
+	/**
+	 * Sets the time, in milliseconds, after which a new audit file is started.
+	 * The default is 1 hour.
+	 *
+	 * @param fileRollIntervalMillis audit file roll interval
+	 * @return this configuration
+	 */
+	public AuditConfiguration setFileRollIntervalMillis(long fileRollIntervalMillis) {
+		if (fileRollIntervalMillis <= 0) {
+			throw new IllegalArgumentException("Audit file roll interval must be positive: " + fileRollIntervalMillis);
+		}
+		this.fileRollIntervalMillis = fileRollIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of entity rows whose last audited state is cached.
+	 *
+	 * @return state cache size
+	 */
+	public int getStateCacheSize() {
+		return stateCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of entity rows whose last audited state is cached
+	 * for the entities audited with {@link Auditable#changesOnly()}. The least
+	 * recently audited rows are evicted first, and the next mutation of an
+	 * evicted row is audited with all of its values. The default is 10000 rows.
+	 *
+	 * @param stateCacheSize state cache size
+	 * @return this configuration
+	 */
+	public AuditConfiguration setStateCacheSize(int stateCacheSize) {
+		if (stateCacheSize <= 0) {
+			throw new IllegalArgumentException("State cache size must be positive: " + stateCacheSize);
+		}
+		this.stateCacheSize = stateCacheSize;
+		return this;
+	}
+
+	/**
+	 * Returns when audit tables are set up.
+	 *
+	 * @return schema mode
+	 */
+	public AuditSchemaMode getSchemaMode() {
+		return schemaMode;
+	}
+
+	/**
+	 * Sets when the audit tables of audited entities are set up. The default
+	 * is {@link AuditSchemaMode#EAGER}.
+	 *
+	 * @param schemaMode schema mode
+	 * @return this configuration
+	 * @see AuditManager#bootstrap(MappingManager, Class...)
+	 */
+	public AuditConfiguration setSchemaMode(AuditSchemaMode schemaMode) {
+		if (schemaMode == null) {
+			throw new IllegalArgumentException("Schema mode must not be null.");
+		}
+		this.schemaMode = schemaMode;
+		return this;
+	}
+
+	/**
+	 * Returns whether missing audit tables are created.
+	 *
+	 * @return {@code true} if audit tables are created
+	 */
+	public boolean isCreateTables() {
+		return createTables;
+	}
+
+	/**
+	 * Sets whether missing audit tables are created. When the audit tables
+	 * are known to exist, e.g. they are created by schema migrations, setting
+	 * up an entity only prepares its audit insert statement and does not wait
+	 * for schema agreement. The default is {@code true}.
+	 *
+	 * @param createTables {@code false} to skip creating audit tables
+	 * @return this configuration
+	 */
+	public AuditConfiguration setCreateTables(boolean createTables) {
+		this.createTables = createTables;
+		return this;
+	}
+
+	/**
+	 * Returns the number of threads setting up audit tables at once.
+	 *
+	 * @return number of schema threads
+	 */
+	public int getSchemaThreads() {
+		return schemaThreads;
+	}
+
+	/**
+	 * Sets the number of threads setting up audit tables at once, in
+	 * {@link AuditSchemaMode#LAZY} mode and by
+	 * {@link AuditManager#bootstrap(MappingManager, Class...)}. The default is 4.
+	 *
+	 * @param schemaThreads number of schema threads
+	 * @return this configuration
+	 */
+	public AuditConfiguration setSchemaThreads(int schemaThreads) {
+		if (schemaThreads <= 0) {
+			throw new IllegalArgumentException("Number of schema threads must be positive: " + schemaThreads);
+		}
+		this.schemaThreads = schemaThreads;
+		return this;
+	}
+
+	/**
+	 * Returns the sampling policy set for the given entity.
+	 *
+	 * @param entityName entity name, {@code keyspace.table}
+	 * @return sampling policy, {@code null} if the entity uses the policy of its {@link Auditable} annotation
+	 */
+	public AuditSampling getSampling(String entityName) {
+		return samplings.get(entityName);
+	}
+
+	/**
+	 * Sets the sampling policy of the given entity, overriding the policy of its
+	 * {@link Auditable} annotation. The policy applies to mappers created
+	 * afterwards.
+	 *
+	 * @param entityName entity name, {@code keyspace.table}
+	 * @param sampling sampling policy, {@code null} to use the policy of the annotation
+	 * @return this configuration
+	 */
+	public AuditConfiguration setSampling(String entityName, AuditSampling sampling) {
+		if (sampling == null) {
+			samplings.remove(entityName);
+		} else {
+			samplings.put(entityName, sampling);
+		}
+		return this;
+	}
+}
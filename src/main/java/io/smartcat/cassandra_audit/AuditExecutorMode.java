@@ -0,0 +1,68 @@
+package io.smartcat.cassandra_audit;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides which threads process the audit events of a session's audit queue,
+ * see {@link AuditConfiguration#setExecutorMode(AuditExecutorMode)}.
+ */
+public enum AuditExecutorMode {
+
+	/**
+	 * A fixed set of dedicated consumer threads, each taking events from the
+	 * audit queue and processing them.
+	 */
+	THREADS,
+
+	/**
+	 * Events taken from the audit queue are processed by a work-stealing
+	 * {@link java.util.concurrent.ForkJoinPool}.
+	 */
+	WORK_STEALING,
+
+	/**
+	 * Each event taken from the audit queue is processed by a virtual thread
+	 * of its own. Requires Java 21 or later.
+	 */
+	VIRTUAL;
+
+	// null before Java 21
+	private static final Method newVirtualThreadPerTaskExecutor = lookUpVirtualThreads();
+
+	/**
+	 * Returns whether the mode is supported by the running JVM.
+	 *
+	 * @return {@code false} only for {@link #VIRTUAL} before Java 21
+	 */
+	public boolean isAvailable() {
+		return this != VIRTUAL || newVirtualThreadPerTaskExecutor != null;
+	}
+
+	/**
+	 * Creates an executor running each task in a virtual thread of its own.
+	 *
+	 * @return the executor
+	 * @throws IllegalStateException if virtual threads are not supported by the running JVM
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (newVirtualThreadPerTaskExecutor == null) {
+			throw new IllegalStateException("Virtual threads are not supported by this JVM.");
+		}
+		try {
+			return (ExecutorService)newVirtualThreadPerTaskExecutor.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Unable to create a virtual thread executor.", e);
+		}
+	}
+
+	private static Method lookUpVirtualThreads() {
+		try {
+			// the library is built for Java 7, virtual threads are looked up reflectively
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package io.smartcat.cassandra_audit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local write-ahead journal of audit records that could not be stored.
+ * Records are appended to fixed-size, memory-mapped segment files and
+ * replayed in the background, in order, by a {@link Replayer}. Replay
+ * progress is checkpointed so that a restarted journal resumes where it
+ * stopped, and segments are deleted once they are fully replayed.
+ * <p>
+ * Appended records are forced to disk every {@value #FORCE_INTERVAL}
+ * records and before each background replay, so that an operating system
+ * crash loses at most the records appended since.
+ * <p>
+ * A record consists of a key, typically identifying the statement the
+ * record's values are bound to, and a list of serialized values.
+ */
+public class AuditJournal implements Closeable {
+
+	/**
+	 * Stores journaled records.
+	 */
+	public interface Replayer {
+
+		/**
+		 * Stores a journaled record.
+		 *
+		 * @param key record key
+		 * @param values serialized values, {@code null} elements denote null values
+		 * @return {@code true} if the record has been stored, {@code false} to retry later
+		 */
+		boolean replay(String key, ByteBuffer[] values);
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(AuditJournal.class);
+
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+	private static final String SEGMENT_PREFIX = "audit-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int CHECKPOINT_INTERVAL = 1024;
+	static final int FORCE_INTERVAL = 64;
+
+	private final File directory;
+	private final int segmentSize;
+	private final FileChannel checkpoint;
+	private ScheduledExecutorService replayExecutor;
+
+	// append state, guarded by this
+	private long appendSegment;
+	private MappedByteBuffer appendBuffer;
+	private boolean closed;
+	// appended records that may not be on disk yet
+	private int unforced;
+
+	// replay state, confined to the replaying thread
+	private long replaySegment;
+	private int replayPosition;
+	private MappedByteBuffer replayBuffer;
+	private long checkpointSegment;
+	private int checkpointPosition;
+
+	// number of appended records the last replay caught up with,
+	// -1 until records left by a previous run have been replayed
+	private volatile long drainedAppended;
+
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Opens the journal in the given directory, resuming replay from the
+	 * last checkpoint. New records are appended to a new segment.
+	 *
+	 * @param directory journal directory, created if it does not exist
+	 * @param segmentSize size of a segment file in bytes
+	 * @throws IOException if the journal cannot be opened
+	 */
+	public AuditJournal(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create audit journal directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		List<Long> segments = segments();
+		this.checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+		ByteBuffer position = ByteBuffer.allocate(12);
+		if (checkpoint.read(position, 0) == 12) {
+			position.flip();
+			replaySegment = position.getLong();
+			replayPosition = position.getInt();
+		}
+		if (segments.isEmpty() || replaySegment < segments.get(0)) {
+			replaySegment = segments.isEmpty() ? 0 : segments.get(0);
+			replayPosition = 0;
+		}
+		checkpointSegment = replaySegment;
+		checkpointPosition = replayPosition;
+		drainedAppended = segments.isEmpty() ? 0 : -1;
+		long last = segments.isEmpty() ? replaySegment - 1 : segments.get(segments.size() - 1);
+		openAppendSegment(Math.max(last + 1, replaySegment));
+	}
+
+	/**
+	 * Appends a record to the journal.
+	 *
+	 * @param key record key
+	 * @param values serialized values, {@code null} elements denote null values
+	 * @return {@code true} if the record has been appended, {@code false} if it
+	 *         is larger than a segment or the journal is closed or not writable
+	 */
+	public synchronized boolean append(String key, ByteBuffer[] values) {
+		if (closed) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		byte[] keyBytes = key.getBytes(UTF8);
+		int length = 2 + keyBytes.length + 2;
+		for (ByteBuffer value : values) {
+			length += 4 + (value != null ? value.remaining() : 0);
+		}
+		if (4 + length > segmentSize) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		try {
+			if (appendBuffer.remaining() < 4 + length) {
+				appendBuffer.force();
+				unforced = 0;
+				openAppendSegment(appendSegment + 1);
+			}
+		} catch (IOException e) {
+			logger.error("Unable to roll audit journal segment.", e);
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		// the body is written first and the length last, so a partially
+		// written record is never visible to the replay
+		int start = appendBuffer.position();
+		appendBuffer.position(start + 4);
+		appendBuffer.putShort((short)keyBytes.length);
+		appendBuffer.put(keyBytes);
+		appendBuffer.putShort((short)values.length);
+		for (ByteBuffer value : values) {
+			if (value == null) {
+				appendBuffer.putInt(-1);
+			} else {
+				appendBuffer.putInt(value.remaining());
+				appendBuffer.put(value.duplicate());
+			}
+		}
+		appendBuffer.putInt(start, length);
+		appended.incrementAndGet();
+		if (++unforced == FORCE_INTERVAL) {
+			force();
+		}
+		return true;
+	}
+
+	/**
+	 * Forces the appended records to disk.
+	 */
+	public synchronized void force() {
+		if (closed || unforced == 0) {
+			return;
+		}
+		appendBuffer.force();
+		unforced = 0;
+	}
+
+	/**
+	 * Replays journaled records, in order, until the journal is exhausted or
+	 * the replayer refuses a record.
+	 *
+	 * @param replayer stores the journaled records
+	 * @return {@code true} if all appended records have been replayed
+	 */
+	public boolean replay(Replayer replayer) {
+		int sinceCheckpoint = 0;
+		try {
+			while (true) {
+				long limitSegment;
+				int limitPosition;
+				long limitAppended;
+				synchronized (this) {
+					if (closed) {
+						return false;
+					}
+					limitSegment = appendSegment;
+					limitPosition = appendBuffer.position();
+					limitAppended = appended.get();
+				}
+				boolean sealed = replaySegment < limitSegment;
+				if (!sealed && replayPosition >= limitPosition) {
+					// records appended since the limit was taken are not drained
+					drainedAppended = limitAppended;
+					return true;
+				}
+				if (replayBuffer == null) {
+					replayBuffer = map(replaySegment, FileChannel.MapMode.READ_ONLY);
+				}
+				int end = sealed ? segmentSize : limitPosition;
+				int length = replayPosition + 4 <= end ? replayBuffer.getInt(replayPosition) : 0;
+				if (length <= 0) {
+					// the end of a sealed segment
+					File file = segmentFile(replaySegment);
+					replaySegment++;
+					replayPosition = 0;
+					replayBuffer = null;
+					writeCheckpoint();
+					if (!file.delete()) {
+						logger.warn("Unable to delete replayed audit journal segment {}.", file);
+					}
+					continue;
+				}
+
+				if (!replayer.replay(readKey(replayPosition + 4), readValues(replayPosition + 4))) {
+					return false;
+				}
+				replayPosition += 4 + length;
+				replayed.incrementAndGet();
+				if (++sinceCheckpoint == CHECKPOINT_INTERVAL) {
+					writeCheckpoint();
+					sinceCheckpoint = 0;
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Unable to replay audit journal.", e);
+			return false;
+		} finally {
+			try {
+				writeCheckpoint();
+			} catch (IOException e) {
+				logger.error("Unable to checkpoint audit journal.", e);
+			}
+		}
+	}
+
+	/**
+	 * Starts replaying the journal in the background at the given interval.
+	 * Appended records are forced to disk before each replay.
+	 *
+	 * @param replayer stores the journaled records
+	 * @param intervalMillis delay between the end of a replay and the start of the next
+	 */
+	public synchronized void start(final Replayer replayer, long intervalMillis) {
+		if (replayExecutor != null || closed) {
+			return;
+		}
+		replayExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cassandra-audit-journal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		replayExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				force();
+				replay(replayer);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background replay, once it has stored the record in progress,
+	 * and flushes appended records to disk. Records appended afterwards are rejected.
+	 */
+	@Override
+	public void close() throws IOException {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			executor = replayExecutor;
+			replayExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			boolean interrupted = false;
+			while (!executor.isTerminated()) {
+				try {
+					executor.awaitTermination(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			appendBuffer.force();
+			// the segments are unmapped once the buffers are collected
+			appendBuffer = null;
+			replayBuffer = null;
+		}
+		checkpoint.close();
+	}
+
+	/**
+	 * Returns whether the last replay caught up with all records appended so far.
+	 */
+	public boolean isDrained() {
+		return drainedAppended == appended.get();
+	}
+
+	/**
+	 * Returns the number of records appended since the journal has been opened.
+	 */
+	public long getAppended() {
+		return appended.get();
+	}
+
+	/**
+	 * Returns the number of records replayed since the journal has been opened.
+	 */
+	public long getReplayed() {
+		return replayed.get();
+	}
+
+	/**
+	 * Returns the number of appended records that may not be on disk yet.
+	 */
+	public synchronized int getUnforced() {
+		return unforced;
+	}
+
+	/**
+	 * Returns the number of records that could not be appended.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private String readKey(int position) {
+		int keyLength = replayBuffer.getShort(position);
+		byte[] key = new byte[keyLength];
+		ByteBuffer source = replayBuffer.duplicate();
+		source.position(position + 2);
+		source.get(key);
+		return new String(key, UTF8);
+	}
+
+	private ByteBuffer[] readValues(int position) {
+		int offset = position + 2 + replayBuffer.getShort(position);
+		ByteBuffer[] values = new ByteBuffer[replayBuffer.getShort(offset)];
+		offset += 2;
+		for (int i = 0; i < values.length; i++) {
+			int length = replayBuffer.getInt(offset);
+			offset += 4;
+			if (length >= 0) {
+				// copy the value, the segment may be deleted once it is replayed
+				byte[] value = new byte[length];
+				ByteBuffer source = replayBuffer.duplicate();
+				source.position(offset);
+				source.get(value);
+				values[i] = ByteBuffer.wrap(value);
+				offset += length;
+			}
+		}
+		return values;
+	}
+
+	private void openAppendSegment(long segment) throws IOException {
+		appendBuffer = map(segment, FileChannel.MapMode.READ_WRITE);
+		appendSegment = segment;
+	}
+
+	private MappedByteBuffer map(long segment, FileChannel.MapMode mode) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(segment),
+				mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			if (mode == FileChannel.MapMode.READ_WRITE) {
+				file.setLength(segmentSize);
+			}
+			// the mapping stays valid after the file is closed
+			return file.getChannel().map(mode, 0, segmentSize);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void writeCheckpoint() throws IOException {
+		if (replaySegment == checkpointSegment && replayPosition == checkpointPosition) {
+			// nothing has been replayed since the last checkpoint
+			return;
+		}
+		ByteBuffer position = ByteBuffer.allocate(12);
+		position.putLong(replaySegment).putInt(replayPosition).flip();
+		checkpoint.write(position, 0);
+		checkpoint.force(false);
+		checkpointSegment = replaySegment;
+		checkpointPosition = replayPosition;
+	}
+
+	private File segmentFile(long segment) {
+		return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	private List<Long> segments() {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					segments.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length())));
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+}
@@ -4,10 +4,26 @@ import static net.bytebuddy.matcher.ElementMatchers.named;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.mapping.AuditAccessorInterceptor;
 import com.datastax.driver.mapping.AuditMappingManagerInterceptor;
+import com.datastax.driver.mapping.AuditSession;
+import com.datastax.driver.mapping.Mapper;
 import com.datastax.driver.mapping.MappingManager;
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
@@ -19,6 +35,15 @@ import net.bytebuddy.implementation.MethodDelegation;
  */
 public class AuditManager {
 	
+	private static final AuditConfiguration DEFAULT_CONFIGURATION = new AuditConfiguration();
+	
+	// weak keys compare sessions by identity and let closed sessions be collected
+	private static final ConcurrentMap<Session, AuditConfiguration> configurations = 
+			new MapMaker().weakKeys().makeMap();
+	
+	private static final ConcurrentMap<Session, AuditMetrics> metrics = 
+			new MapMaker().weakKeys().makeMap();
+	
 	/**
 	 * Returns an modified instance of {@link MappingManger} that,
 	 * in turn, generates {@link AuditMapper} instead of plain {@link Mapper}.
@@ -27,10 +52,139 @@ public class AuditManager {
 	 * @return instrumented instance of {@link MappingManager}
 	 */
 	public static MappingManager getMappingManager(Session session) {
+		return createMappingManager(session);
+	}
+
+	/**
+	 * Returns an modified instance of {@link MappingManger} whose audit
+	 * pipeline is set up using the given configuration.
+	 * 
+	 * @param session a connection to a Cassandra cluster
+	 * @param configuration audit configuration bound to the given session
+	 * @return instrumented instance of {@link MappingManager}
+	 */
+	public static MappingManager getMappingManager(Session session, AuditConfiguration configuration) {
+		configurations.put(session, configuration);
+		return createMappingManager(session);
+	}
+	
+	/**
+	 * Returns a session that audits the mutations of audited entities executed
+	 * directly through it as bound statements, see {@link AuditSession#audit(Class)}.
+	 * 
+	 * @param session a connection to a Cassandra cluster
+	 * @return auditing session wrapping the given session
+	 */
+	public static AuditSession getAuditSession(Session session) {
+		return new AuditSession(session, createMappingManager(session));
+	}
+	
+	/**
+	 * Returns a session that audits the mutations of audited entities executed
+	 * directly through it as bound statements, whose audit pipeline is set up
+	 * using the given configuration.
+	 * 
+	 * @param session a connection to a Cassandra cluster
+	 * @param configuration audit configuration bound to the given session
+	 * @return auditing session wrapping the given session
+	 */
+	public static AuditSession getAuditSession(Session session, AuditConfiguration configuration) {
+		configurations.put(session, configuration);
+		return new AuditSession(session, createMappingManager(session));
+	}
+	
+	/**
+	 * Creates the mappers of the given entity classes at once, so that the
+	 * audit tables of the auditable ones are set up in parallel, by at most
+	 * {@link AuditConfiguration#getSchemaThreads()} threads, instead of one
+	 * after another as the mappers are first used. Returns once the audit
+	 * tables are ready, in {@link AuditSchemaMode#LAZY} mode once their set up
+	 * has started.
+	 * 
+	 * @param manager an audit-augmented mapping manager
+	 * @param entityClasses entity classes, e.g. all entity classes of the application
+	 * @return the mappers of the given classes, in the same order
+	 */
+	public static List<Mapper<?>> bootstrap(final MappingManager manager, Class<?>... entityClasses) {
+		int threads = Math.min(getConfiguration(manager.getSession()).getSchemaThreads(), entityClasses.length);
+		if (threads == 0) {
+			return new ArrayList<Mapper<?>>();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cassandra-audit-bootstrap");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<Mapper<?>>> futures = new ArrayList<Future<Mapper<?>>>();
+			for (final Class<?> entityClass : entityClasses) {
+				futures.add(executor.submit(new Callable<Mapper<?>>() {
+					@Override
+					public Mapper<?> call() {
+						return manager.mapper(entityClass);
+					}
+				}));
+			}
+			List<Mapper<?>> mappers = new ArrayList<Mapper<?>>();
+			for (Future<Mapper<?>> future : futures) {
+				try {
+					mappers.add(Uninterruptibles.getUninterruptibly(future));
+				} catch (ExecutionException e) {
+					throw Throwables.propagate(e.getCause());
+				}
+			}
+			return mappers;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Returns the audit configuration bound to the given session, or the
+	 * default configuration if none has been set.
+	 * 
+	 * @param session a connection to a Cassandra cluster
+	 * @return audit configuration
+	 */
+	public static AuditConfiguration getConfiguration(Session session) {
+		AuditConfiguration configuration = configurations.get(session);
+		return configuration != null ? configuration : DEFAULT_CONFIGURATION;
+	}
+	
+	/**
+	 * Returns the audit metrics of the given session, creating them on first use
+	 * from the session's audit configuration.
+	 * 
+	 * @param session a connection to a Cassandra cluster
+	 * @return audit metrics
+	 */
+	public static AuditMetrics getMetrics(Session session) {
+		AuditMetrics sessionMetrics = metrics.get(session);
+		if (sessionMetrics == null) {
+			AuditConfiguration configuration = getConfiguration(session);
+			MetricRegistry registry = configuration.getMetricRegistry();
+			AuditMetrics newMetrics = new AuditMetrics(registry != null ? registry : new MetricRegistry(),
+					configuration.isJmxReporting());
+			sessionMetrics = metrics.putIfAbsent(session, newMetrics);
+			if (sessionMetrics == null) {
+				sessionMetrics = newMetrics;
+			} else {
+				newMetrics.stop();
+			}
+		}
+		return sessionMetrics;
+	}
+	
+	private static MappingManager createMappingManager(Session session) {
 		Class<?> mappingManagerClass = new ByteBuddy()
 			.subclass(MappingManager.class)
 			.method(named("mapper"))
 			.intercept(MethodDelegation.to(AuditMappingManagerInterceptor.class))
+			.method(named("createAccessor"))
+			.intercept(MethodDelegation.to(AuditAccessorInterceptor.class))
 			.make()
 			.load(AuditManager.class.getClassLoader(), ClassLoadingStrategy.Default.INJECTION)
 			.getLoaded();
@@ -0,0 +1,327 @@
+package io.smartcat.cassandra_audit;
+
+import java.io.Closeable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.Session;
+
+/**
+ * Metrics of the audit pipeline of a {@link Session}. Global metrics are
+ * named {@code audit.<metric>} and the metrics of an audited entity
+ * {@code audit.entities.<keyspace>.<table>.<metric>}:
+ * <ul>
+ * <li>{@code events.enqueued}, {@code events.written}, {@code events.failed},
+ * {@code events.dropped}, {@code events.shed} and {@code events.skipped}:
+ * meters of audit events handed to the pipeline, stored, whose write failed,
+ * rejected by a full audit queue, whose write was discarded by the
+ * {@link InFlightPolicy}, and skipped by the entity's {@link AuditSampling}</li>
+ * <li>{@code writes}: timer of audit write latency</li>
+ * <li>{@code mutations.<type>}: timer of the audited mutations' execution time,
+ * per mutation type</li>
+ * </ul>
+ * The pipeline also registers gauges of the audit queue, {@code queue.depth},
+ * {@code queue.bytes}, {@code events.evicted} and {@code events.spilled}, of
+ * the off-heap event slabs, {@code offheap.slabs} and {@code offheap.inuse},
+ * and of the journal, {@code journal.appended}, {@code journal.replayed} and
+ * {@code journal.rejected}. Sessions sharing a registry share its metrics,
+ * and a gauge is registered by the first session only.
+ * <p>
+ * A registry is published as JMX MBeans by one reporter, whichever number of
+ * sessions use it, until the last of them is closed. The first reported
+ * registry is published in the {@link #JMX_DOMAIN} domain, later ones in
+ * {@code JMX_DOMAIN-<n>}, so the MBeans of sessions with their own
+ * registries do not collide.
+ *
+ * @see AuditConfiguration#setMetricRegistry(MetricRegistry)
+ */
+public class AuditMetrics implements Closeable {
+
+	/**
+	 * JMX domain of the audit metrics MBeans.
+	 */
+	public static final String JMX_DOMAIN = "io.smartcat.cassandra_audit";
+
+	private static final String PREFIX = "audit";
+
+	// JMX reporters of the reported registries, guarded by themselves
+	private static final Map<MetricRegistry, Reporter> reporters = new IdentityHashMap<MetricRegistry, Reporter>();
+	// number of registries reported so far, numbers the JMX domains
+	private static int reportedRegistries;
+
+	private final MetricRegistry registry;
+	private final Events events;
+	private final ConcurrentMap<String, EntityMetrics> entities = new ConcurrentHashMap<String, EntityMetrics>();
+	// whether this instance uses the registry's reporter, guarded by reporters
+	private boolean reporting;
+
+	/**
+	 * JMX reporter of a registry and the number of instances using it.
+	 */
+	private static class Reporter {
+		final JmxReporter reporter;
+		int users;
+
+		Reporter(JmxReporter reporter) {
+			this.reporter = reporter;
+		}
+	}
+
+	/**
+	 * Audit event meters and write latency timer, either global or of an entity.
+	 */
+	public static class Events {
+		private final Meter enqueued;
+		private final Meter written;
+		private final Meter failed;
+		private final Meter dropped;
+		private final Meter shed;
+		private final Meter skipped;
+		private final Timer writes;
+
+		Events(MetricRegistry registry, String prefix) {
+			this.enqueued = registry.meter(MetricRegistry.name(prefix, "events", "enqueued"));
+			this.written = registry.meter(MetricRegistry.name(prefix, "events", "written"));
+			this.failed = registry.meter(MetricRegistry.name(prefix, "events", "failed"));
+			this.dropped = registry.meter(MetricRegistry.name(prefix, "events", "dropped"));
+			this.shed = registry.meter(MetricRegistry.name(prefix, "events", "shed"));
+			this.skipped = registry.meter(MetricRegistry.name(prefix, "events", "skipped"));
+			this.writes = registry.timer(MetricRegistry.name(prefix, "writes"));
+		}
+
+		public Meter getEnqueued() {
+			return enqueued;
+		}
+
+		public Meter getWritten() {
+			return written;
+		}
+
+		public Meter getFailed() {
+			return failed;
+		}
+
+		public Meter getDropped() {
+			return dropped;
+		}
+
+		public Meter getShed() {
+			return shed;
+		}
+
+		public Meter getSkipped() {
+			return skipped;
+		}
+
+		public Timer getWrites() {
+			return writes;
+		}
+	}
+
+	/**
+	 * Metrics of an audited entity. Recording an event also records it in
+	 * the global metrics.
+	 */
+	public static class EntityMetrics extends Events {
+		private final Events global;
+		private final MetricRegistry registry;
+		private final String prefix;
+		private final ConcurrentMap<String, Timer> mutations = new ConcurrentHashMap<String, Timer>();
+
+		EntityMetrics(MetricRegistry registry, String prefix, Events global) {
+			super(registry, prefix);
+			this.registry = registry;
+			this.prefix = prefix;
+			this.global = global;
+		}
+
+		/**
+		 * Records an audit event handed to the audit pipeline.
+		 */
+		public void enqueued() {
+			getEnqueued().mark();
+			global.enqueued.mark();
+		}
+
+		/**
+		 * Records an audit event rejected by the audit queue.
+		 */
+		public void dropped() {
+			getDropped().mark();
+			global.dropped.mark();
+		}
+
+		/**
+		 * Records an audit event whose write was discarded by the in-flight policy.
+		 */
+		public void shed() {
+			getShed().mark();
+			global.shed.mark();
+		}
+
+		/**
+		 * Records an audit event skipped by the entity's sampling.
+		 */
+		public void skipped() {
+			getSkipped().mark();
+			global.skipped.mark();
+		}
+
+		/**
+		 * Records a completed audit write.
+		 *
+		 * @param events number of audit events written
+		 * @param latency write latency in nanoseconds
+		 * @param succeeded whether the write succeeded
+		 */
+		public void written(int events, long latency, boolean succeeded) {
+			getWrites().update(latency, TimeUnit.NANOSECONDS);
+			global.writes.update(latency, TimeUnit.NANOSECONDS);
+			if (succeeded) {
+				getWritten().mark(events);
+				global.written.mark(events);
+			} else {
+				getFailed().mark(events);
+				global.failed.mark(events);
+			}
+		}
+
+		/**
+		 * Records the execution time of an audited mutation.
+		 *
+		 * @param mutationType mutation type
+		 * @param execTime mutation execution time in nanoseconds
+		 */
+		public void mutation(String mutationType, long execTime) {
+			getMutations(mutationType).update(execTime, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Returns the timer of the mutations of the given type.
+		 *
+		 * @param mutationType mutation type
+		 * @return mutation execution time timer
+		 */
+		public Timer getMutations(String mutationType) {
+			Timer timer = mutations.get(mutationType);
+			if (timer == null) {
+				timer = registry.timer(MetricRegistry.name(prefix, "mutations", mutationType));
+				mutations.put(mutationType, timer);
+			}
+			return timer;
+		}
+	}
+
+	/**
+	 * Constructs the metrics in the given registry.
+	 *
+	 * @param registry metric registry
+	 * @param jmxReporting whether to publish the registry's metrics as JMX MBeans
+	 */
+	public AuditMetrics(MetricRegistry registry, boolean jmxReporting) {
+		this.registry = registry;
+		this.events = new Events(registry, PREFIX);
+		if (jmxReporting) {
+			synchronized (reporters) {
+				Reporter reporter = reporters.get(registry);
+				if (reporter == null) {
+					String domain = reportedRegistries++ == 0 ? JMX_DOMAIN : JMX_DOMAIN + "-" + reportedRegistries;
+					reporter = new Reporter(JmxReporter.forRegistry(registry).inDomain(domain).build());
+					reporter.reporter.start();
+					reporters.put(registry, reporter);
+				}
+				reporter.users++;
+				reporting = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the registry holding the metrics.
+	 */
+	public MetricRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Returns the global metrics.
+	 */
+	public Events getEvents() {
+		return events;
+	}
+
+	/**
+	 * Returns the metrics of the given entity, creating them on first use.
+	 *
+	 * @param entityName entity name, {@code keyspace.table}
+	 * @return entity metrics
+	 */
+	public EntityMetrics entity(String entityName) {
+		EntityMetrics metrics = entities.get(entityName);
+		if (metrics == null) {
+			EntityMetrics newMetrics = new EntityMetrics(registry,
+					MetricRegistry.name(PREFIX, "entities", entityName), events);
+			metrics = entities.putIfAbsent(entityName, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Registers a gauge, unless the registry has a metric of the same name,
+	 * e.g. the gauge of another session sharing the registry.
+	 *
+	 * @param name metric name relative to the audit metrics prefix
+	 * @param gauge the gauge
+	 * @return {@code true} if the gauge has been registered
+	 */
+	public boolean gauge(String name, Gauge<?> gauge) {
+		String fullName = MetricRegistry.name(PREFIX, name);
+		if (registry.getMetrics().containsKey(fullName)) {
+			return false;
+		}
+		try {
+			registry.register(fullName, gauge);
+			return true;
+		} catch (IllegalArgumentException e) {
+			// registered concurrently
+			return false;
+		}
+	}
+
+	/**
+	 * Stops publishing the metrics as JMX MBeans, once no other instance
+	 * reports the same registry. Stopping twice has no effect.
+	 */
+	public void stop() {
+		synchronized (reporters) {
+			if (!reporting) {
+				return;
+			}
+			reporting = false;
+			Reporter reporter = reporters.get(registry);
+			if (--reporter.users == 0) {
+				reporter.reporter.stop();
+				reporters.remove(registry);
+			}
+		}
+	}
+
+	/**
+	 * Stops the metrics, see {@link #stop()}.
+	 */
+	@Override
+	public void close() {
+		stop();
+	}
+}
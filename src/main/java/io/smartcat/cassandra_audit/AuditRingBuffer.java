@@ -0,0 +1,303 @@
+package io.smartcat.cassandra_audit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, preallocated FIFO ring buffer of audit events that is limited
+ * both by the number of events and by their estimated size in bytes.
+ * Any number of producers and consumers may use the buffer concurrently.
+ * What happens when an offered event does not fit is decided by the buffer's
+ * {@link OverflowPolicy}, and every decision is counted.
+ *
+ * @param <E> event type
+ */
+public class AuditRingBuffer<E> {
+
+	/**
+	 * Estimates the memory retained by a buffered event.
+	 */
+	public interface Weigher<E> {
+		int weigh(E event);
+	}
+
+	/**
+	 * Receives events that overflow a buffer using {@link OverflowPolicy#SPILL}.
+	 */
+	public interface SpillHandler<E> {
+		void spill(E event);
+	}
+
+	/**
+	 * Receives events discarded by a buffer using {@link OverflowPolicy#DROP_OLDEST}.
+	 * It is called while holding the buffer's lock and must not block.
+	 */
+	public interface EvictionHandler<E> {
+		void evicted(E event);
+	}
+
+	private final Object[] slots;
+	private final long maxBytes;
+	private final OverflowPolicy policy;
+	private final Weigher<? super E> weigher;
+	private final SpillHandler<? super E> spillHandler;
+	private final EvictionHandler<? super E> evictionHandler;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	// guarded by lock
+	private int head;
+	private int count;
+	private long bytes;
+	private final int[] weights;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong droppedNewest = new AtomicLong();
+	private final AtomicLong droppedOldest = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * Constructs a ring buffer.
+	 *
+	 * @param capacity maximum number of buffered events
+	 * @param maxBytes maximum estimated size of buffered events in bytes
+	 * @param policy overflow policy
+	 * @param weigher event size estimator
+	 * @param spillHandler receiver of overflowing events, required for {@link OverflowPolicy#SPILL}
+	 */
+	public AuditRingBuffer(int capacity, long maxBytes, OverflowPolicy policy,
+			Weigher<? super E> weigher, SpillHandler<? super E> spillHandler) {
+		this(capacity, maxBytes, policy, weigher, spillHandler, null);
+	}
+
+	/**
+	 * Constructs a ring buffer.
+	 *
+	 * @param capacity maximum number of buffered events
+	 * @param maxBytes maximum estimated size of buffered events in bytes
+	 * @param policy overflow policy
+	 * @param weigher event size estimator
+	 * @param spillHandler receiver of overflowing events, required for {@link OverflowPolicy#SPILL}
+	 * @param evictionHandler receiver of evicted events, may be {@code null}
+	 */
+	public AuditRingBuffer(int capacity, long maxBytes, OverflowPolicy policy,
+			Weigher<? super E> weigher, SpillHandler<? super E> spillHandler,
+			EvictionHandler<? super E> evictionHandler) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Byte limit must be positive: " + maxBytes);
+		}
+		if (policy == OverflowPolicy.SPILL && spillHandler == null) {
+			throw new IllegalArgumentException("Overflow policy SPILL requires a spill handler.");
+		}
+		this.slots = new Object[capacity];
+		this.weights = new int[capacity];
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.weigher = weigher;
+		this.spillHandler = spillHandler;
+		this.evictionHandler = evictionHandler;
+	}
+
+	/**
+	 * Offers an event to the buffer, applying the overflow policy if it does
+	 * not fit. An event is always accepted by an empty buffer, regardless of
+	 * its size.
+	 *
+	 * @param event event to buffer
+	 * @return {@code true} if the event has been buffered
+	 */
+	public boolean offer(E event) {
+		return offer(event, true);
+	}
+
+	/**
+	 * Offers an event to the buffer, applying the overflow policy if it does
+	 * not fit. A producer that must not wait, e.g. a driver I/O thread,
+	 * discards the event instead of blocking with {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @param event event to buffer
+	 * @param block {@code false} if the producer must not wait for room
+	 * @return {@code true} if the event has been buffered
+	 */
+	public boolean offer(E event, boolean block) {
+		int weight = weigher.weigh(event);
+		if (enqueue(event, weight, block)) {
+			return true;
+		}
+		if (policy == OverflowPolicy.SPILL) {
+			// the spill handler may be slow, it runs without holding the lock
+			spilled.incrementAndGet();
+			spillHandler.spill(event);
+		}
+		return false;
+	}
+
+	private boolean enqueue(E event, int weight, boolean block) {
+		lock.lock();
+		try {
+			if (!fits(weight)) {
+				switch (policy) {
+				case BLOCK:
+					if (!block) {
+						droppedNewest.incrementAndGet();
+						return false;
+					}
+					blocked.incrementAndGet();
+					try {
+						while (!fits(weight)) {
+							notFull.await();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						droppedNewest.incrementAndGet();
+						return false;
+					}
+					break;
+				case DROP_OLDEST:
+					while (!fits(weight)) {
+						E evicted = removeFirst();
+						droppedOldest.incrementAndGet();
+						if (evictionHandler != null) {
+							evictionHandler.evicted(evicted);
+						}
+					}
+					break;
+				case DROP_NEWEST:
+					droppedNewest.incrementAndGet();
+					return false;
+				case SPILL:
+					return false;
+				}
+			}
+			int index = (head + count) % slots.length;
+			slots[index] = event;
+			weights[index] = weight;
+			count++;
+			bytes += weight;
+			enqueued.incrementAndGet();
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest event, waiting up to the given time
+	 * for one to become available.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit time unit of the timeout
+	 * @return the oldest event, or {@code null} if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return removeFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of buffered events.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the estimated size of buffered events in bytes.
+	 */
+	public long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of events accepted by the buffer.
+	 */
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	/**
+	 * Returns the number of offers that had to wait for room.
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/**
+	 * Returns the number of offered events that have been discarded.
+	 */
+	public long getDroppedNewest() {
+		return droppedNewest.get();
+	}
+
+	/**
+	 * Returns the number of buffered events evicted to make room for newer ones.
+	 */
+	public long getDroppedOldest() {
+		return droppedOldest.get();
+	}
+
+	/**
+	 * Returns the number of events handed to the spill handler.
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	private boolean fits(int weight) {
+		return count == 0 || (count < slots.length && bytes + weight <= maxBytes);
+	}
+
+	@SuppressWarnings("unchecked")
+	private E removeFirst() {
+		E event = (E)slots[head];
+		slots[head] = null;
+		bytes -= weights[head];
+		head = (head + 1) % slots.length;
+		count--;
+		notFull.signal();
+		return event;
+	}
+}
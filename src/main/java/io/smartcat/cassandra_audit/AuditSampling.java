@@ -0,0 +1,68 @@
+package io.smartcat.cassandra_audit;
+
+/**
+ * Limits the audit events stored for an entity. Events are first sampled,
+ * one in every {@code sampleRate} mutations being audited, and the sampled
+ * events are then rate limited to {@code maxEventsPerSecond}, allowing
+ * bursts of up to one second's worth of events. Events of failed mutations
+ * are always audited. Skipped events are counted by {@link AuditMetrics}.
+ *
+ * @see Auditable#sampleRate()
+ * @see Auditable#maxEventsPerSecond()
+ * @see AuditConfiguration#setSampling(String, AuditSampling)
+ */
+public final class AuditSampling {
+
+	/**
+	 * Audits every mutation.
+	 */
+	public static final AuditSampling NONE = new AuditSampling(1, 0);
+
+	private final int sampleRate;
+	private final double maxEventsPerSecond;
+
+	/**
+	 * Constructs a sampling policy.
+	 *
+	 * @param sampleRate audit one in every {@code sampleRate} mutations, 1 audits every mutation
+	 * @param maxEventsPerSecond maximum audit events per second, 0 for no limit
+	 */
+	public AuditSampling(int sampleRate, double maxEventsPerSecond) {
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+		}
+		if (maxEventsPerSecond < 0) {
+			throw new IllegalArgumentException("Maximum events per second must not be negative: " + maxEventsPerSecond);
+		}
+		this.sampleRate = sampleRate;
+		this.maxEventsPerSecond = maxEventsPerSecond;
+	}
+
+	/**
+	 * Returns the sampling policy declared by the given annotation.
+	 *
+	 * @param auditable annotation of an audited entity
+	 * @return sampling policy
+	 */
+	public static AuditSampling of(Auditable auditable) {
+		if (auditable.sampleRate() == 1 && auditable.maxEventsPerSecond() == 0) {
+			return NONE;
+		}
+		return new AuditSampling(auditable.sampleRate(), auditable.maxEventsPerSecond());
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public double getMaxEventsPerSecond() {
+		return maxEventsPerSecond;
+	}
+
+	/**
+	 * Returns whether every mutation is audited.
+	 */
+	public boolean isNone() {
+		return sampleRate == 1 && maxEventsPerSecond == 0;
+	}
+}
@@ -0,0 +1,26 @@
+package io.smartcat.cassandra_audit;
+
+import com.datastax.driver.mapping.MappingManager;
+
+/**
+ * Defines when the audit table of an audited entity is created and its
+ * audit insert statement is prepared.
+ */
+public enum AuditSchemaMode {
+
+	/**
+	 * The audit table is set up while the entity's mapper is created,
+	 * {@link MappingManager#mapper(Class)} returns once it is ready.
+	 */
+	EAGER,
+
+	/**
+	 * The audit table is set up in the background, the entity's mapper is
+	 * returned right away. Audit events of the entity are set aside until the
+	 * table is ready, up to the audit queue's capacity, without holding up the
+	 * events of other entities. A failed setup is retried after a delay that
+	 * grows with each failure, up to a minute. In synchronous mode the
+	 * mutation waits for the first setup attempt.
+	 */
+	LAZY
+}
@@ -0,0 +1,21 @@
+package io.smartcat.cassandra_audit;
+
+import java.io.File;
+
+/**
+ * Defines where audit events are stored.
+ */
+public enum AuditSink {
+
+	/**
+	 * Audit events are stored in audit tables of the audited cluster.
+	 */
+	CASSANDRA,
+
+	/**
+	 * Audit events are appended to rolling local files, one JSON record per
+	 * line, see {@link AuditConfiguration#setFileDirectory(File)}. No audit
+	 * tables are created and auditing adds no load to the cluster.
+	 */
+	FILE
+}
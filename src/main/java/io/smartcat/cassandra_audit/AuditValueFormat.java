@@ -0,0 +1,21 @@
+package io.smartcat.cassandra_audit;
+
+/**
+ * Defines how the bound values of an audited mutation are stored
+ * in the audit table.
+ */
+public enum AuditValueFormat {
+
+	/**
+	 * Values are deserialized, formatted as {@code column:value; } pairs and
+	 * stored in the {@code values text} column.
+	 */
+	TEXT,
+
+	/**
+	 * Values are stored in their serialized form, without deserialization or
+	 * formatting, in the {@code raw_values map<text, blob>} column keyed by
+	 * column name. Null values are omitted.
+	 */
+	BLOB_MAP
+}
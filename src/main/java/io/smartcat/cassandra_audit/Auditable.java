@@ -35,4 +35,47 @@ public @interface Auditable {
 	 * If set, specifies the used keyspace. 
 	 */
 	String keyspaceName() default "";
+	
+	/**
+	 * Specifies how the mutation's values are stored in the audit table.
+	 */
+	AuditValueFormat valueFormat() default AuditValueFormat.TEXT;
+	
+	/**
+	 * Specifies the time bucket added to the audit table's partition key.
+	 */
+	AuditBucket bucket() default AuditBucket.NONE;
+	
+	/**
+	 * Specifies the type and order of the audit table's {@code time} clustering column.
+	 */
+	AuditClustering clustering() default AuditClustering.TIMESTAMP;
+	
+	/**
+	 * Audits one in every {@code sampleRate} mutations. Failed mutations
+	 * are always audited. The default audits every mutation.
+	 * 
+	 * @see AuditSampling
+	 */
+	int sampleRate() default 1;
+	
+	/**
+	 * If positive, limits the audit events stored per second. Failed
+	 * mutations are always audited. The default is no limit.
+	 * 
+	 * @see AuditSampling
+	 */
+	double maxEventsPerSecond() default 0;
+	
+	/**
+	 * If set, an audit event includes only the primary key and the columns
+	 * whose values differ from the row's last audited state. The last audited
+	 * state of recently mutated rows is cached, a mutation of a row that is
+	 * not cached is audited with all of its values. Failed mutations are
+	 * always audited with all of their values, and so is the next mutation
+	 * of a row whose audit write failed, was discarded or is still pending.
+	 * 
+	 * @see AuditConfiguration#setStateCacheSize(int)
+	 */
+	boolean changesOnly() default false;
 }
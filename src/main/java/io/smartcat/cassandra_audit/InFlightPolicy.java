@@ -0,0 +1,28 @@
+package io.smartcat.cassandra_audit;
+
+/**
+ * Decides what happens to an audit write issued while the maximum number
+ * of audit writes is in flight, see {@link AuditConfiguration#setMaxInFlightWrites(int)}.
+ */
+public enum InFlightPolicy {
+
+	/**
+	 * Block the writing thread until an in-flight write completes.
+	 */
+	WAIT,
+
+	/**
+	 * Queue the write and issue it once an in-flight write completes. At most
+	 * as many writes are queued as the audit queue holds events, see
+	 * {@link AuditConfiguration#setQueueCapacity(int)}; further writes are
+	 * discarded as with {@link #SHED}.
+	 */
+	QUEUE,
+
+	/**
+	 * Discard the write, or append it to the journal if one is configured,
+	 * see {@link AuditConfiguration#setJournalDirectory(java.io.File)}.
+	 * Discarded events are counted by {@link AuditMetrics}.
+	 */
+	SHED
+}
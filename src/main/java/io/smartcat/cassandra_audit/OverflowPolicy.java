@@ -0,0 +1,30 @@
+package io.smartcat.cassandra_audit;
+
+/**
+ * Decides what happens to an audit event offered to a full
+ * {@link AuditRingBuffer}.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Block the producer until the buffer has room for the event. Events
+	 * of asynchronous mutations are audited on the driver's I/O threads,
+	 * which must not block, so they are discarded instead.
+	 */
+	BLOCK,
+
+	/**
+	 * Discard the offered event.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Discard the oldest buffered events until the offered event fits.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Hand the offered event to the buffer's {@link AuditRingBuffer.SpillHandler}.
+	 */
+	SPILL
+}
@@ -0,0 +1,87 @@
+package com.datastax.driver.mapping;
+
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+
+import junit.framework.TestCase;
+
+public class AuditBatcherTest extends TestCase {
+
+	private static AuditBatcher.Partition partition(PreparedStatement ps, String key) {
+		return new AuditBatcher.Partition(ps, new ByteBuffer[] { ByteBuffer.wrap(key.getBytes()) });
+	}
+
+	@Test
+	public void testFullBatchIsWritten() {
+		AuditBatcher.Writer writer = mock(AuditBatcher.Writer.class);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		AuditBatcher batcher = new AuditBatcher(writer, 3, 3600000);
+
+		batcher.add(partition(ps, "a"), new SimpleStatement("a1"));
+		batcher.add(partition(ps, "b"), new SimpleStatement("b1"));
+		batcher.add(partition(ps, "a"), new SimpleStatement("a2"));
+		verify(writer, never()).write(any(Statement.class));
+
+		batcher.add(partition(ps, "a"), new SimpleStatement("a3"));
+		ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+		verify(writer, times(1)).write(captor.capture());
+		BatchStatement batch = (BatchStatement)captor.getValue();
+		assertEquals(3, batch.size());
+	}
+
+	@Test
+	public void testFlushWritesPendingGroups() {
+		AuditBatcher.Writer writer = mock(AuditBatcher.Writer.class);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		PreparedStatement otherPs = mock(PreparedStatement.class);
+		AuditBatcher batcher = new AuditBatcher(writer, 10, 3600000);
+
+		Statement single = new SimpleStatement("a1");
+		batcher.add(partition(ps, "a"), single);
+		batcher.add(partition(otherPs, "a"), new SimpleStatement("b1"));
+		batcher.add(partition(otherPs, "a"), new SimpleStatement("b2"));
+		batcher.flush();
+
+		ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+		verify(writer, times(2)).write(captor.capture());
+		int batches = 0;
+		for (Statement statement : captor.getAllValues()) {
+			if (statement instanceof BatchStatement) {
+				assertEquals(2, ((BatchStatement)statement).size());
+				batches++;
+			} else {
+				assertSame(single, statement);
+			}
+		}
+		assertEquals(1, batches);
+
+		batcher.flush();
+		verify(writer, times(2)).write(any(Statement.class));
+	}
+
+	@Test
+	public void testCloseWritesPendingGroups() {
+		AuditBatcher.Writer writer = mock(AuditBatcher.Writer.class);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		AuditBatcher batcher = new AuditBatcher(writer, 10, 3600000);
+
+		Statement pending = new SimpleStatement("a1");
+		batcher.add(partition(ps, "a"), pending);
+		batcher.close();
+		verify(writer, times(1)).write(pending);
+
+		// written right away once the batcher is closed
+		Statement late = new SimpleStatement("a2");
+		batcher.add(partition(ps, "a"), late);
+		verify(writer, times(1)).write(late);
+	}
+}
@@ -0,0 +1,205 @@
+package com.datastax.driver.mapping;
+
+import static org.mockito.Mockito.*;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+
+import io.smartcat.cassandra_audit.AuditConfiguration;
+import io.smartcat.cassandra_audit.AuditExecutorMode;
+import junit.framework.TestCase;
+
+public class AuditDispatcherTest extends TestCase {
+
+	private static final int EVENTS = 100;
+
+	/**
+	 * Counts the logged events and records the threads they are logged on.
+	 */
+	private static class RecordingLogger extends AbstractAuditLogger {
+		final CountDownLatch logged = new CountDownLatch(EVENTS);
+		final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		@Override
+		public <T> void init(AuditMapper<T> mapper) {
+		}
+
+		@Override
+		public void log(long time, long execTime, String error, BoundStatement statement) {
+			threads.add(Thread.currentThread().getName());
+			logged.countDown();
+		}
+	}
+
+	/**
+	 * Implements the plain {@link AuditLogger} interface, without the mutation's start time.
+	 */
+	private static class PlainLogger implements AuditLogger {
+		final CountDownLatch logged = new CountDownLatch(EVENTS);
+
+		@Override
+		public <T> void init(AuditMapper<T> mapper) {
+		}
+
+		@Override
+		public void log(long execTime, String error, BoundStatement statement) {
+			logged.countDown();
+		}
+	}
+
+	private static BoundStatement statement() {
+		ColumnDefinitions variables = mock(ColumnDefinitions.class);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		when(ps.getVariables()).thenReturn(variables);
+		BoundStatement bs = mock(BoundStatement.class);
+		when(bs.preparedStatement()).thenReturn(ps);
+		return bs;
+	}
+
+	private static RecordingLogger dispatch(AuditDispatcher dispatcher) throws InterruptedException {
+		RecordingLogger logger = new RecordingLogger();
+		BoundStatement bs = statement();
+		for (int i = 0; i < EVENTS; i++) {
+			assertTrue(dispatcher.dispatch(dispatcher.event(logger, 0, 0, null, bs), true));
+		}
+		assertTrue(logger.logged.await(10, TimeUnit.SECONDS));
+		return logger;
+	}
+
+	@Test
+	public void testConsumerThreads() throws Exception {
+		AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration());
+		dispatcher.start(null);
+		RecordingLogger logger = dispatch(dispatcher);
+		for (String thread : logger.threads) {
+			assertTrue(thread.startsWith("cassandra-audit-"));
+		}
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testWorkStealing() throws Exception {
+		AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration()
+				.setExecutorMode(AuditExecutorMode.WORK_STEALING));
+		dispatcher.start(null);
+		RecordingLogger logger = dispatch(dispatcher);
+		for (String thread : logger.threads) {
+			assertTrue(thread.startsWith("ForkJoinPool"));
+		}
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		AuditConfiguration configuration = new AuditConfiguration();
+		if (!AuditExecutorMode.VIRTUAL.isAvailable()) {
+			try {
+				configuration.setExecutorMode(AuditExecutorMode.VIRTUAL);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// expected before Java 21
+			}
+			return;
+		}
+		AuditDispatcher dispatcher = new AuditDispatcher(configuration.setExecutorMode(AuditExecutorMode.VIRTUAL));
+		dispatcher.start(null);
+		RecordingLogger logger = dispatch(dispatcher);
+		// virtual threads of the executor are unnamed
+		assertEquals(Collections.singleton(""), logger.threads);
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testApplicationExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration().setExecutor(executor));
+		dispatcher.start(null);
+		RecordingLogger logger = dispatch(dispatcher);
+		for (String thread : logger.threads) {
+			assertTrue(thread.startsWith("pool-"));
+		}
+		dispatcher.stop();
+		assertTrue(dispatcher.awaitTermination(10, TimeUnit.SECONDS));
+		// the application's executor is left running
+		assertFalse(executor.isShutdown());
+		executor.shutdown();
+	}
+
+	@Test
+	public void testPlainAuditLogger() throws Exception {
+		AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration());
+		dispatcher.start(null);
+		PlainLogger logger = new PlainLogger();
+		BoundStatement bs = statement();
+		for (int i = 0; i < EVENTS; i++) {
+			assertTrue(dispatcher.dispatch(dispatcher.event(logger, 0, 0, null, bs), true));
+		}
+		assertTrue(logger.logged.await(10, TimeUnit.SECONDS));
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testStopsWhenSessionIsClosed() throws Exception {
+		Session session = mock(Session.class);
+		AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration());
+		dispatcher.start(session);
+		when(session.isClosed()).thenReturn(true);
+		assertTrue(dispatcher.awaitTermination(10, TimeUnit.SECONDS));
+		// events are processed on the caller's thread
+		RecordingLogger logger = dispatch(dispatcher);
+		assertEquals(Collections.singleton(Thread.currentThread().getName()), logger.threads);
+	}
+
+	@Test
+	public void testEventsDispatchedWhileStoppingAreProcessed() throws Exception {
+		final AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration());
+		dispatcher.start(null);
+		final RecordingLogger logger = new RecordingLogger();
+		final BoundStatement bs = statement();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < EVENTS; i++) {
+					dispatcher.dispatch(dispatcher.event(logger, 0, 0, null, bs), true);
+				}
+			}
+		});
+		producer.start();
+		dispatcher.stop();
+		producer.join();
+		assertTrue(dispatcher.awaitTermination(10, TimeUnit.SECONDS));
+		// none of the events is left in the buffer
+		assertTrue(logger.logged.await(10, TimeUnit.SECONDS));
+		assertEquals(0, dispatcher.getBuffer().size());
+	}
+
+	@Test
+	public void testClosesResourcesWhenStopped() throws Exception {
+		Session session = mock(Session.class);
+		AuditDispatcher dispatcher = new AuditDispatcher(new AuditConfiguration());
+		Closeable closeable = mock(Closeable.class);
+		dispatcher.closeOnStop(closeable);
+		dispatcher.start(session);
+		when(session.isClosed()).thenReturn(true);
+		verify(closeable, timeout(10000)).close();
+
+		// closed right away once the dispatcher has stopped
+		Closeable late = mock(Closeable.class);
+		dispatcher.closeOnStop(late);
+		verify(late).close();
+		verify(closeable, times(1)).close();
+	}
+}
@@ -2,8 +2,22 @@ package com.datastax.driver.mapping;
 
 import static junit.framework.TestCase.*;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cassandraunit.CQLDataLoader;
 import org.cassandraunit.dataset.cql.ClassPathCQLDataSet;
@@ -15,23 +29,43 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.codahale.metrics.Gauge;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.utils.UUIDs;
+import com.datastax.driver.mapping.annotations.Accessor;
 import com.datastax.driver.mapping.annotations.ClusteringColumn;
 import com.datastax.driver.mapping.annotations.Column;
 import com.datastax.driver.mapping.annotations.PartitionKey;
+import com.datastax.driver.mapping.annotations.Query;
 import com.datastax.driver.mapping.annotations.Table;
 import com.datastax.driver.mapping.annotations.Transient;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import io.smartcat.cassandra_audit.AuditBucket;
+import io.smartcat.cassandra_audit.AuditClustering;
+import io.smartcat.cassandra_audit.AuditConfiguration;
 import io.smartcat.cassandra_audit.AuditExclusion;
 import io.smartcat.cassandra_audit.AuditManager;
+import io.smartcat.cassandra_audit.AuditMetrics;
+import io.smartcat.cassandra_audit.AuditSchemaMode;
+import io.smartcat.cassandra_audit.AuditSink;
+import io.smartcat.cassandra_audit.AuditValueFormat;
 import io.smartcat.cassandra_audit.Auditable;
+import io.smartcat.cassandra_audit.OverflowPolicy;
+import io.smartcat.cassandra_audit.ResultSetFutureStub;
 import io.smartcat.cassandra_audit.SessionProxy;
 
 public class AuditMapperTest {
@@ -44,7 +78,12 @@ public class AuditMapperTest {
     private static String KEYSPACE = "cassandra_audit_test";
     
 	private static Session session;
+	private static Session asyncSession;
 	private static MappingManager manager;
+	private static MappingManager asyncManager;
+	private static File fileDirectory;
+	private static MappingManager fileManager;
+	private static AuditSession auditSession;
 	
 	@BeforeClass
 	public static void beforeClass() throws Exception {
@@ -54,7 +93,44 @@ public class AuditMapperTest {
         final CQLDataLoader cqlDataLoader = new CQLDataLoader(nativeSession);
         cqlDataLoader.load(new ClassPathCQLDataSet("db.cql", false, true, KEYSPACE));
         session = new SessionProxy(nativeSession);
-        manager = AuditManager.getMappingManager(session);
+        createTables();
+        manager = AuditManager.getMappingManager(session, new AuditConfiguration().setSynchronous(true));
+        asyncSession = new SessionProxy(nativeSession);
+        asyncManager = AuditManager.getMappingManager(asyncSession);
+        fileDirectory = Files.createTempDirectory("audit-file").toFile();
+        fileManager = AuditManager.getMappingManager(new SessionProxy(nativeSession), new AuditConfiguration()
+        		.setSynchronous(true).setSink(AuditSink.FILE).setFileDirectory(fileDirectory));
+        auditSession = AuditManager.getAuditSession(new SessionProxy(nativeSession), 
+        		new AuditConfiguration().setSynchronous(true));
+	}
+	
+	/**
+	 * Creates the tables of the entities whose audit behaviour needs a table
+	 * of their own. Other tests share {@link ValueEntity}'s table and tell
+	 * their rows apart by key.
+	 */
+	private static void createTables() {
+		createTable("value_entity", "key text PRIMARY KEY, col1 text");
+		createTable("raw_values_entity", "key text PRIMARY KEY, col1 int, col2 text");
+		createTable("bucketed_entity", "key text PRIMARY KEY");
+		createTable("timeuuid_entity", "key text PRIMARY KEY");
+		createTable("sampled_entity", "key text PRIMARY KEY");
+		createTable("changes_entity", "key text PRIMARY KEY, col1 text, col2 text");
+		// no audit tables are created for these, or they are created by the test
+		createTable("file_entity", "key text PRIMARY KEY, col1 text");
+		createTable("bootstrap_entity_a", "key text PRIMARY KEY, col1 text");
+		createTable("bootstrap_entity_b", "key text PRIMARY KEY, col1 text");
+		createTable("existing_entity", "key text PRIMARY KEY, col1 text");
+		createTable("missing_entity", "key text PRIMARY KEY, col1 text");
+		// audit tables set up by the application
+		String auditColumns = "key text, time timestamp, type text, exec bigint, err text, cql text, values text, "
+				+ "PRIMARY KEY (key, time)";
+		createTable("audit_existing_entity", auditColumns);
+		createTable("audit_value_entity_v2", auditColumns);
+	}
+	
+	private static void createTable(String name, String columns) {
+		session.execute("CREATE TABLE IF NOT EXISTS " + name + " (" + columns + ")");
 	}
 	
 	@Before
@@ -405,7 +481,7 @@ public class AuditMapperTest {
 		assertEquals(DataType.text(), meta.getColumn("values").getType());
 		assertEquals(DataType.text(), meta.getColumn("type").getType());
 		assertEquals(DataType.bigint(), meta.getColumn("exec").getType());
-		ResultSet result = session.execute("SELECT * FROM audit_auditable_entity");
+		ResultSet result = session.execute("SELECT * FROM audit_auditable_entity WHERE key = 'test-key'");
 		List<Row> rows = result.all();
 		assertEquals(1, rows.size());
 	}
@@ -483,4 +559,954 @@ public class AuditMapperTest {
 		assertEquals(-1, values.indexOf("if-i-told-you..."));
 	}	
 	
+	@Auditable(valueFormat = AuditValueFormat.BLOB_MAP)
+	@Table(name="raw_values_entity")
+	public class RawValuesEntity {
+		
+		@PartitionKey
+		private String key;
+
+		private Integer col1;
+		
+		@AuditExclusion
+		private String col2;
+
+		public RawValuesEntity(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public Integer getCol1() {
+			return col1;
+		}
+
+		public void setCol1(Integer col1) {
+			this.col1 = col1;
+		}
+
+		public String getCol2() {
+			return col2;
+		}
+
+		public void setCol2(String col2) {
+			this.col2 = col2;
+		}
+	}	
+
+	@Test
+	public void test_raw_values_entity() {		
+		Mapper<RawValuesEntity> mapper = manager.mapper(RawValuesEntity.class);
+		RawValuesEntity entity = new RawValuesEntity("test-key");
+		entity.setCol1(42);
+		entity.setCol2("very-hush-hush");
+		mapper.save(entity);
+		TableMetadata meta = tableMetadata("audit_raw_values_entity");
+		assertEquals(DataType.map(DataType.text(), DataType.blob()), meta.getColumn("raw_values").getType());
+		assertNull(meta.getColumn("values"));
+		List<Row> rows = session.execute("SELECT * FROM audit_raw_values_entity").all();
+		assertEquals(1, rows.size());
+		Map<String, ByteBuffer> values = rows.get(0).getMap("raw_values", String.class, ByteBuffer.class);
+		assertEquals(2, values.size());
+		assertEquals(42, values.get("col1").getInt());
+		assertEquals(ByteBuffer.wrap("test-key".getBytes()), values.get("key"));
+		assertFalse(values.containsKey("col2"));
+	}
+	
+	@Test
+	public void test_async_auditable_entity() throws Exception {		
+		Mapper<AuditableEntity> mapper = asyncManager.mapper(AuditableEntity.class);
+		mapper.save(new AuditableEntity("async-key-1"));
+		mapper.save(new AuditableEntity("async-key-2"));
+		List<Row> rows = awaitRows("SELECT * FROM audit_auditable_entity WHERE key IN ('async-key-1', 'async-key-2')", 2);
+		assertEquals(2, rows.size());
+	}
+	
+	@Test
+	public void test_metered_entity() {
+		// the entity's metrics are kept per session
+		Session meteredSession = new SessionProxy(session);
+		MappingManager meteredManager = AuditManager.getMappingManager(meteredSession, 
+				new AuditConfiguration().setSynchronous(true));
+		Mapper<AuditableEntity> mapper = meteredManager.mapper(AuditableEntity.class);
+		AuditableEntity entity = new AuditableEntity("metered-key");
+		mapper.save(entity);
+		mapper.save(entity);
+		mapper.delete(entity);
+		AuditMetrics.EntityMetrics metrics = AuditManager.getMetrics(meteredSession).entity(KEYSPACE + ".auditable_entity");
+		assertEquals(3, metrics.getEnqueued().getCount());
+		assertEquals(0, metrics.getDropped().getCount());
+		assertEquals(2, metrics.getMutations("INSERT").getCount());
+		assertEquals(1, metrics.getMutations("DELETE").getCount());
+		assertTrue(AuditManager.getMetrics(meteredSession).getEvents().getEnqueued().getCount() >= 3);
+	}
+	
+	@Table(name="bucketed_entity")
+	@Auditable(bucket=AuditBucket.HOUR)
+	public class BucketedEntity {
+		
+		@PartitionKey
+		private String key;
+
+		public BucketedEntity(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+	}
+	
+	@Test
+	public void test_bucketed_entity() {
+		Mapper<BucketedEntity> mapper = manager.mapper(BucketedEntity.class);
+		BucketedEntity entity = new BucketedEntity("test-key");
+		mapper.save(entity);
+		mapper.delete(entity);
+		TableMetadata meta = tableMetadata("audit_bucketed_entity");
+		assertEquals(2, meta.getPartitionKey().size());
+		assertEquals("bucket", meta.getPartitionKey().get(1).getName());
+		List<Row> rows = session.execute("SELECT * FROM audit_bucketed_entity").all();
+		assertEquals(2, rows.size());
+		for (Row row : rows) {
+			assertEquals(AuditBucket.HOUR.bucket(row.getDate("time").getTime()), row.getDate("bucket").getTime());
+		}
+	}
+	
+	@Table(name="timeuuid_entity")
+	@Auditable(clustering=AuditClustering.TIMEUUID)
+	public class TimeuuidEntity {
+		
+		@PartitionKey
+		private String key;
+
+		public TimeuuidEntity(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+	}
+	
+	@Test
+	public void test_timeuuid_entity() {
+		Mapper<TimeuuidEntity> mapper = manager.mapper(TimeuuidEntity.class);
+		TimeuuidEntity entity = new TimeuuidEntity("test-key");
+		for (int i = 0; i < 20; i++) {
+			mapper.save(entity);
+		}
+		mapper.delete(entity);
+		assertEquals(DataType.timeuuid(), tableMetadata("audit_timeuuid_entity").getColumn("time").getType());
+		List<Row> rows = session.execute("SELECT * FROM audit_timeuuid_entity WHERE key = 'test-key'").all();
+		assertEquals(21, rows.size());
+		assertEquals("DELETE", rows.get(0).getString("type"));
+		rows = session.execute("SELECT * FROM audit_timeuuid_entity WHERE key = 'test-key' LIMIT 1").all();
+		assertEquals("DELETE", rows.get(0).getString("type"));
+	}
+	
+	@Test
+	public void test_failed_write_is_journaled_and_replayed() throws Exception {
+		final AtomicBoolean failing = new AtomicBoolean(true);
+		Session failingSession = new SessionProxy(session) {
+			@Override
+			public ResultSet execute(Statement statement) {
+				if (failing.get() && isAuditWrite(statement, "audit_timeuuid_entity")) {
+					throw new IllegalStateException("Audit table is unavailable.");
+				}
+				return super.execute(statement);
+			}
+
+			@Override
+			public ResultSetFuture executeAsync(Statement statement) {
+				if (failing.get() && isAuditWrite(statement, "audit_timeuuid_entity")) {
+					return new ResultSetFutureStub(new IllegalStateException("Audit table is unavailable."));
+				}
+				return super.executeAsync(statement);
+			}
+		};
+		File journalDirectory = Files.createTempDirectory("audit-journal").toFile();
+		MappingManager journalManager = AuditManager.getMappingManager(failingSession, new AuditConfiguration()
+				.setSynchronous(true).setJournalDirectory(journalDirectory).setJournalReplayIntervalMillis(100));
+		Mapper<TimeuuidEntity> mapper = journalManager.mapper(TimeuuidEntity.class);
+		Map<String, Gauge> gauges = AuditManager.getMetrics(failingSession).getRegistry().getGauges();
+		
+		// the failed write goes to the journal
+		mapper.save(new TimeuuidEntity("journal-key-1"));
+		assertEquals(1L, gauges.get("audit.journal.appended").getValue());
+		assertTrue(session.execute("SELECT * FROM audit_timeuuid_entity WHERE key = 'journal-key-1'").all().isEmpty());
+		
+		// once the cluster recovers, later writes are direct and the journal is replayed
+		failing.set(false);
+		mapper.save(new TimeuuidEntity("journal-key-2"));
+		assertEquals(1, session.execute("SELECT * FROM audit_timeuuid_entity WHERE key = 'journal-key-2'").all().size());
+		List<Row> rows = awaitRows("SELECT * FROM audit_timeuuid_entity WHERE key = 'journal-key-1'", 1);
+		assertEquals(1, rows.size());
+		assertEquals("INSERT", rows.get(0).getString("type"));
+		assertEquals(1L, gauges.get("audit.journal.appended").getValue());
+		assertEquals(1L, gauges.get("audit.journal.replayed").getValue());
+	}
+	
+	private static boolean isAuditWrite(Statement statement, String auditTable) {
+		if (statement instanceof BatchStatement) {
+			for (Statement inner : ((BatchStatement)statement).getStatements()) {
+				if (isAuditWrite(inner, auditTable)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return statement instanceof BoundStatement && ((BoundStatement)statement).preparedStatement()
+				.getQueryString().contains(auditTable);
+	}
+	
+	@Table(name="sampled_entity")
+	@Auditable(sampleRate=3)
+	public class SampledEntity {
+		
+		@PartitionKey
+		private String key;
+
+		public SampledEntity(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+	}
+	
+	@Test
+	public void test_sampled_entity() {
+		Mapper<SampledEntity> mapper = manager.mapper(SampledEntity.class);
+		for (int i = 0; i < 6; i++) {
+			mapper.save(new SampledEntity("test-key-" + i));
+		}
+		List<Row> rows = session.execute("SELECT * FROM audit_sampled_entity").all();
+		assertEquals(2, rows.size());
+		AuditMetrics.EntityMetrics metrics = AuditManager.getMetrics(session).entity(KEYSPACE + ".sampled_entity");
+		assertEquals(2, metrics.getEnqueued().getCount());
+		assertEquals(4, metrics.getSkipped().getCount());
+		assertEquals(6, metrics.getMutations("INSERT").getCount());
+	}
+	
+	@Table(name="file_entity")
+	@Auditable
+	public class FileEntity {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+
+		public FileEntity(String key, String col1) {
+			this.key = key;
+			this.col1 = col1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+	}
+	
+	@Test
+	public void test_file_sink() throws Exception {
+		Mapper<FileEntity> mapper = fileManager.mapper(FileEntity.class);
+		mapper.save(new FileEntity("test-key", "a \"quoted\" value"));
+		mapper.delete(new FileEntity("test-key", null));
+		assertFalse(tables().contains("audit_file_entity"));
+		File[] files = fileDirectory.listFiles();
+		assertEquals(1, files.length);
+		List<String> lines = Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).startsWith("{\"time\":"));
+		assertTrue(lines.get(0).contains("\"entity\":\"" + KEYSPACE + ".file_entity\",\"type\":\"INSERT\""));
+		assertTrue(lines.get(0).contains("\"err\":null"));
+		assertTrue(lines.get(0).contains("\"key\":{\"key\":\"test-key\"}"));
+		assertTrue(lines.get(0).contains("col1:a \\\"quoted\\\" value; "));
+		assertTrue(lines.get(1).contains("\"type\":\"DELETE\""));
+	}
+	
+	@Table(name="value_entity")
+	@Auditable
+	public class ValueEntity {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+
+		public ValueEntity(String key, String col1) {
+			this.key = key;
+			this.col1 = col1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+	}
+	
+	@Test
+	public void test_audit_session() {
+		auditSession.audit(ValueEntity.class);
+		PreparedStatement insert = auditSession.prepare("INSERT INTO value_entity (key, col1) VALUES (?, ?)");
+		PreparedStatement update = auditSession.prepare("UPDATE value_entity SET col1 = ? WHERE key = ?");
+		PreparedStatement delete = auditSession.prepare("DELETE FROM value_entity WHERE key = ?");
+		PreparedStatement select = auditSession.prepare("SELECT * FROM value_entity WHERE key = ?");
+		auditSession.execute(insert.bind("session-key-1", "a"));
+		auditSession.executeAsync(update.bind("b", "session-key-2"));
+		auditSession.execute(delete.bind("session-key-3"));
+		auditSession.execute(select.bind("session-key-1"));
+		auditSession.execute("INSERT INTO value_entity (key, col1) VALUES ('session-key-4', 'c')");
+		
+		assertEquals("INSERT", auditRow("session-key-1").getString("type"));
+		assertEquals("key:session-key-1; col1:a; ", auditRow("session-key-1").getString("values"));
+		assertEquals("UPDATE", auditRow("session-key-2").getString("type"));
+		assertEquals("DELETE", auditRow("session-key-3").getString("type"));
+		// statements that are not prepared are not audited
+		assertTrue(auditRows("session-key-4").isEmpty());
+	}
+	
+	@Test
+	public void test_audit_session_literal_keys() {
+		auditSession.audit(ValueEntity.class);
+		PreparedStatement update = auditSession.prepare("UPDATE value_entity SET col1 = ? WHERE key = 'literal-key'");
+		PreparedStatement delete = auditSession.prepare("DELETE FROM value_entity WHERE key = 'literal-key'");
+		// audit rows could not be keyed by the mutated row's key
+		assertFalse(auditSession.isAudited(update));
+		assertFalse(auditSession.isAudited(delete));
+		auditSession.execute(update.bind("a"));
+		assertEquals("a", session.execute("SELECT col1 FROM value_entity WHERE key = 'literal-key'").one()
+				.getString("col1"));
+		assertTrue(auditRows("literal-key").isEmpty());
+	}
+	
+	private Row auditRow(String key) {
+		List<Row> rows = auditRows(key);
+		assertEquals(1, rows.size());
+		return rows.get(0);
+	}
+	
+	private List<Row> auditRows(String key) {
+		return session.execute("SELECT * FROM audit_value_entity WHERE key = ?", key).all();
+	}
+	
+	@Test
+	public void test_audit_session_rejects_unauditable_entity() {
+		try {
+			auditSession.audit(NonAuditableEntity.class);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void test_audit_session_reclassifies_statements() {
+		AuditSession lateSession = AuditManager.getAuditSession(new SessionProxy(session), 
+				new AuditConfiguration().setSynchronous(true));
+		PreparedStatement insert = lateSession.prepare("INSERT INTO timeuuid_entity (key) VALUES (?)");
+		PreparedStatement delete = lateSession.prepare("DELETE FROM timeuuid_entity WHERE key = ?");
+		// both statements are classified as not audited before the entity is
+		lateSession.execute(insert.bind("late-key"));
+		lateSession.execute(delete.bind("late-key"));
+		
+		lateSession.audit(TimeuuidEntity.class);
+		lateSession.execute(insert.bind("late-key"));
+		lateSession.execute(delete.bind("late-key"));
+		List<Row> rows = session.execute("SELECT * FROM audit_timeuuid_entity WHERE key = 'late-key'").all();
+		assertEquals(2, rows.size());
+	}
+	
+	@Accessor
+	public interface EntityAccessor {
+		
+		@Query("INSERT INTO value_entity (key, col1) VALUES (?, ?)")
+		void insert(String key, String col1);
+		
+		@Query("UPDATE value_entity SET col1 = ? WHERE key = ?")
+		ResultSetFuture updateAsync(String col1, String key);
+		
+		@Query("SELECT * FROM value_entity WHERE key = ?")
+		ResultSet select(String key);
+	}
+	
+	@Test
+	public void test_accessor() throws Exception {
+		manager.mapper(ValueEntity.class);
+		EntityAccessor accessor = manager.createAccessor(EntityAccessor.class);
+		accessor.insert("accessor-key-1", "a");
+		accessor.updateAsync("b", "accessor-key-2").get();
+		assertEquals(1, accessor.select("accessor-key-1").all().size());
+		
+		// the select is not audited
+		List<Row> rows = auditRows("accessor-key-1");
+		assertEquals(1, rows.size());
+		assertEquals("INSERT", rows.get(0).getString("type"));
+		rows = auditRows("accessor-key-2");
+		assertEquals(1, rows.size());
+		assertEquals("UPDATE", rows.get(0).getString("type"));
+	}
+	
+	@Test
+	public void test_audit_session_batch() {
+		final AtomicInteger auditWrites = new AtomicInteger();
+		Session countingSession = new SessionProxy(session) {
+			@Override
+			public ResultSetFuture executeAsync(Statement statement) {
+				if (isAuditWrite(statement, "audit_value_entity")) {
+					auditWrites.incrementAndGet();
+				}
+				return super.executeAsync(statement);
+			}
+		};
+		AuditSession batchSession = AuditManager.getAuditSession(countingSession, 
+				new AuditConfiguration().setSynchronous(true));
+		batchSession.audit(ValueEntity.class);
+		batchSession.audit(TimeuuidEntity.class);
+		Mapper<ValueEntity> mapper = batchSession.getMappingManager().mapper(ValueEntity.class);
+		Mapper<TimeuuidEntity> timeuuidMapper = batchSession.getMappingManager().mapper(TimeuuidEntity.class);
+		BatchStatement batch = new BatchStatement();
+		batch.add(mapper.saveQuery(new ValueEntity("batch-key-1", "a")));
+		batch.add(mapper.saveQuery(new ValueEntity("batch-key-2", "b")));
+		batch.add(mapper.deleteQuery(new ValueEntity("batch-key-3", null)));
+		batch.add(new SimpleStatement("INSERT INTO value_entity (key, col1) VALUES ('batch-key-4', 'd')"));
+		batch.add(mapper.saveQuery(new ValueEntity("batch-key-1", "e")));
+		batch.add(timeuuidMapper.saveQuery(new TimeuuidEntity("batch-key-5")));
+		batch.add(timeuuidMapper.deleteQuery(new TimeuuidEntity("batch-key-5")));
+		batchSession.execute(batch);
+		
+		// the audit inserts of a batch are written at once
+		assertEquals(1, auditWrites.get());
+		assertEquals(1, auditRows("batch-key-2").size());
+		assertEquals("DELETE", auditRow("batch-key-3").getString("type"));
+		assertTrue(auditRows("batch-key-4").isEmpty());
+		assertEquals(1, session.execute("SELECT * FROM value_entity WHERE key = 'batch-key-4'").all().size());
+		// with timestamp clustering, the same row's audit row holds its last mutation
+		Row row = auditRow("batch-key-1");
+		assertTrue(row.getString("values").contains("col1:e"));
+		// at the batch's start time, like the other events of the batch
+		assertEquals(auditRow("batch-key-2").getDate("time"), row.getDate("time"));
+		// with timeuuid clustering, each mutation has its own audit row
+		List<Row> rows = session.execute("SELECT * FROM audit_timeuuid_entity WHERE key = 'batch-key-5'").all();
+		assertEquals(2, rows.size());
+		assertEquals(UUIDs.unixTimestamp(rows.get(0).getUUID("time")),
+				UUIDs.unixTimestamp(rows.get(1).getUUID("time")));
+	}
+	
+	@Table(name="changes_entity")
+	@Auditable(changesOnly = true, clustering = AuditClustering.TIMEUUID)
+	public class ChangesEntity {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+		
+		private String col2;
+
+		public ChangesEntity(String key, String col1, String col2) {
+			this.key = key;
+			this.col1 = col1;
+			this.col2 = col2;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+
+		public String getCol2() {
+			return col2;
+		}
+
+		public void setCol2(String col2) {
+			this.col2 = col2;
+		}
+	}
+	
+	@Test
+	public void test_changes_only() {
+		Mapper<ChangesEntity> mapper = manager.mapper(ChangesEntity.class);
+		mapper.save(new ChangesEntity("test-key-1", "a", "b"));
+		mapper.save(new ChangesEntity("test-key-1", "a", "c"));
+		mapper.delete(new ChangesEntity("test-key-1", null, null));
+		mapper.save(new ChangesEntity("test-key-1", "a", "c"));
+		
+		// newest first
+		List<Row> rows = session.execute("SELECT * FROM audit_changes_entity WHERE key = 'test-key-1'").all();
+		assertEquals(4, rows.size());
+		// the row's state is forgotten once it is deleted
+		String values = rows.get(0).getString("values");
+		assertTrue(values.contains("col1:a; ") && values.contains("col2:c; "));
+		assertEquals("DELETE", rows.get(1).getString("type"));
+		values = rows.get(2).getString("values");
+		assertTrue(values.contains("key:test-key-1; "));
+		assertTrue(values.contains("col2:c; "));
+		assertFalse(values.contains("col1"));
+		values = rows.get(3).getString("values");
+		assertTrue(values.contains("col1:a; ") && values.contains("col2:b; "));
+	}
+	
+	@Test
+	public void test_changes_after_failed_write() {
+		final AtomicBoolean failing = new AtomicBoolean(false);
+		Session failingSession = new SessionProxy(session) {
+			@Override
+			public ResultSetFuture executeAsync(Statement statement) {
+				if (failing.get() && isAuditWrite(statement, "audit_changes_entity")) {
+					return new ResultSetFutureStub(new IllegalStateException("Audit table is unavailable."));
+				}
+				return super.executeAsync(statement);
+			}
+		};
+		MappingManager failingManager = AuditManager.getMappingManager(failingSession, 
+				new AuditConfiguration().setSynchronous(true));
+		Mapper<ChangesEntity> mapper = failingManager.mapper(ChangesEntity.class);
+		mapper.save(new ChangesEntity("failed-key", "a", "b"));
+		failing.set(true);
+		mapper.save(new ChangesEntity("failed-key", "a", "c"));
+		failing.set(false);
+		mapper.save(new ChangesEntity("failed-key", "a", "c"));
+		
+		// newest first, the failed write's change is audited by the next mutation
+		List<Row> rows = session.execute("SELECT * FROM audit_changes_entity WHERE key = 'failed-key'").all();
+		assertEquals(2, rows.size());
+		String values = rows.get(0).getString("values");
+		assertTrue(values.contains("col1:a; ") && values.contains("col2:c; "));
+		values = rows.get(1).getString("values");
+		assertTrue(values.contains("col1:a; ") && values.contains("col2:b; "));
+	}
+	
+	@Test
+	public void test_off_heap_events() throws Exception {
+		final CountDownLatch writable = new CountDownLatch(1);
+		Session offHeapSession = new SessionProxy(session) {
+			@Override
+			public ResultSetFuture executeAsync(Statement statement) {
+				if (isAuditWrite(statement, "audit_value_entity")) {
+					Uninterruptibles.awaitUninterruptibly(writable);
+				}
+				return super.executeAsync(statement);
+			}
+		};
+		MappingManager offHeapManager = AuditManager.getMappingManager(offHeapSession, 
+				new AuditConfiguration().setOffHeapSlabs(4));
+		Mapper<ValueEntity> mapper = offHeapManager.mapper(ValueEntity.class);
+		StringBuilder keys = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			mapper.save(new ValueEntity("offheap-key-" + i, "value-" + i));
+			keys.append(i == 0 ? "'" : ", '").append("offheap-key-").append(i).append("'");
+		}
+		@SuppressWarnings("rawtypes")
+		Map<String, Gauge> gauges = AuditManager.getMetrics(offHeapSession).getRegistry().getGauges();
+		// the consumers wait for the first audit writes, the later events hold slabs while pending
+		assertTrue((Integer)gauges.get("audit.offheap.inuse").getValue() > 0);
+		int slabs = (Integer)gauges.get("audit.offheap.slabs").getValue();
+		assertTrue(slabs > 0 && slabs <= 4);
+		writable.countDown();
+		
+		List<Row> rows = awaitRows("SELECT * FROM audit_value_entity WHERE key IN (" + keys + ")", 10);
+		assertEquals(10, rows.size());
+		for (Row row : rows) {
+			String key = row.getString("key");
+			String values = row.getString("values");
+			assertTrue(values.contains("key:" + key + "; "));
+			assertTrue(values.contains("col1:value-" + key.substring("offheap-key-".length()) + "; "));
+		}
+		// the slabs are released once the events are processed
+		assertEquals(0, gauges.get("audit.offheap.inuse").getValue());
+	}
+	
+	@Test
+	public void test_full_queue_does_not_block_async_mutations() throws Exception {
+		// by default overflowing events are discarded, or journaled if there is a journal
+		assertEquals(OverflowPolicy.DROP_NEWEST, new AuditConfiguration().getOverflowPolicy());
+		assertEquals(OverflowPolicy.SPILL, 
+				new AuditConfiguration().setJournalDirectory(fileDirectory).getOverflowPolicy());
+		
+		final CountDownLatch writable = new CountDownLatch(1);
+		Session fullSession = new SessionProxy(session) {
+			@Override
+			public ResultSetFuture executeAsync(Statement statement) {
+				if (isAuditWrite(statement, "audit_value_entity")) {
+					Uninterruptibles.awaitUninterruptibly(writable);
+				}
+				return super.executeAsync(statement);
+			}
+		};
+		MappingManager fullManager = AuditManager.getMappingManager(fullSession, new AuditConfiguration()
+				.setQueueCapacity(1).setConsumerThreads(1).setOverflowPolicy(OverflowPolicy.BLOCK));
+		final Mapper<ValueEntity> mapper = fullManager.mapper(ValueEntity.class);
+		ExecutorService mutator = Executors.newSingleThreadExecutor();
+		try {
+			// the consumer waits for the first audit write, the later events fill the queue
+			Future<?> saved = mutator.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < 5; i++) {
+						mapper.saveAsync(new ValueEntity("full-key-" + i, "a")).get();
+					}
+					return null;
+				}
+			});
+			// audits of asynchronous mutations are discarded rather than wait for room
+			saved.get(5, TimeUnit.SECONDS);
+		} finally {
+			writable.countDown();
+			mutator.shutdown();
+		}
+		assertEquals(5, session.execute("SELECT * FROM value_entity WHERE key IN "
+				+ "('full-key-0', 'full-key-1', 'full-key-2', 'full-key-3', 'full-key-4')").all().size());
+		assertTrue(AuditManager.getMetrics(fullSession).entity(KEYSPACE + ".value_entity").getDropped().getCount() > 0);
+	}
+	
+	@Test
+	public void test_synchronous_audit_of_async_mutation() throws Exception {
+		final List<String> threads = new CopyOnWriteArrayList<String>();
+		Session recordingSession = new SessionProxy(session) {
+			@Override
+			public ResultSetFuture executeAsync(Statement statement) {
+				if (isAuditWrite(statement, "audit_value_entity")) {
+					threads.add(Thread.currentThread().getName());
+				}
+				return super.executeAsync(statement);
+			}
+		};
+		MappingManager syncManager = AuditManager.getMappingManager(recordingSession, 
+				new AuditConfiguration().setSynchronous(true));
+		Mapper<ValueEntity> mapper = syncManager.mapper(ValueEntity.class);
+		mapper.saveAsync(new ValueEntity("completion-key", "a")).get();
+		
+		// the audit is not stored by the thread completing the mutation
+		assertEquals(1, awaitRows("SELECT * FROM audit_value_entity WHERE key = 'completion-key'", 1).size());
+		assertEquals(1, threads.size());
+		assertTrue(threads.get(0).startsWith("cassandra-audit-completion-"));
+	}
+	
+	@Test
+	public void test_reregistered_entity() {
+		// the entity is registered again with the logger of a session of its own
+		Session replanSession = new SessionProxy(session);
+		MappingManager replanManager = AuditManager.getMappingManager(replanSession, 
+				new AuditConfiguration().setSynchronous(true));
+		Mapper<ValueEntity> mapper = replanManager.mapper(ValueEntity.class);
+		mapper.save(new ValueEntity("replan-key-1", "a"));
+		assertEquals(1, auditRows("replan-key-1").size());
+		
+		// plans compiled for the previous audit insert are dropped
+		PreparedStatement auditStatement = session.prepare("INSERT INTO audit_value_entity_v2 "
+				+ "(key, time, type, exec, err, cql, values) VALUES (?, ?, ?, ?, ?, ?, ?)");
+		CassandraAuditLogger.getInstance(replanSession).register(KEYSPACE + ".value_entity", auditStatement,
+				CassandraAuditLogger.getKeyColumns(mapper.mapper), CassandraAuditLogger.getExcludedColumns(mapper.mapper),
+				AuditValueFormat.TEXT, AuditBucket.NONE, AuditClustering.TIMESTAMP, null);
+		mapper.save(new ValueEntity("replan-key-2", "b"));
+		assertTrue(auditRows("replan-key-2").isEmpty());
+		List<Row> rows = session.execute("SELECT * FROM audit_value_entity_v2 WHERE key = 'replan-key-2'").all();
+		assertEquals(1, rows.size());
+		assertEquals("INSERT", rows.get(0).getString("type"));
+	}
+	
+	@Test
+	public void test_concurrent_init() throws Exception {
+		final AtomicInteger creates = new AtomicInteger();
+		Session countingSession = new SessionProxy(session) {
+			@Override
+			public ResultSet execute(Statement statement) {
+				if (statement.toString().trim().startsWith("CREATE TABLE")) {
+					creates.incrementAndGet();
+				}
+				return super.execute(statement);
+			}
+		};
+		final AuditMapper<ValueEntity> mapper = (AuditMapper<ValueEntity>)manager.mapper(ValueEntity.class);
+		final CassandraAuditLogger logger = new CassandraAuditLogger(countingSession);
+		
+		// concurrent initializations of an entity share one CREATE TABLE and prepare
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		final AtomicInteger failures = new AtomicInteger();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						logger.init(mapper);
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failures.get());
+		assertEquals(1, creates.get());
+		
+		// one logger per session
+		assertSame(CassandraAuditLogger.getInstance(session), CassandraAuditLogger.getInstance(session));
+		assertNotSame(CassandraAuditLogger.getInstance(session), CassandraAuditLogger.getInstance(asyncSession));
+	}
+	
+	@Table(name="bootstrap_entity_a")
+	@Auditable
+	public class BootstrapEntityA {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+
+		public BootstrapEntityA(String key, String col1) {
+			this.key = key;
+			this.col1 = col1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+	}
+	
+	@Table(name="bootstrap_entity_b")
+	@Auditable
+	public class BootstrapEntityB {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+
+		public BootstrapEntityB(String key, String col1) {
+			this.key = key;
+			this.col1 = col1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+	}
+	
+	@Test
+	public void test_bootstrap() {
+		assertFalse(tables().contains("audit_bootstrap_entity_a"));
+		assertFalse(tables().contains("audit_bootstrap_entity_b"));
+		MappingManager bootstrapManager = AuditManager.getMappingManager(new SessionProxy(session), 
+				new AuditConfiguration().setSynchronous(true).setSchemaThreads(2));
+		List<Mapper<?>> mappers = AuditManager.bootstrap(bootstrapManager, 
+				BootstrapEntityA.class, BootstrapEntityB.class, NonAuditableEntity.class);
+		assertEquals(3, mappers.size());
+		assertSame(bootstrapManager.mapper(BootstrapEntityA.class), mappers.get(0));
+		assertSame(bootstrapManager.mapper(BootstrapEntityB.class), mappers.get(1));
+		assertSame(bootstrapManager.mapper(NonAuditableEntity.class), mappers.get(2));
+		assertTrue(tables().contains("audit_bootstrap_entity_a"));
+		assertTrue(tables().contains("audit_bootstrap_entity_b"));
+		
+		bootstrapManager.mapper(BootstrapEntityA.class).save(new BootstrapEntityA("test-key", "a"));
+		assertEquals(1, session.execute("SELECT * FROM audit_bootstrap_entity_a").all().size());
+	}
+	
+	@Test
+	public void test_lazy_schema() {
+		MappingManager lazyManager = AuditManager.getMappingManager(new SessionProxy(session), 
+				new AuditConfiguration().setSynchronous(true).setSchemaMode(AuditSchemaMode.LAZY));
+		Mapper<ValueEntity> mapper = lazyManager.mapper(ValueEntity.class);
+		
+		// the audit event waits for the audit table
+		mapper.save(new ValueEntity("lazy-key", "a"));
+		assertEquals(1, auditRows("lazy-key").size());
+	}
+	
+	@Test
+	public void test_lazy_schema_retries_failed_setup() throws Exception {
+		final AtomicInteger failures = new AtomicInteger(1);
+		Session failingSession = new SessionProxy(session) {
+			@Override
+			public PreparedStatement prepare(String query) {
+				if (query.contains("audit_value_entity") && failures.getAndDecrement() > 0) {
+					throw new IllegalStateException("Audit table is unavailable.");
+				}
+				return super.prepare(query);
+			}
+		};
+		MappingManager lazyManager = AuditManager.getMappingManager(failingSession, 
+				new AuditConfiguration().setSchemaMode(AuditSchemaMode.LAZY));
+		Mapper<ValueEntity> mapper = lazyManager.mapper(ValueEntity.class);
+		
+		// the events are set aside until the retried setup succeeds
+		mapper.save(new ValueEntity("retry-key-1", "a"));
+		mapper.save(new ValueEntity("retry-key-2", "b"));
+		assertEquals(1, awaitRows("SELECT * FROM audit_value_entity WHERE key = 'retry-key-1'", 1).size());
+		assertEquals(1, awaitRows("SELECT * FROM audit_value_entity WHERE key = 'retry-key-2'", 1).size());
+		assertTrue(failures.get() < 0);
+	}
+	
+	@Table(name="existing_entity")
+	@Auditable
+	public class ExistingEntity {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+
+		public ExistingEntity(String key, String col1) {
+			this.key = key;
+			this.col1 = col1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+	}
+	
+	@Table(name="missing_entity")
+	@Auditable
+	public class MissingEntity {
+		
+		@PartitionKey
+		private String key;
+		
+		private String col1;
+
+		public MissingEntity(String key, String col1) {
+			this.key = key;
+			this.col1 = col1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+
+		public String getCol1() {
+			return col1;
+		}
+
+		public void setCol1(String col1) {
+			this.col1 = col1;
+		}
+	}
+	
+	@Test
+	public void test_existing_tables() {
+		MappingManager existingManager = AuditManager.getMappingManager(new SessionProxy(session), 
+				new AuditConfiguration().setSynchronous(true).setCreateTables(false));
+		Mapper<ExistingEntity> mapper = existingManager.mapper(ExistingEntity.class);
+		mapper.save(new ExistingEntity("test-key", "a"));
+		assertEquals(1, session.execute("SELECT * FROM audit_existing_entity").all().size());
+		
+		// missing audit tables are not created
+		try {
+			existingManager.mapper(MissingEntity.class);
+			fail("Audit table of missing_entity does not exist.");
+		} catch (RuntimeException e) {
+			assertFalse(tables().contains("audit_missing_entity"));
+		}
+	}
+	
+	private List<Row> awaitRows(String query, int expected) throws InterruptedException {
+		List<Row> rows = session.execute(query).all();
+		for (int i = 0; i < 50 && rows.size() < expected; i++) {
+			Thread.sleep(100);
+			rows = session.execute(query).all();
+		}
+		return rows;
+	}
+	
 }
@@ -7,6 +7,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -23,6 +24,7 @@ import junit.framework.TestCase;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(CassandraAuditLogger.class)
+@PowerMockIgnore("javax.management.*")
 public class AuditMappingManagerInterceptorTest  extends TestCase {
 
 	private static Session session;
@@ -64,9 +66,12 @@ public class AuditMappingManagerInterceptorTest  extends TestCase {
 	@Test
 	public void testGetMapper() {
 		MappingManager manager = new MappingManager(session);
-		Mapper<EntityA> mapper = AuditMappingManagerInterceptor.getMapper(EntityA.class, manager, manager.getClass());
+		Mapper<EntityA> mapper = AuditMappingManagerInterceptor.getMapper(EntityA.class, manager);
 		assertTrue(mapper instanceof AuditMapper<?>);
 		assertEquals(manager, mapper.getManager());
+		// cached by the manager, created once
+		assertSame(mapper, AuditMappingManagerInterceptor.getMapper(EntityA.class, manager));
+		assertSame(mapper, AuditMappingManagerInterceptor.getMappers(manager).get(EntityA.class));
 		PowerMockito.verifyStatic(Mockito.times(1));
 		CassandraAuditLogger.getInstance(Mockito.eq(session));
 	}
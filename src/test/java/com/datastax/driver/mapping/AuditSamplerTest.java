@@ -0,0 +1,68 @@
+package com.datastax.driver.mapping;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.smartcat.cassandra_audit.AuditSampling;
+import junit.framework.TestCase;
+
+public class AuditSamplerTest extends TestCase {
+
+	@Test
+	public void testOneInN() {
+		AuditSampler sampler = new AuditSampler(new AuditSampling(4, 0));
+		int sampled = 0;
+		for (int i = 0; i < 100; i++) {
+			if (sampler.sample(false)) {
+				sampled++;
+			}
+		}
+		assertEquals(25, sampled);
+	}
+
+	@Test
+	public void testFailuresAreAlwaysSampled() {
+		AuditSampler sampler = new AuditSampler(new AuditSampling(1000, 1));
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sampler.sample(true));
+		}
+	}
+
+	@Test
+	public void testRateLimit() {
+		AuditSampler sampler = new AuditSampler(new AuditSampling(1, 10));
+		long now = 0;
+		// a burst of one second's worth of events
+		for (int i = 0; i < 10; i++) {
+			assertTrue(sampler.acquire(now));
+		}
+		assertFalse(sampler.acquire(now));
+		// one event per 100ms afterwards
+		now += TimeUnit.MILLISECONDS.toNanos(100);
+		assertTrue(sampler.acquire(now));
+		assertFalse(sampler.acquire(now));
+		now += TimeUnit.MILLISECONDS.toNanos(50);
+		assertFalse(sampler.acquire(now));
+		// an idle period refills the bucket, up to its capacity
+		now += TimeUnit.SECONDS.toNanos(10);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(sampler.acquire(now));
+		}
+		assertFalse(sampler.acquire(now));
+	}
+
+	@Test
+	public void testInvalidSampling() {
+		try {
+			new AuditSampling(0, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new AuditSampling(1, -1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.datastax.driver.mapping;
+
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.PreparedStatement;
+
+import junit.framework.TestCase;
+
+public class AuditSlabPoolTest extends TestCase {
+
+	@Test
+	public void testRegionsShareSlab() {
+		AuditSlabPool pool = new AuditSlabPool(16, 2);
+		AuditSlabPool.Region a = pool.acquire(6);
+		AuditSlabPool.Region b = pool.acquire(10);
+		assertTrue(a.buffer.isDirect());
+		assertEquals(6, a.buffer.remaining());
+		assertEquals(10, b.buffer.remaining());
+		a.buffer.putInt(1);
+		b.buffer.putInt(2);
+		assertEquals(1, a.buffer.getInt(0));
+		assertEquals(1, pool.getAllocated());
+		assertEquals(1, pool.getInUse());
+	}
+
+	@Test
+	public void testSlabsAreReused() {
+		AuditSlabPool pool = new AuditSlabPool(16, 2);
+		AuditSlabPool.Region a = pool.acquire(16);
+		// the first slab is full
+		AuditSlabPool.Region b = pool.acquire(4);
+		assertEquals(2, pool.getInUse());
+		pool.release(a);
+		assertEquals(1, pool.getInUse());
+		pool.release(b);
+		// regions are still cut from the second slab, from its start once it is released
+		assertEquals(1, pool.getInUse());
+		assertNotNull(pool.acquire(16));
+		assertEquals(2, pool.getAllocated());
+	}
+
+	@Test
+	public void testBounded() {
+		AuditSlabPool pool = new AuditSlabPool(16, 2);
+		AuditSlabPool.Region a = pool.acquire(16);
+		assertNotNull(pool.acquire(16));
+		assertNull(pool.acquire(8));
+		pool.release(a);
+		assertNotNull(pool.acquire(8));
+		assertEquals(2, pool.getAllocated());
+	}
+
+	@Test
+	public void testOversizedRequest() {
+		AuditSlabPool pool = new AuditSlabPool(16, 2);
+		assertNull(pool.acquire(17));
+		assertEquals(0, pool.getAllocated());
+	}
+
+	@Test
+	public void testEventMovedOffHeapRetainsOnlyReferences() {
+		ColumnDefinitions variables = mock(ColumnDefinitions.class);
+		when(variables.size()).thenReturn(1);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		when(ps.getVariables()).thenReturn(variables);
+		BoundStatement bs = mock(BoundStatement.class);
+		when(bs.preparedStatement()).thenReturn(ps);
+		when(bs.getBytesUnsafe(0)).thenReturn(ByteBuffer.allocate(100));
+		AuditEvent event = new AuditEvent(null, 0, 0, null, bs);
+		assertEquals(AuditEvent.OVERHEAD + 100, event.estimatedSize());
+		
+		AuditSlabPool pool = new AuditSlabPool(1024, 1);
+		assertTrue(event.moveOffHeap(pool));
+		assertEquals(AuditEvent.OVERHEAD + AuditEvent.REFERENCE, event.estimatedSize());
+		assertEquals(1, pool.getInUse());
+		event.discard();
+		// the released region is reused
+		assertNotNull(pool.acquire(1024));
+		assertEquals(1, pool.getAllocated());
+	}
+
+	@Test
+	public void testRestoredValuesAreCopiedForRetainingLogger() {
+		AuditLogger logger = mock(AuditLogger.class);
+		ByteBuffer value = restore(logger, new AuditSlabPool(1024, 1));
+		assertFalse(value.isDirect());
+		assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), value);
+	}
+
+	@Test
+	public void testRestoredValuesAreBorrowedFromRegion() {
+		AuditSlabPool pool = new AuditSlabPool(1024, 1);
+		ByteBuffer value = restore(mock(CassandraAuditLogger.class), pool);
+		assertTrue(value.isDirect());
+		// released once the event is processed
+		assertNotNull(pool.acquire(1024));
+	}
+
+	/**
+	 * Processes an event held off-heap.
+	 *
+	 * @return the value the event's statement is bound to again
+	 */
+	private static ByteBuffer restore(AuditLogger logger, AuditSlabPool pool) {
+		ColumnDefinitions variables = mock(ColumnDefinitions.class);
+		when(variables.size()).thenReturn(1);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		when(ps.getVariables()).thenReturn(variables);
+		BoundStatement bs = mock(BoundStatement.class);
+		when(bs.preparedStatement()).thenReturn(ps);
+		when(bs.getBytesUnsafe(0)).thenReturn(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		BoundStatement restored = mock(BoundStatement.class);
+		when(ps.bind()).thenReturn(restored);
+		AuditEvent event = new AuditEvent(logger, 0, 0, null, bs);
+		assertTrue(event.moveOffHeap(pool));
+		event.process();
+		ArgumentCaptor<ByteBuffer> value = ArgumentCaptor.forClass(ByteBuffer.class);
+		verify(restored).setBytesUnsafe(eq(0), value.capture());
+		return value.getValue();
+	}
+}
@@ -0,0 +1,138 @@
+package com.datastax.driver.mapping;
+
+import static org.mockito.Mockito.mock;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.PreparedStatement;
+
+import junit.framework.TestCase;
+
+public class AuditStateCacheTest extends TestCase {
+
+	private final PreparedStatement entity = mock(PreparedStatement.class);
+
+	@Test
+	public void testSucceededMergesKnownColumns() {
+		AuditStateCache cache = new AuditStateCache(10);
+		AuditStateCache.Row row = row(entity, "key");
+		AuditStateCache.Pending first = cache.begin(row);
+		assertNull(first.getPrevious());
+		cache.succeeded(state(first, 2, 3));
+		AuditStateCache.Pending second = cache.begin(row(entity, "key"));
+		assertEquals(2, second.getPrevious()[0]);
+		assertEquals(3, second.getPrevious()[1]);
+		cache.succeeded(state(second, AuditStateCache.UNKNOWN, 4));
+		long[] state = cache.get(row);
+		assertEquals(2, state[0]);
+		assertEquals(4, state[1]);
+	}
+
+	@Test
+	public void testStateIsUpdatedOnlyOnSuccess() {
+		AuditStateCache cache = new AuditStateCache(10);
+		AuditStateCache.Row row = row(entity, "key");
+		state(cache.begin(row), 2);
+		assertNull(cache.get(row));
+	}
+
+	@Test
+	public void testFailedWriteForgetsState() {
+		AuditStateCache cache = new AuditStateCache(10);
+		AuditStateCache.Row row = row(entity, "key");
+		cache.succeeded(state(cache.begin(row), 2));
+		cache.failed(state(cache.begin(row), 3));
+		assertNull(cache.get(row));
+		assertNull(cache.begin(row).getPrevious());
+	}
+
+	@Test
+	public void testPendingMutationIsNotCompared() {
+		AuditStateCache cache = new AuditStateCache(10);
+		AuditStateCache.Row row = row(entity, "key");
+		cache.succeeded(state(cache.begin(row), 2));
+		AuditStateCache.Pending first = state(cache.begin(row), 3);
+		// the first write may still fail
+		AuditStateCache.Pending second = cache.begin(row);
+		assertNull(second.getPrevious());
+		cache.succeeded(first);
+		cache.succeeded(state(second, 4));
+		assertEquals(4, cache.get(row)[0]);
+	}
+
+	@Test
+	public void testOutOfOrderSuccessForgetsState() {
+		AuditStateCache cache = new AuditStateCache(10);
+		AuditStateCache.Row row = row(entity, "key");
+		AuditStateCache.Pending first = state(cache.begin(row), 2);
+		AuditStateCache.Pending second = state(cache.begin(row), 3);
+		cache.succeeded(second);
+		cache.succeeded(first);
+		assertNull(cache.get(row));
+	}
+
+	@Test
+	public void testDeletionForgetsState() {
+		AuditStateCache cache = new AuditStateCache(10);
+		AuditStateCache.Row row = row(entity, "key");
+		cache.succeeded(state(cache.begin(row), 2));
+		cache.succeeded(cache.begin(row));
+		assertNull(cache.get(row));
+	}
+
+	@Test
+	public void testRowsOfDifferentEntities() {
+		AuditStateCache cache = new AuditStateCache(10);
+		cache.succeeded(state(cache.begin(row(entity, "key")), 2));
+		assertNull(cache.get(row(mock(PreparedStatement.class), "key")));
+		assertNull(cache.get(row(entity, "other")));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedRowIsEvicted() {
+		AuditStateCache cache = new AuditStateCache(2);
+		cache.succeeded(state(cache.begin(row(entity, "a")), 2));
+		cache.succeeded(state(cache.begin(row(entity, "b")), 2));
+		cache.get(row(entity, "a"));
+		cache.succeeded(state(cache.begin(row(entity, "c")), 2));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(row(entity, "a")));
+		assertNull(cache.get(row(entity, "b")));
+	}
+
+	@Test
+	public void testMutationOfEvictedRowIsIgnored() {
+		AuditStateCache cache = new AuditStateCache(1);
+		AuditStateCache.Pending evicted = state(cache.begin(row(entity, "a")), 2);
+		cache.begin(row(entity, "b"));
+		AuditStateCache.Pending later = cache.begin(row(entity, "a"));
+		cache.succeeded(evicted);
+		assertNull(cache.get(row(entity, "a")));
+		cache.succeeded(state(later, 3));
+		assertEquals(3, cache.get(row(entity, "a"))[0]);
+	}
+
+	@Test
+	public void testHash() {
+		assertEquals(AuditStateCache.NULL, AuditStateCache.hash(null));
+		assertEquals(AuditStateCache.hash(bytes("value")), AuditStateCache.hash(bytes("value")));
+		assertFalse(AuditStateCache.hash(bytes("value")) == AuditStateCache.hash(bytes("other")));
+		assertFalse(AuditStateCache.hash(bytes("")) == AuditStateCache.UNKNOWN);
+	}
+
+	private static AuditStateCache.Pending state(AuditStateCache.Pending pending, long... state) {
+		pending.state = state;
+		return pending;
+	}
+
+	private static AuditStateCache.Row row(PreparedStatement entity, String key) {
+		return new AuditStateCache.Row(entity, new ByteBuffer[] { bytes(key) });
+	}
+
+	private static ByteBuffer bytes(String value) {
+		return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+	}
+}
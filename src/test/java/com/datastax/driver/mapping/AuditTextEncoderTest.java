@@ -0,0 +1,87 @@
+package com.datastax.driver.mapping;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class AuditTextEncoderTest extends TestCase {
+
+	@Before
+	public void setUp() {
+		// empties the pool, which may hold the encoders of other tests
+		for (int i = 0; i < AuditTextEncoder.POOLED; i++) {
+			AuditTextEncoder.acquire();
+		}
+	}
+
+	@Test
+	public void testEncode() {
+		ByteBuffer value = ByteBuffer.wrap("\u017e\u0107\u0161 \u20ac".getBytes(StandardCharsets.UTF_8));
+		ByteBuffer text = AuditTextEncoder.acquire()
+				.append("col1:").appendUtf8(value).append("; ")
+				.append("col2:").append(42).append("; ")
+				.append("col3:").appendUtf8(null).append("; ")
+				.toUtf8();
+		assertEquals("col1:\u017e\u0107\u0161 \u20ac; col2:42; col3:null; ", StandardCharsets.UTF_8.decode(text).toString());
+		// the value is left as it is
+		assertEquals(0, value.position());
+	}
+
+	@Test
+	public void testEncoderIsReused() {
+		AuditTextEncoder encoder = AuditTextEncoder.acquire().append("abc");
+		encoder.release();
+		assertSame(encoder, AuditTextEncoder.acquire());
+		assertEquals(0, encoder.toUtf8().remaining());
+		// not pooled until it is released
+		assertNotSame(encoder, AuditTextEncoder.acquire());
+	}
+
+	@Test
+	public void testEncoderIsSharedByThreads() throws Exception {
+		final AuditTextEncoder encoder = AuditTextEncoder.acquire();
+		encoder.release();
+		final AuditTextEncoder[] acquired = new AuditTextEncoder[1];
+		// a new thread for the next event, as with virtual threads
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acquired[0] = AuditTextEncoder.acquire();
+			}
+		});
+		thread.start();
+		thread.join();
+		assertSame(encoder, acquired[0]);
+	}
+
+	@Test
+	public void testBuffersGrow() {
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			expected.append('\u017e');
+		}
+		ByteBuffer value = ByteBuffer.wrap(expected.toString().getBytes(StandardCharsets.UTF_8));
+		ByteBuffer text = AuditTextEncoder.acquire().appendUtf8(value).toUtf8();
+		assertEquals(expected.toString(), StandardCharsets.UTF_8.decode(text).toString());
+	}
+
+	@Test
+	public void testLargeBuffersAreNotRetained() {
+		int max = 2 * AuditTextEncoder.MAX_RETAINED_CHARS + AuditTextEncoder.MAX_RETAINED_BYTES;
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < AuditTextEncoder.MAX_RETAINED_BYTES; i++) {
+			large.append('a');
+		}
+		AuditTextEncoder encoder = AuditTextEncoder.acquire();
+		encoder.appendUtf8(ByteBuffer.wrap(large.toString().getBytes(StandardCharsets.UTF_8))).toUtf8();
+		assertTrue(encoder.retained() > max);
+		encoder.release();
+		// reallocated before the next event
+		assertSame(encoder, AuditTextEncoder.acquire());
+		assertTrue(encoder.retained() <= max);
+	}
+}
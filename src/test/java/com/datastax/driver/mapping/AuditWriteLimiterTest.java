@@ -0,0 +1,125 @@
+package com.datastax.driver.mapping;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+
+import io.smartcat.cassandra_audit.InFlightPolicy;
+import junit.framework.TestCase;
+
+public class AuditWriteLimiterTest extends TestCase {
+
+	/**
+	 * Collects the discarded writes.
+	 */
+	private static class CollectingShedder implements AuditWriteLimiter.Shedder {
+		final List<Statement> shed = new ArrayList<Statement>();
+
+		@Override
+		public void shed(Statement statement) {
+			shed.add(statement);
+		}
+	}
+
+	@Test
+	public void testShed() {
+		CollectingShedder shedder = new CollectingShedder();
+		AuditWriteLimiter limiter = new AuditWriteLimiter(2, 10, InFlightPolicy.SHED, shedder);
+		Statement a = new SimpleStatement("a");
+		Statement c = new SimpleStatement("c");
+		assertSame(a, limiter.acquire(a));
+		assertNotNull(limiter.acquire(new SimpleStatement("b")));
+		assertNull(limiter.acquire(c));
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(1, limiter.getShed());
+		assertEquals(1, shedder.shed.size());
+		assertSame(c, shedder.shed.get(0));
+
+		assertNull(limiter.release());
+		assertEquals(1, limiter.getInFlight());
+		assertNotNull(limiter.acquire(new SimpleStatement("d")));
+	}
+
+	@Test
+	public void testQueue() {
+		AuditWriteLimiter limiter = new AuditWriteLimiter(1, 10, InFlightPolicy.QUEUE, new CollectingShedder());
+		Statement a = new SimpleStatement("a");
+		Statement b = new SimpleStatement("b");
+		Statement c = new SimpleStatement("c");
+		assertSame(a, limiter.acquire(a));
+		assertNull(limiter.acquire(b));
+		assertNull(limiter.acquire(c));
+		assertEquals(2, limiter.getQueued());
+
+		// the permit of a completed write is handed over to the queued writes, in order
+		assertSame(b, limiter.release());
+		assertEquals(1, limiter.getInFlight());
+		assertSame(c, limiter.release());
+		assertNull(limiter.release());
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+	}
+
+	@Test
+	public void testQueueOverflowIsShed() {
+		CollectingShedder shedder = new CollectingShedder();
+		AuditWriteLimiter limiter = new AuditWriteLimiter(1, 2, InFlightPolicy.QUEUE, shedder);
+		Statement d = new SimpleStatement("d");
+		assertNotNull(limiter.acquire(new SimpleStatement("a")));
+		assertNull(limiter.acquire(new SimpleStatement("b")));
+		assertNull(limiter.acquire(new SimpleStatement("c")));
+		assertNull(limiter.acquire(d));
+		assertEquals(2, limiter.getQueued());
+		assertEquals(1, limiter.getShed());
+		assertSame(d, shedder.shed.get(0));
+
+		assertNotNull(limiter.release());
+		assertNotNull(limiter.release());
+		assertNull(limiter.release());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testWait() throws Exception {
+		final AuditWriteLimiter limiter = new AuditWriteLimiter(1, 10, InFlightPolicy.WAIT, new CollectingShedder());
+		limiter.acquire(new SimpleStatement("a"));
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				limiter.acquire(new SimpleStatement("b"));
+				acquired.countDown();
+			}
+		});
+		thread.start();
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+		limiter.release();
+		assertTrue(acquired.await(1, TimeUnit.SECONDS));
+		assertEquals(1, limiter.getInFlight());
+	}
+
+	@Test
+	public void testReplayWaitsUnderShed() throws Exception {
+		final AuditWriteLimiter limiter = new AuditWriteLimiter(1, 10, InFlightPolicy.SHED, new CollectingShedder());
+		limiter.acquire(new SimpleStatement("a"));
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				limiter.acquireUninterruptibly();
+				acquired.countDown();
+			}
+		});
+		thread.start();
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+		limiter.release();
+		assertTrue(acquired.await(1, TimeUnit.SECONDS));
+		assertEquals(1, limiter.getInFlight());
+	}
+}
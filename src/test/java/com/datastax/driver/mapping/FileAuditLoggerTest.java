@@ -0,0 +1,127 @@
+package com.datastax.driver.mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.smartcat.cassandra_audit.AuditMetrics;
+import junit.framework.TestCase;
+
+public class FileAuditLoggerTest extends TestCase {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("audit-file", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static byte[] line(int i) {
+		return ("{\"record\":" + i + "}\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private List<String> lines() throws IOException {
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		List<String> lines = new ArrayList<String>();
+		for (File file : files) {
+			lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+		}
+		return lines;
+	}
+
+	@Test
+	public void testRecordsShareCommits() throws Exception {
+		FileAuditLogger logger = new FileAuditLogger(directory, 1024 * 1024, 3600000, false,
+				new AuditMetrics(new MetricRegistry(), false));
+		long last = 0;
+		for (int i = 0; i < 1000; i++) {
+			last = logger.append(line(i), null);
+		}
+		logger.awaitCommit(last);
+		assertTrue(logger.getCommits() >= 1);
+		assertTrue(logger.getCommits() < 1000);
+		logger.close();
+
+		List<String> lines = lines();
+		assertEquals(1000, lines.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("{\"record\":" + i + "}", lines.get(i));
+		}
+	}
+
+	@Test
+	public void testFilesRollBySize() throws Exception {
+		FileAuditLogger logger = new FileAuditLogger(directory, 64, 3600000, false,
+				new AuditMetrics(new MetricRegistry(), false));
+		for (int i = 0; i < 20; i++) {
+			logger.awaitCommit(logger.append(line(i), null));
+		}
+		logger.close();
+		assertTrue(logger.getFiles() > 1);
+		assertEquals(logger.getFiles(), directory.listFiles().length);
+		for (File file : directory.listFiles()) {
+			assertTrue(file.length() <= 64);
+		}
+		assertEquals(20, lines().size());
+	}
+
+	@Test
+	public void testOnlyFailedRecordsAreReported() throws Exception {
+		// every group starts a new file
+		FileAuditLogger logger = new FileAuditLogger(directory, 1, 3600000, false,
+				new AuditMetrics(new MetricRegistry(), false));
+		long written = logger.append(line(0), null);
+		logger.awaitCommit(written);
+
+		// a new file cannot be created without the directory
+		tearDown();
+		long lost = logger.append(line(1), null);
+		try {
+			logger.awaitCommit(lost);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		assertTrue(directory.mkdirs());
+		long rewritten = logger.append(line(2), null);
+		logger.awaitCommit(rewritten);
+		logger.awaitCommit(written);
+		logger.close();
+		assertEquals(Arrays.asList("{\"record\":2}"), lines());
+	}
+
+	@Test
+	public void testClosedLoggerRejectsRecords() throws Exception {
+		FileAuditLogger logger = new FileAuditLogger(directory, 1024, 3600000, false,
+				new AuditMetrics(new MetricRegistry(), false));
+		logger.close();
+		try {
+			logger.append(line(0), null);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+}
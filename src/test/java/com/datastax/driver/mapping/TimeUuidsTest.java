@@ -0,0 +1,48 @@
+package com.datastax.driver.mapping;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.utils.UUIDs;
+
+import junit.framework.TestCase;
+
+public class TimeUuidsTest extends TestCase {
+
+	@Test
+	public void testSameMillisecondIsUnique() {
+		long millis = 1468857600123L;
+		Set<UUID> uuids = new HashSet<UUID>();
+		for (int i = 0; i < 1000; i++) {
+			UUID uuid = TimeUuids.forTime(millis);
+			assertEquals(1, uuid.version());
+			assertEquals(millis, UUIDs.unixTimestamp(uuid));
+			uuids.add(uuid);
+		}
+		assertEquals(1000, uuids.size());
+	}
+
+	@Test
+	public void testOrderFollowsTime() {
+		UUID earlier = TimeUuids.forTime(1468857600123L);
+		UUID later = TimeUuids.forTime(1468857600124L);
+		assertTrue(earlier.timestamp() < later.timestamp());
+	}
+
+	@Test
+	public void testCounterWrapIsUnique() {
+		long millis = 1468857600123L;
+		Set<UUID> uuids = new HashSet<UUID>();
+		// the 100-nanosecond counter wraps around twice
+		for (int i = 0; i < 25000; i++) {
+			UUID uuid = TimeUuids.forTime(millis);
+			assertEquals(2, uuid.variant());
+			assertEquals(millis, UUIDs.unixTimestamp(uuid));
+			uuids.add(uuid);
+		}
+		assertEquals(25000, uuids.size());
+	}
+}
@@ -0,0 +1,65 @@
+package io.smartcat.cassandra_audit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.datastax.driver.mapping.AuditAccessorInterceptor;
+import com.datastax.driver.mapping.AuditMappingManagerInterceptor;
+import com.datastax.driver.mapping.MappingManager;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+import net.bytebuddy.implementation.MethodDelegation;
+
+public class AuditAgentTest extends TestCase {
+
+	private static final List<String> INTERCEPTORS = Arrays.asList(AuditMappingManagerInterceptor.class.getName(),
+			AuditAccessorInterceptor.class.getName());
+
+	/**
+	 * Defines the intercepter classes itself and is unable to load
+	 * {@link MappingManager}, as is the case while the agent transforms it.
+	 */
+	private static class InstrumentingClassLoader extends ClassLoader {
+
+		InstrumentingClassLoader() {
+			super(AuditAgentTest.class.getClassLoader());
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.equals(MappingManager.class.getName())) {
+				throw new ClassNotFoundException(name + " is being instrumented.");
+			}
+			if (!INTERCEPTORS.contains(name)) {
+				return super.loadClass(name, resolve);
+			}
+			Class<?> klass = findLoadedClass(name);
+			if (klass == null) {
+				try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+					byte[] bytes = ByteStreams.toByteArray(in);
+					klass = defineClass(name, bytes, 0, bytes.length);
+				} catch (IOException e) {
+					throw new ClassNotFoundException(name, e);
+				}
+			}
+			return klass;
+		}
+	}
+
+	@Test
+	public void testInterceptorsAreInspectedWithoutMappingManager() throws Exception {
+		ClassLoader loader = new InstrumentingClassLoader();
+		for (String name : INTERCEPTORS) {
+			Class<?> interceptor = loader.loadClass(name);
+			assertSame(loader, interceptor.getClassLoader());
+			// the agent delegates to the intercepter, resolving its method signatures
+			interceptor.getDeclaredMethods();
+			MethodDelegation.to(interceptor);
+		}
+	}
+}
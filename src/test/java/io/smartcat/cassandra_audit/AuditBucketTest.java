@@ -0,0 +1,42 @@
+package io.smartcat.cassandra_audit;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class AuditBucketTest extends TestCase {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	@Test
+	public void testBucket() {
+		long time = 10 * DAY + 5 * HOUR + 1234;
+		assertEquals(10 * DAY + 5 * HOUR, AuditBucket.HOUR.bucket(time));
+		assertEquals(10 * DAY, AuditBucket.DAY.bucket(time));
+		assertEquals(10 * DAY, AuditBucket.DAY.bucket(10 * DAY));
+		assertEquals(-DAY, AuditBucket.DAY.bucket(-1));
+	}
+
+	@Test
+	public void testBuckets() {
+		List<Date> buckets = AuditBucket.HOUR.buckets(new Date(2 * HOUR + 10), new Date(4 * HOUR));
+		assertEquals(3, buckets.size());
+		assertEquals(new Date(2 * HOUR), buckets.get(0));
+		assertEquals(new Date(4 * HOUR), buckets.get(2));
+	}
+
+	@Test
+	public void testNoneHasNoBuckets() {
+		try {
+			AuditBucket.NONE.bucket(0);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package io.smartcat.cassandra_audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class AuditJournalTest extends TestCase {
+
+	private File directory;
+
+	private static class CollectingReplayer implements AuditJournal.Replayer {
+		final List<String> keys = new ArrayList<String>();
+		final List<ByteBuffer[]> values = new ArrayList<ByteBuffer[]>();
+		int accept = Integer.MAX_VALUE;
+
+		@Override
+		public boolean replay(String key, ByteBuffer[] values) {
+			if (keys.size() >= accept) {
+				return false;
+			}
+			this.keys.add(key);
+			this.values.add(values);
+			return true;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("audit-journal", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static ByteBuffer[] values(int i) {
+		return new ByteBuffer[] { ByteBuffer.wrap(("value-" + i).getBytes()), null, ByteBuffer.allocate(0) };
+	}
+
+	private int segmentCount() {
+		int count = 0;
+		for (String name : directory.list()) {
+			if (name.endsWith(".journal")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testAppendAndReplay() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 256);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(journal.append("key-" + i, values(i)));
+		}
+		assertFalse(journal.isDrained());
+		assertTrue(segmentCount() > 1);
+
+		CollectingReplayer replayer = new CollectingReplayer();
+		assertTrue(journal.replay(replayer));
+		assertTrue(journal.isDrained());
+		assertEquals(20, replayer.keys.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals("key-" + i, replayer.keys.get(i));
+			ByteBuffer[] values = replayer.values.get(i);
+			assertEquals(3, values.length);
+			assertEquals(ByteBuffer.wrap(("value-" + i).getBytes()), values[0]);
+			assertNull(values[1]);
+			assertEquals(0, values[2].remaining());
+		}
+		// only the segment being appended to is kept
+		assertEquals(1, segmentCount());
+		assertEquals(20, journal.getReplayed());
+		journal.close();
+	}
+
+	@Test
+	public void testRefusedRecordIsRetried() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 256);
+		for (int i = 0; i < 5; i++) {
+			journal.append("key-" + i, values(i));
+		}
+		CollectingReplayer replayer = new CollectingReplayer();
+		replayer.accept = 2;
+		assertFalse(journal.replay(replayer));
+		assertEquals(2, replayer.keys.size());
+
+		replayer.accept = Integer.MAX_VALUE;
+		assertTrue(journal.replay(replayer));
+		assertEquals(5, replayer.keys.size());
+		assertEquals("key-2", replayer.keys.get(2));
+		journal.close();
+	}
+
+	@Test
+	public void testReopenResumesFromCheckpoint() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 256);
+		for (int i = 0; i < 10; i++) {
+			journal.append("key-" + i, values(i));
+		}
+		CollectingReplayer replayer = new CollectingReplayer();
+		replayer.accept = 4;
+		journal.replay(replayer);
+		journal.close();
+
+		journal = new AuditJournal(directory, 256);
+		journal.append("key-10", values(10));
+		replayer = new CollectingReplayer();
+		assertTrue(journal.replay(replayer));
+		assertEquals(7, replayer.keys.size());
+		assertEquals("key-4", replayer.keys.get(0));
+		assertEquals("key-10", replayer.keys.get(6));
+		journal.close();
+	}
+
+	@Test
+	public void testRecordAppendedAfterReplayIsNotDrained() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 256);
+		journal.append("key-0", values(0));
+		CollectingReplayer replayer = new CollectingReplayer();
+		assertTrue(journal.replay(replayer));
+		assertTrue(journal.isDrained());
+
+		journal.append("key-1", values(1));
+		assertFalse(journal.isDrained());
+		assertTrue(journal.replay(replayer));
+		assertTrue(journal.isDrained());
+		assertEquals(2, replayer.keys.size());
+		journal.close();
+	}
+
+	@Test
+	public void testClosedJournalRejectsRecords() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 256);
+		journal.start(new CollectingReplayer(), 10);
+		journal.close();
+		journal.close();
+		assertFalse(journal.append("key", values(0)));
+		assertEquals(1, journal.getRejected());
+		assertFalse(journal.replay(new CollectingReplayer()));
+	}
+
+	@Test
+	public void testOversizedRecordIsRejected() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 64);
+		assertFalse(journal.append("key", new ByteBuffer[] { ByteBuffer.allocate(100) }));
+		assertEquals(1, journal.getRejected());
+		journal.close();
+	}
+
+	@Test
+	public void testAppendedRecordsAreForced() throws Exception {
+		AuditJournal journal = new AuditJournal(directory, 64 * 1024);
+		for (int i = 1; i < AuditJournal.FORCE_INTERVAL; i++) {
+			assertTrue(journal.append("key-" + i, values(i)));
+		}
+		assertEquals(AuditJournal.FORCE_INTERVAL - 1, journal.getUnforced());
+		// forced every so many records
+		assertTrue(journal.append("key-0", values(0)));
+		assertEquals(0, journal.getUnforced());
+		assertTrue(journal.append("key-0", values(0)));
+		assertEquals(1, journal.getUnforced());
+		journal.force();
+		assertEquals(0, journal.getUnforced());
+		journal.close();
+	}
+}
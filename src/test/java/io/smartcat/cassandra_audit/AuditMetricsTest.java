@@ -0,0 +1,67 @@
+package io.smartcat.cassandra_audit;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import junit.framework.TestCase;
+
+public class AuditMetricsTest extends TestCase {
+
+	private static int reportedMBeans() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		return server.queryNames(new ObjectName(AuditMetrics.JMX_DOMAIN + "*:name=audit.events.enqueued"), null).size();
+	}
+
+	private static Gauge<Integer> constant(final int value) {
+		return new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return value;
+			}
+		};
+	}
+
+	@Test
+	public void testRegistriesAreReportedInSeparateDomains() throws Exception {
+		int before = reportedMBeans();
+		AuditMetrics first = new AuditMetrics(new MetricRegistry(), true);
+		AuditMetrics second = new AuditMetrics(new MetricRegistry(), true);
+		assertEquals(before + 2, reportedMBeans());
+
+		first.stop();
+		second.stop();
+		second.stop();
+		assertEquals(before, reportedMBeans());
+	}
+
+	@Test
+	public void testSharedRegistryIsReportedOnce() throws Exception {
+		int before = reportedMBeans();
+		MetricRegistry registry = new MetricRegistry();
+		AuditMetrics first = new AuditMetrics(registry, true);
+		AuditMetrics second = new AuditMetrics(registry, true);
+		assertEquals(before + 1, reportedMBeans());
+
+		// the reporter stops with the last instance using it
+		first.stop();
+		assertEquals(before + 1, reportedMBeans());
+		second.stop();
+		assertEquals(before, reportedMBeans());
+	}
+
+	@Test
+	public void testGaugeIsNotReplaced() {
+		MetricRegistry registry = new MetricRegistry();
+		Gauge<Integer> gauge = constant(1);
+		assertTrue(new AuditMetrics(registry, false).gauge("queue.depth", gauge));
+		assertFalse(new AuditMetrics(registry, false).gauge("queue.depth", constant(2)));
+		assertSame(gauge, registry.getGauges().get("audit.queue.depth"));
+	}
+}
@@ -0,0 +1,145 @@
+package io.smartcat.cassandra_audit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class AuditRingBufferTest extends TestCase {
+
+	private static final AuditRingBuffer.Weigher<String> LENGTH = new AuditRingBuffer.Weigher<String>() {
+		@Override
+		public int weigh(String event) {
+			return event.length();
+		}
+	};
+
+	private static AuditRingBuffer<String> buffer(int capacity, long maxBytes, OverflowPolicy policy,
+			AuditRingBuffer.SpillHandler<String> spillHandler) {
+		return new AuditRingBuffer<String>(capacity, maxBytes, policy, LENGTH, spillHandler);
+	}
+
+	private static String poll(AuditRingBuffer<String> buffer) throws InterruptedException {
+		return buffer.poll(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testFifo() throws Exception {
+		AuditRingBuffer<String> buffer = buffer(2, 100, OverflowPolicy.DROP_NEWEST, null);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(buffer.offer("a" + i));
+			assertTrue(buffer.offer("b" + i));
+			assertEquals("a" + i, poll(buffer));
+			assertEquals("b" + i, poll(buffer));
+		}
+		assertNull(poll(buffer));
+		assertEquals(10, buffer.getEnqueued());
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		AuditRingBuffer<String> buffer = buffer(2, 100, OverflowPolicy.DROP_NEWEST, null);
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("b"));
+		assertFalse(buffer.offer("c"));
+		assertEquals(1, buffer.getDroppedNewest());
+		assertEquals("a", poll(buffer));
+		assertEquals("b", poll(buffer));
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		AuditRingBuffer<String> buffer = buffer(2, 100, OverflowPolicy.DROP_OLDEST, null);
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("b"));
+		assertTrue(buffer.offer("c"));
+		assertEquals(1, buffer.getDroppedOldest());
+		assertEquals("b", poll(buffer));
+		assertEquals("c", poll(buffer));
+	}
+
+	@Test
+	public void testEvictionHandler() throws Exception {
+		final List<String> evicted = new ArrayList<String>();
+		AuditRingBuffer<String> buffer = new AuditRingBuffer<String>(2, 100, OverflowPolicy.DROP_OLDEST, LENGTH, null,
+				new AuditRingBuffer.EvictionHandler<String>() {
+					@Override
+					public void evicted(String event) {
+						evicted.add(event);
+					}
+				});
+		buffer.offer("a");
+		buffer.offer("b");
+		buffer.offer("c");
+		buffer.offer("d");
+		assertEquals(2, evicted.size());
+		assertEquals("a", evicted.get(0));
+		assertEquals("b", evicted.get(1));
+	}
+
+	@Test
+	public void testByteLimit() throws Exception {
+		AuditRingBuffer<String> buffer = buffer(10, 5, OverflowPolicy.DROP_OLDEST, null);
+		assertTrue(buffer.offer("aaa"));
+		assertTrue(buffer.offer("bb"));
+		assertEquals(5, buffer.bytes());
+		assertTrue(buffer.offer("c"));
+		assertEquals(2, buffer.size());
+		assertEquals(3, buffer.bytes());
+		// an oversized event is accepted by an empty buffer
+		assertTrue(buffer.offer("dddddd"));
+		assertEquals(1, buffer.size());
+		assertEquals("dddddd", poll(buffer));
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		final List<String> spilled = new ArrayList<String>();
+		AuditRingBuffer<String> buffer = buffer(1, 100, OverflowPolicy.SPILL, new AuditRingBuffer.SpillHandler<String>() {
+			@Override
+			public void spill(String event) {
+				spilled.add(event);
+			}
+		});
+		assertTrue(buffer.offer("a"));
+		assertFalse(buffer.offer("b"));
+		assertEquals(1, buffer.getSpilled());
+		assertEquals("b", spilled.get(0));
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		final AuditRingBuffer<String> buffer = buffer(1, 100, OverflowPolicy.BLOCK, null);
+		assertTrue(buffer.offer("a"));
+		final CountDownLatch offered = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				buffer.offer("b");
+				offered.countDown();
+			}
+		});
+		producer.start();
+		assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+		assertEquals("a", poll(buffer));
+		assertTrue(offered.await(1, TimeUnit.SECONDS));
+		assertEquals("b", poll(buffer));
+		assertEquals(1, buffer.getBlocked());
+	}
+
+	@Test
+	public void testBlockWithoutWaiting() throws Exception {
+		AuditRingBuffer<String> buffer = buffer(1, 100, OverflowPolicy.BLOCK, null);
+		assertTrue(buffer.offer("a"));
+		// a producer that must not wait discards the event
+		assertFalse(buffer.offer("b", false));
+		assertEquals(0, buffer.getBlocked());
+		assertEquals(1, buffer.getDroppedNewest());
+		assertEquals("a", poll(buffer));
+		assertTrue(buffer.offer("c", false));
+	}
+}
@@ -9,54 +9,68 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 
 /**
- * ResultSetFuture implementation with only get() method defined.
+ * ResultSetFuture implementation of an already completed, or failed, execution.
  *
  * Used for tests to enable asynchronous calls executed synchronously.
+ * Listeners are run as soon as they are added.
  *
  */
 public class ResultSetFutureStub implements ResultSetFuture {
 
     private final ResultSet resultSet;
+    private final RuntimeException error;
 
     public ResultSetFutureStub(final ResultSet resultSet) {
         this.resultSet = resultSet;
+        this.error = null;
+    }
+
+    public ResultSetFutureStub(final RuntimeException error) {
+        this.resultSet = null;
+        this.error = error;
     }
 
     @Override
     public void addListener(final Runnable listener, final Executor executor) {
-        throw new UnsupportedOperationException();
+        executor.execute(listener);
     }
 
     @Override
     public boolean isCancelled() {
-        throw new UnsupportedOperationException();
+        return false;
     }
 
     @Override
     public boolean isDone() {
-        throw new UnsupportedOperationException();
+        return true;
     }
 
     @Override
     public ResultSet get() throws InterruptedException, ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
         return resultSet;
     }
 
     @Override
     public ResultSet get(final long timeout, final TimeUnit unit)
         throws InterruptedException, ExecutionException, TimeoutException {
-        return resultSet;
+        return get();
     }
 
     @Override
     public ResultSet getUninterruptibly() {
+        if (error != null) {
+            throw error;
+        }
         return resultSet;
     }
 
     @Override
     public ResultSet getUninterruptibly(final long timeout, final TimeUnit unit)
         throws TimeoutException {
-        return resultSet;
+        return getUninterruptibly();
     }
 
     @Override